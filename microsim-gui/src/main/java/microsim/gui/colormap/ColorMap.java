@@ -43,4 +43,40 @@ public interface ColorMap
    *  @return The array index of the requested color.*/
   public int getColorIndex(double value);
 
+  /** Map a slice of values to packed opaque ARGB colors, as getColorIndex()
+   *  and getColorComponents() would do value by value. Implementations
+   *  override it with a loop the JIT compiler can vectorize, e.g. the range
+   *  maps, so that the colors of a whole grid row are computed in one call.
+   *  @param values The values to be mapped.
+   *  @param from The index of the first value.
+   *  @param argb The array receiving the colors.
+   *  @param offset The index of the first color.
+   *  @param length The number of values.*/
+  public default void getColors(double[] values, int from, int[] argb, int offset, int length)
+  {
+    for (int i = 0; i < length; i++)
+      argb[offset + i] = pack(getColorComponents(getColorIndex(values[from + i])));
+  }
+
+  /** Map a slice of values to packed opaque ARGB colors, as getColorIndex()
+   *  and getColorComponents() would do value by value.
+   *  @param values The values to be mapped.
+   *  @param from The index of the first value.
+   *  @param argb The array receiving the colors.
+   *  @param offset The index of the first color.
+   *  @param length The number of values.*/
+  public default void getColors(int[] values, int from, int[] argb, int offset, int length)
+  {
+    for (int i = 0; i < length; i++)
+      argb[offset + i] = pack(getColorComponents(getColorIndex(values[from + i])));
+  }
+
+  /** Pack RGB components into an opaque ARGB color.
+   *  @param c The red, green and blue components, in the [0, 255] range.
+   *  @return The packed color.*/
+  public static int pack(int[] c)
+  {
+    return 0xFF000000 | (c[0] & 0xFF) << 16 | (c[1] & 0xFF) << 8 | (c[2] & 0xFF);
+  }
+
 }
\ No newline at end of file
@@ -1,12 +1,18 @@
 package microsim.gui.colormap;
 
 import java.awt.Color;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * An object used to map integer values to colors.
  * It is used by Layered<Type>Drawer to draw objects of the LayeredSurfaceFrame.
+ * The mappings are compiled, at the first lookup after a color is added, into
+ * a dense table over the range of the mapped values, or into an open
+ * addressing table if the values are sparse, so that a lookup costs an array
+ * access with no boxing. A value which is not mapped has the UNMAPPED_INDEX
+ * index, whose color is the unmapped color.
  *
  * <p>Title: JAS</p>
  * <p>Description: Java Agent-based Simulation library</p>
@@ -34,6 +40,101 @@ public class FixedColorMap implements ColorMap
   protected int colors = 0;
   protected Map<Integer, Integer> mapper;
 
+  /** The color index of the values not mapped. */
+  public static final int UNMAPPED_INDEX = -1;
+
+  //The dense table is used if the mapped values span up to this many slots per color
+  private static final int DENSE_SLOTS_PER_COLOR = 8;
+  private static final int MIN_DENSE_RANGE = 1024;
+
+  private Color unmappedColor = Color.black;
+  private int[] unmappedComponents = { 0, 0, 0 };
+
+  private volatile Lookup lookup;	//Compiled from mapper, null if a color has been added since
+  private volatile int[] packedColors;	//The packed colors by index, null if a color has been added since
+
+  //If the lookups of getColorIndex() are not overridden, getColors() uses them straight
+  private final boolean lookupInts = inheritsColorIndex(int.class, FixedColorMap.class);
+  private final boolean lookupDoubles = inheritsColorIndex(double.class, FixedColorMap.class);
+
+  /** Not of interest for users. The compiled mappings from values to color indices. */
+  private static final class Lookup
+  {
+    private final int offset;
+    private final int[] table;	//The dense table, table[value - offset] is the index of value
+
+    private final int[] keys, indices;	//The open addressing table, -1 for an empty key
+    private final int mask;
+
+    Lookup(Map<Integer, Integer> mapper)
+    {
+      int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+      for (int value : mapper.keySet())
+      {
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+      long range = mapper.isEmpty() ? 0 : (long) max - min + 1;
+
+      if (range <= Math.max(MIN_DENSE_RANGE, (long) DENSE_SLOTS_PER_COLOR * mapper.size()))
+      {
+        offset = mapper.isEmpty() ? 0 : min;
+        table = new int[(int) range];
+        Arrays.fill(table, UNMAPPED_INDEX);
+        for (Map.Entry<Integer, Integer> e : mapper.entrySet())
+          table[e.getKey() - offset] = e.getValue();
+        keys = indices = null;
+        mask = 0;
+        return;
+      }
+
+      offset = 0;
+      table = null;
+      // A load factor of 1/2 at most
+      int capacity = Integer.highestOneBit(mapper.size()) << 2;
+      mask = capacity - 1;
+      keys = new int[capacity];
+      indices = new int[capacity];
+      Arrays.fill(keys, -1);
+      for (Map.Entry<Integer, Integer> e : mapper.entrySet())
+      {
+        int slot = hash(e.getKey()) & mask;
+        while (keys[slot] != -1)
+          slot = (slot + 1) & mask;
+        keys[slot] = e.getKey();
+        indices[slot] = e.getValue();
+      }
+    }
+
+    private static int hash(int value)
+    {
+      int h = value * 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+
+    int get(int value)
+    {
+      if (table != null)
+      {
+        int k = value - offset;
+        return k >= 0 && k < table.length ? table[k] : UNMAPPED_INDEX;
+      }
+
+      // The mapped values are positive, so they never match an empty key
+      if (value < 0)
+        return UNMAPPED_INDEX;
+      int slot = hash(value) & mask;
+      int key;
+      while ((key = keys[slot]) != -1)
+      {
+        if (key == value)
+          return indices[slot];
+        slot = (slot + 1) & mask;
+      }
+      return UNMAPPED_INDEX;
+    }
+  }
+
   /** Create a color map.*/
   public FixedColorMap()
   {
@@ -89,6 +190,8 @@ public class FixedColorMap implements ColorMap
     colorComponents[colors][1] = color.getGreen();
     colorComponents[colors][2] = color.getBlue();
     mapper.put(value, colors++);
+    lookup = null;
+    packedColors = null;
   }
   /** Add a color to the map.
    *  @param value The integer value that maps to the given color.
@@ -108,11 +211,29 @@ public class FixedColorMap implements ColorMap
 
     addColor(value, new Color(red, green, blue));
   }
+  /** Return the color used for the values not mapped.
+   *  @return The unmapped color.*/
+  public Color getUnmappedColor() { return unmappedColor; }
+
+  /** Set the color used for the values not mapped. The default is black.
+   *  It should be set before the map is used by a layer, which keeps the
+   *  colors it has already drawn.
+   *  @param color The unmapped color.*/
+  public void setUnmappedColor(Color color)
+  {
+    if (color == null)
+      throw new IllegalArgumentException("ColorMap.setUnmappedColor: null color.");
+    unmappedColor = color;
+    unmappedComponents = new int[] { color.getRed(), color.getGreen(), color.getBlue() };
+  }
+
   /** Return the color to at the given index position.
-   *  @param index The value to be mapped.
+   *  @param index The value to be mapped, or UNMAPPED_INDEX.
    *  @return The color corresponding to the value.*/
   public Color getColor(int index)
   {
+    if (index == UNMAPPED_INDEX)
+      return unmappedColor;
     return colorList[index];
   }
   /** Return the color list.
@@ -121,36 +242,159 @@ public class FixedColorMap implements ColorMap
 
   public int[] getColorComponents(int index)
   {
+    if (index == UNMAPPED_INDEX)
+      return unmappedComponents;
     return colorComponents[index];
   }
+
+  private Lookup getLookup()
+  {
+    Lookup l = lookup;
+    if (l == null)
+    {
+      // Threads racing here compile equivalent lookups
+      l = new Lookup(mapper);
+      lookup = l;
+    }
+    return l;
+  }
+
+  /** Not of interest for users. Return if getColorIndex() is the one of the
+   *  given class, i.e. a subclass does not override it, so that getColors()
+   *  can map the values without calling it.
+   *  @param type The type of the values, int.class or double.class.
+   *  @param declaringClass The class whose getColors() skips getColorIndex().
+   *  @return True if getColorIndex() is not overridden.*/
+  final boolean inheritsColorIndex(Class<?> type, Class<?> declaringClass)
+  {
+    try {
+      return getClass().getMethod("getColorIndex", type).getDeclaringClass() == declaringClass;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /** Return the packed colors, as ColorMap.pack() returns them, of all the
+   *  color indices.
+   *  @return An array indexed by color index.*/
+  int[] getPackedColors()
+  {
+    int[] p = packedColors;
+    if (p == null)
+    {
+      p = new int[colorList.length];
+      for (int i = 0; i < p.length; i++)
+        p[i] = ColorMap.pack(colorComponents[i]);
+      packedColors = p;
+    }
+    return p;
+  }
+
+  /** Map a slice of values to packed opaque ARGB colors with the compiled
+   *  lookup tables. A value not mapped gets the unmapped color. If a
+   *  subclass overrides getColorIndex(int), the values are mapped by it.
+   *  @param values The values to be mapped.
+   *  @param from The index of the first value.
+   *  @param argb The array receiving the colors.
+   *  @param offset The index of the first color.
+   *  @param length The number of values.*/
+  public void getColors(int[] values, int from, int[] argb, int offset, int length)
+  {
+    if (!lookupInts)
+    {
+      ColorMap.super.getColors(values, from, argb, offset, length);
+      return;
+    }
+    Lookup l = getLookup();
+    int[] p = getPackedColors();
+    int unmapped = ColorMap.pack(unmappedComponents);
+    for (int i = 0; i < length; i++)
+    {
+      int index = l.get(values[from + i]);
+      argb[offset + i] = index == UNMAPPED_INDEX ? unmapped : p[index];
+    }
+  }
+
+  /** Map a slice of values, truncated to integers, to packed opaque ARGB
+   *  colors with the compiled lookup tables. A value not mapped gets the
+   *  unmapped color. If a subclass overrides getColorIndex(double), the
+   *  values are mapped by it.
+   *  @param values The values to be mapped.
+   *  @param from The index of the first value.
+   *  @param argb The array receiving the colors.
+   *  @param offset The index of the first color.
+   *  @param length The number of values.*/
+  public void getColors(double[] values, int from, int[] argb, int offset, int length)
+  {
+    if (!lookupDoubles)
+    {
+      ColorMap.super.getColors(values, from, argb, offset, length);
+      return;
+    }
+    Lookup l = getLookup();
+    int[] p = getPackedColors();
+    int unmapped = ColorMap.pack(unmappedComponents);
+    for (int i = 0; i < length; i++)
+    {
+      int index = l.get((int) values[from + i]);
+      argb[offset + i] = index == UNMAPPED_INDEX ? unmapped : p[index];
+    }
+  }
+
+  /** Not of interest for users. Map a slice of values linearly to the color
+   *  indices (int) ((value - shift) * scale), clamped to the color list, and
+   *  then to packed colors. The first loop has neither branches nor calls, so
+   *  that the JIT compiler turns it into SIMD instructions.*/
+  final void getLinearColors(double[] values, int from, int[] argb, int offset, int length,
+                             double shift, double scale)
+  {
+    int last = colorList.length - 1;
+    for (int i = 0; i < length; i++)
+      argb[offset + i] = Math.min(last, Math.max(0, (int) ((values[from + i] - shift) * scale)));
+    gather(argb, offset, length);
+  }
+
+  /** Not of interest for users. The same as getLinearColors() for int values.*/
+  final void getLinearColors(int[] values, int from, int[] argb, int offset, int length,
+                             double shift, double scale)
+  {
+    int last = colorList.length - 1;
+    for (int i = 0; i < length; i++)
+      argb[offset + i] = Math.min(last, Math.max(0, (int) ((values[from + i] - shift) * scale)));
+    gather(argb, offset, length);
+  }
+
+  // Replace the color indices with their packed colors
+  private void gather(int[] argb, int offset, int length)
+  {
+    int[] p = getPackedColors();
+    for (int i = offset; i < offset + length; i++)
+      argb[i] = p[argb[i]];
+  }
+
   /** Return the color index.
    *  @param value The value to be mapped.
-   *  @return The index of the color list mapping the value.*/
+   *  @return The index of the color list mapping the value, UNMAPPED_INDEX
+   *          if the value is not mapped.*/
   public int getColorIndex(int value)
   {
-    int k = mapper.get(value);
-    if (k == Integer.MIN_VALUE)
-      throw new ArrayIndexOutOfBoundsException("ColorMap.getColorIndex: Value "
-                                                  + value + " not mapped.");
-    return k;
+    return getLookup().get(value);
   }
   /** Return the color index.
-   *  @param value The value to be mapped.
-   *  @return The index of the color list mapping the value.*/
+   *  @param value The value to be mapped, truncated to an integer.
+   *  @return The index of the color list mapping the value, UNMAPPED_INDEX
+   *          if the value is not mapped.*/
   public int getColorIndex(double value)
   {
-    int k = mapper.get((int) value);
-    if (k == Integer.MIN_VALUE)
-      throw new ArrayIndexOutOfBoundsException("ColorMap.getColorIndex: Value "
-                                                  + value + " not mapped.");
-    return k;
+    return getLookup().get((int) value);
   }
 
   /** Map the given value with the right color.
-   *  @param index The value to be mapped.
-   *  @return The color corresponding to the value.*/
+   *  @param value The value to be mapped.
+   *  @return The color corresponding to the value, the unmapped color if the
+   *          value is not mapped.*/
   public Color getMappedColor(int value)
   {
-		return colorList[getColorIndex(value)];
+		return getColor(getColorIndex(value));
   }
 }
\ No newline at end of file
@@ -33,6 +33,9 @@ public class TripleRangeColorMap extends FixedColorMap
   private int redEnd, blueEnd, greenEnd;
   private double rangeSize;
 
+  //If getColorIndex(double) is not overridden, getColors() maps the values linearly
+  private final boolean linearDoubles = inheritsColorIndex(double.class, TripleRangeColorMap.class);
+
   public TripleRangeColorMap(int gradients, Color bottomColor, Color middleColor, Color topColor,
                           double minValue, double midValue, double maxValue)
   {
@@ -91,4 +94,22 @@ public class TripleRangeColorMap extends FixedColorMap
       i = colorList.length - 1;
     return i;
   }
+
+  /** Map a slice of values to packed colors, as getColorIndex(double)
+   *  does, with a loop vectorized by the JIT compiler. If a subclass
+   *  overrides getColorIndex(double), the values are mapped by it.
+   *  @param values The values to be mapped.
+   *  @param from The index of the first value.
+   *  @param argb The array receiving the colors.
+   *  @param offset The index of the first color.
+   *  @param length The number of values.*/
+  public void getColors(double[] values, int from, int[] argb, int offset, int length)
+  {
+    if (!linearDoubles)
+    {
+      super.getColors(values, from, argb, offset, length);
+      return;
+    }
+    getLinearColors(values, from, argb, offset, length, 0.0, rangeSize);
+  }
 }
\ No newline at end of file
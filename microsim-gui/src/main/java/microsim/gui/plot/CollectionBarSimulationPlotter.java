@@ -1,7 +1,9 @@
 package microsim.gui.plot;
 
 import java.awt.Color;
+import java.awt.GraphicsEnvironment;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JInternalFrame;
 
@@ -62,11 +64,21 @@ public class CollectionBarSimulationPlotter extends JInternalFrame implements Ev
 	private ArrayList<ArraySource> sources;
 	private ArrayList<String> categories;
 	
+	private JFreeChart chart;
+
 	private DefaultCategoryDataset dataset;
 		
 	private BarRenderer renderer;
 	
 	private Integer maxBars;
+
+	private final AtomicReference<double[][]> pendingValues = new AtomicReference<double[][]>();
+
+	private final Runnable renderTask = new Runnable() {
+		public void run() {
+			render();
+		}
+	};
 	
 	private abstract class ArraySource {
 		//public String label;
@@ -185,7 +197,7 @@ public class CollectionBarSimulationPlotter extends JInternalFrame implements Ev
 		
 		dataset = new DefaultCategoryDataset();
         
-        final JFreeChart chart = ChartFactory.createBarChart(
+        chart = ChartFactory.createBarChart(
                 title,      // chart title
                 "Categories",                      // x axis label                
                 yaxis,                      // y axis label
@@ -220,15 +232,27 @@ public class CollectionBarSimulationPlotter extends JInternalFrame implements Ev
         );
         // OPTIONAL CUSTOMISATION COMPLETED.
         
-        final ChartPanel chartPanel = new ChartPanel(chart);
+        if (!GraphicsEnvironment.isHeadless()) {
+	        final ChartPanel chartPanel = new ChartPanel(chart);
                 
-        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
+	        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
 			
-        setContentPane(chartPanel);
+	        setContentPane(chartPanel);
+        }
         
         this.setSize(400, 400);
 	}
 
+	/**
+	 * Return the chart of the plotter, e.g. to draw it offscreen with a
+	 * {@link PlotRecorder}.
+	 *
+	 * @return The chart.
+	 */
+	public JFreeChart getChart() {
+		return chart;
+	}
+
 	public void onEvent(Enum<?> type) {
 		if (type instanceof CommonEventType && type.equals(CommonEventType.Update)) {
 			update();
@@ -236,14 +260,35 @@ public class CollectionBarSimulationPlotter extends JInternalFrame implements Ev
 	}
 
 	public void update() {		
+		// Values are sampled on the simulation thread; the dataset is only 
+		// modified on the EDT by the PlotRenderScheduler.
+		double[][] values = new double[sources.size()][];
 		for (int i = 0; i < sources.size(); i++) {
 			ArraySource cs = (ArraySource) sources.get(i);
-			final String category = categories.get(i);
 			
 			double[] vals = cs.getDoubleArray();
-			for (int j = 0; j < vals.length && (j < (maxBars == null ? Integer.MAX_VALUE : maxBars) ); j++)
+			int n = (maxBars == null ? vals.length : Math.min(vals.length, maxBars));
+			values[i] = new double[n];
+			System.arraycopy(vals, 0, values[i], 0, n);
+		}
+		pendingValues.set(values);
+		PlotRenderScheduler.getInstance().requestRender(renderTask);
+	}
+
+	private void render() {
+		double[][] values = pendingValues.getAndSet(null);
+		if (values == null)
+			return;
+
+		dataset.setNotify(false);
+		for (int i = 0; i < values.length; i++) {
+			final String category = categories.get(i);
+			
+			double[] vals = values[i];
+			for (int j = 0; j < vals.length; j++)
 				dataset.addValue(vals[j], category, "" + j);
 		}
+		dataset.setNotify(true);		//Fires a single change event for the whole update
 	}
 	
 	/**
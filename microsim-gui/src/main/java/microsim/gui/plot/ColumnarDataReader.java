@@ -0,0 +1,252 @@
+package microsim.gui.plot;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the columnar files written by {@link ColumnarDataWriter}, e.g. the
+ * data exported by the plotters, and converts them to CSV. The blocks of the
+ * file are memory-mapped one at a time. The file can be converted from the
+ * command line with<br>
+ * <code>java microsim.gui.plot.ColumnarDataReader data.bin data.csv</code>
+ *
+ * <p>
+ * Title: JAS-mine
+ * </p>
+ * <p>
+ * Description: Java Agent-based Simulation library
+ * </p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+public class ColumnarDataReader implements Closeable {
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	private final String[] columnNames;
+
+	private final int blockRows;
+
+	private final long headerLength;
+
+	private final long blockBytes;
+
+	private final long rows;
+
+	private DoubleBuffer block;		//The block last mapped
+
+	private long blockIndex = -1;
+
+	/**
+	 * Open a file. The rows appended after the file is opened are not read.
+	 *
+	 * @param file
+	 *            The file written by a ColumnarDataWriter.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a columnar data file.
+	 */
+	public ColumnarDataReader(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		try {
+			this.channel = this.file.getChannel();
+			ByteBuffer fixed = ByteBuffer.allocate(ColumnarDataWriter.NAMES_OFFSET);
+			readFully(fixed, 0);
+			if (fixed.getInt(0) != ColumnarDataWriter.MAGIC)
+				throw new IOException("ColumnarDataReader: " + file + " is not a columnar data file.");
+			if (fixed.getInt(4) != ColumnarDataWriter.VERSION)
+				throw new IOException("ColumnarDataReader: unsupported version " + fixed.getInt(4) + ".");
+			int columns = fixed.getInt(ColumnarDataWriter.COLUMNS_OFFSET);
+			this.blockRows = fixed.getInt(ColumnarDataWriter.BLOCK_ROWS_OFFSET);
+			this.rows = fixed.getLong(ColumnarDataWriter.ROW_COUNT_OFFSET);
+			this.headerLength = fixed.getInt(ColumnarDataWriter.HEADER_LENGTH_OFFSET);
+			this.blockBytes = 8L * columns * blockRows;
+
+			ByteBuffer names = ByteBuffer.allocate((int) headerLength - ColumnarDataWriter.NAMES_OFFSET);
+			readFully(names, ColumnarDataWriter.NAMES_OFFSET);
+			names.flip();
+			this.columnNames = new String[columns];
+			for (int c = 0; c < columns; c++) {
+				byte[] name = new byte[names.getInt()];
+				names.get(name);
+				columnNames[c] = new String(name, StandardCharsets.UTF_8);
+			}
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		} catch (RuntimeException e) {
+			this.file.close();
+			throw new IOException("ColumnarDataReader: " + file + " is corrupted.", e);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("ColumnarDataReader: unexpected end of file.");
+		}
+	}
+
+	public String[] getColumnNames() {
+		return columnNames.clone();
+	}
+
+	public int getColumnCount() {
+		return columnNames.length;
+	}
+
+	public long getRowCount() {
+		return rows;
+	}
+
+	/**
+	 * Return a value.
+	 *
+	 * @param row
+	 *            The row index.
+	 * @param column
+	 *            The column index.
+	 * @return The value.
+	 * @throws IOException
+	 *             If the block of the row cannot be mapped.
+	 */
+	public double getValue(long row, int column) throws IOException {
+		if (row < 0 || row >= rows || column < 0 || column >= columnNames.length)
+			throw new IndexOutOfBoundsException("ColumnarDataReader: value (" + row + ", " + column + ") out of bounds.");
+		mapBlock(row / blockRows);
+		return block.get(column * blockRows + (int) (row % blockRows));
+	}
+
+	/**
+	 * Read a whole column.
+	 *
+	 * @param column
+	 *            The column index.
+	 * @return The values of the column.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	public double[] getColumn(int column) throws IOException {
+		if (column < 0 || column >= columnNames.length)
+			throw new IndexOutOfBoundsException("ColumnarDataReader: column " + column + " out of bounds.");
+		if (rows > Integer.MAX_VALUE)
+			throw new IllegalStateException("ColumnarDataReader: too many rows to read a column into an array.");
+
+		double[] values = new double[(int) rows];
+		for (long b = 0, row = 0; row < rows; b++, row += blockRows) {
+			mapBlock(b);
+			int n = (int) Math.min(blockRows, rows - row);
+			block.position(column * blockRows);
+			block.get(values, (int) row, n);
+		}
+		return values;
+	}
+
+	private void mapBlock(long index) throws IOException {
+		if (index == blockIndex)
+			return;
+		block = channel.map(FileChannel.MapMode.READ_ONLY, headerLength + index * blockBytes, blockBytes).asDoubleBuffer();
+		blockIndex = index;
+	}
+
+	/**
+	 * Write the data as CSV, with a header line of column names.
+	 *
+	 * @param out
+	 *            The writer, which is not closed.
+	 * @throws IOException
+	 *             If the file cannot be read or the CSV written.
+	 */
+	public void toCsv(Writer out) throws IOException {
+		int columns = columnNames.length;
+		for (int c = 0; c < columns; c++) {
+			if (c > 0)
+				out.write(',');
+			out.write(quote(columnNames[c]));
+		}
+		out.write('\n');
+
+		StringBuilder line = new StringBuilder();
+		for (long b = 0, row = 0; row < rows; b++, row += blockRows) {
+			mapBlock(b);
+			int n = (int) Math.min(blockRows, rows - row);
+			for (int i = 0; i < n; i++) {
+				line.setLength(0);
+				for (int c = 0; c < columns; c++) {
+					if (c > 0)
+						line.append(',');
+					line.append(block.get(c * blockRows + i));
+				}
+				line.append('\n');
+				out.append(line);
+			}
+		}
+	}
+
+	private static String quote(String name) {
+		if (name.indexOf(',') < 0 && name.indexOf('"') < 0 && name.indexOf('\n') < 0)
+			return name;
+		return '"' + name.replace("\"", "\"\"") + '"';
+	}
+
+	/**
+	 * Convert a columnar data file to CSV.
+	 *
+	 * @param in
+	 *            The columnar data file.
+	 * @param out
+	 *            The CSV file, which is overwritten.
+	 * @throws IOException
+	 *             If a file cannot be read or written.
+	 */
+	public static void toCsv(File in, File out) throws IOException {
+		ColumnarDataReader reader = new ColumnarDataReader(in);
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8));
+			try {
+				reader.toCsv(writer);
+			} finally {
+				writer.close();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void close() throws IOException {
+		block = null;
+		file.close();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java microsim.gui.plot.ColumnarDataReader <data file> <csv file>");
+			System.exit(1);
+		}
+		toCsv(new File(args[0]), new File(args[1]));
+	}
+
+}
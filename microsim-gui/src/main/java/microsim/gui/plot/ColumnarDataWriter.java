@@ -0,0 +1,228 @@
+package microsim.gui.plot;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An append-only writer of rows of doubles to a memory-mapped, columnar
+ * binary file, used by the plotters to export the values they sample. The
+ * file starts with a header holding the column names and the number of rows
+ * written, followed by blocks of a fixed number of rows. Within a block the
+ * values are stored column by column, so that a column can be read without
+ * reading the others. The file is mapped in regions of several blocks as the
+ * rows are appended, each region twice as large as the previous one up to
+ * {@link #MAX_REGION_BYTES}, so that a long export maps the file only a few
+ * times; the rows are written straight into the mapped memory, without boxing
+ * or copying the values.<br>
+ *
+ * The row count in the header is updated after each row, so the file can be
+ * read, e.g. converted to CSV with {@link ColumnarDataReader}, even if the
+ * writer was not closed. All the values are big-endian.
+ *
+ * <p>
+ * Title: JAS-mine
+ * </p>
+ * <p>
+ * Description: Java Agent-based Simulation library
+ * </p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+public class ColumnarDataWriter implements Closeable, Flushable {
+
+	static final int MAGIC = 0x4A41534D;		//"JASM"
+
+	static final int VERSION = 1;
+
+	// Header layout: magic, version, column count, block rows, row count,
+	// header length, then the column names, padded to a multiple of 8 bytes
+	static final int COLUMNS_OFFSET = 8;
+	static final int BLOCK_ROWS_OFFSET = 12;
+	static final int ROW_COUNT_OFFSET = 16;
+	static final int HEADER_LENGTH_OFFSET = 24;
+	static final int NAMES_OFFSET = 28;
+
+	/** The default number of rows of a block. */
+	public static final int DEFAULT_BLOCK_ROWS = 4096;
+
+	/** The size of the largest region of the file mapped at once, unless a
+	 *  single block is larger. */
+	public static final long MAX_REGION_BYTES = 64L << 20;
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	private final MappedByteBuffer header;
+
+	private final int columns;
+
+	private final int blockRows;
+
+	private final long headerLength;
+
+	private final long blockBytes;
+
+	private MappedByteBuffer region;		//The blocks mapped, including the one the next row is written to
+
+	private long regionStart;		//The index of the first block of the region
+
+	private int regionBlocks;
+
+	private long rows;
+
+	private boolean closed;
+
+	/**
+	 * Create a writer with blocks of {@link #DEFAULT_BLOCK_ROWS} rows. An
+	 * existing file is overwritten.
+	 *
+	 * @param file
+	 *            The file.
+	 * @param columnNames
+	 *            The names of the columns.
+	 * @throws IOException
+	 *             If the file cannot be created.
+	 */
+	public ColumnarDataWriter(File file, String[] columnNames) throws IOException {
+		this(file, columnNames, DEFAULT_BLOCK_ROWS);
+	}
+
+	public ColumnarDataWriter(File file, String[] columnNames, int blockRows) throws IOException {
+		if (file == null || columnNames == null || columnNames.length == 0)
+			throw new IllegalArgumentException("ColumnarDataWriter: null file or no columns.");
+		if (blockRows < 1)
+			throw new IllegalArgumentException("ColumnarDataWriter: the number of rows of a block must be positive.");
+		this.columns = columnNames.length;
+		this.blockRows = blockRows;
+		this.blockBytes = 8L * columns * blockRows;
+		if (blockBytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("ColumnarDataWriter: blocks larger than 2GB are not supported.");
+
+		int length = NAMES_OFFSET;
+		byte[][] names = new byte[columns][];
+		for (int c = 0; c < columns; c++) {
+			names[c] = String.valueOf(columnNames[c]).getBytes(StandardCharsets.UTF_8);
+			length += 4 + names[c].length;
+		}
+		length = (length + 7) & ~7;
+		this.headerLength = length;
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(columns).putInt(blockRows).putLong(0L).putInt(length);
+		for (int c = 0; c < columns; c++)
+			buffer.putInt(names[c].length).put(names[c]);
+
+		this.file = new RandomAccessFile(file, "rw");
+		try {
+			this.file.setLength(0);
+			this.channel = this.file.getChannel();
+			this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			buffer.rewind();
+			header.put(buffer);
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	public int getColumnCount() {
+		return columns;
+	}
+
+	public long getRowCount() {
+		return rows;
+	}
+
+	/**
+	 * Append a row.
+	 *
+	 * @param row
+	 *            The values of the row, one per column. The array is not
+	 *            kept, so the caller can reuse it for the next row.
+	 * @throws IOException
+	 *             If the next region of the file cannot be mapped.
+	 */
+	public void append(double[] row) throws IOException {
+		if (closed)
+			throw new IllegalStateException("ColumnarDataWriter: the writer is closed.");
+		if (row.length != columns)
+			throw new IllegalArgumentException("ColumnarDataWriter: expected " + columns + " values, got " + row.length + ".");
+
+		long index = rows / blockRows;
+		int i = (int) (rows % blockRows);
+		if (region == null || index >= regionStart + regionBlocks)
+			mapRegion(index);
+		int offset = (int) ((index - regionStart) * blockBytes);
+		for (int c = 0; c < columns; c++)
+			region.putDouble(offset + ((c * blockRows + i) << 3), row[c]);
+		rows++;
+		header.putLong(ROW_COUNT_OFFSET, rows);
+	}
+
+	// Map the region starting with the given block, twice as large as the
+	// previous one. The previous region is written out, as it is not used
+	// any more.
+	private void mapRegion(long index) throws IOException {
+		int blocks = 1;
+		if (region != null) {
+			region.force();
+			blocks = (int) Math.min(2L * regionBlocks, Math.max(1L, MAX_REGION_BYTES / blockBytes));
+		}
+		region = null;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, headerLength + index * blockBytes, blocks * blockBytes);
+		regionStart = index;
+		regionBlocks = blocks;
+	}
+
+	/**
+	 * Force the header and the region being written to the storage device.
+	 */
+	public void flush() throws IOException {
+		if (closed)
+			return;
+		if (region != null)
+			region.force();
+		header.force();
+	}
+
+	public void close() throws IOException {
+		if (closed)
+			return;
+		try {
+			flush();
+		} finally {
+			closed = true;
+			region = null;
+			try {
+				// Drop the blocks of the region not written
+				channel.truncate(headerLength + (rows + blockRows - 1) / blockRows * blockBytes);
+			} catch (IOException e) {
+				// A file cannot be truncated while it is mapped on some platforms,
+				// the reader ignores the blocks after the row count anyway
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,462 @@
+package microsim.gui.plot;
+
+import java.util.Arrays;
+
+import org.jfree.data.DomainInfo;
+import org.jfree.data.DomainOrder;
+import org.jfree.data.Range;
+import org.jfree.data.RangeInfo;
+import org.jfree.data.general.DatasetChangeEvent;
+import org.jfree.data.general.DatasetChangeListener;
+import org.jfree.data.general.DatasetUtilities;
+import org.jfree.data.xy.AbstractXYDataset;
+import org.jfree.data.xy.XYDataset;
+
+/**
+ * A level-of-detail view of an XYDataset whose x values are in ascending
+ * order, such as the {@link RingBufferXYDataset} of a time series. The
+ * visible domain is split into as many columns as the chart has pixels and,
+ * for every column, only the first, minimum, maximum and last samples are
+ * exposed (M4 decimation). The shape of the line drawn is the same as the
+ * one of the full series, but the number of items rendered and hit-tested
+ * depends on the pixel width of the chart instead of the length of the run.<br>
+ *
+ * The full resolution data remain available through {@link #getSource()}.
+ * The decimated items of a series are computed lazily. When the source only
+ * grows, the new samples are folded into the columns already computed, so
+ * the cost of a repaint during a live run does not depend on the length of
+ * the run either; the columns are computed again from scratch only when the
+ * number of columns or the domain window changes, or when samples within the
+ * window are dropped from the source, e.g. by a full
+ * {@link RingBufferXYDataset}. With the whole domain, the columns span twice
+ * the current domain, so that they are rebuilt only when the domain doubles.
+ * Series that are not in ascending x order, or that are already smaller than
+ * four items per column, are exposed unchanged.
+ *
+ * <p>
+ * Title: JAS-mine
+ * </p>
+ * <p>
+ * Description: Java Agent-based Simulation library
+ * </p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+public class DecimatedXYDataset extends AbstractXYDataset implements DatasetChangeListener, DomainInfo, RangeInfo {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The number of columns used until the view is told the chart width. */
+	public static final int DEFAULT_COLUMNS = 500;
+
+	private final XYDataset source;
+
+	private int columns = DEFAULT_COLUMNS;
+
+	// The decimated domain window; null means the whole domain of the source
+	private Range window;
+
+	// Per series: the source items exposed, or null if not computed yet
+	private int[][] items = new int[0][];
+	private int[] itemCounts = new int[0];
+
+	// Per series: the columns the samples are folded into, or null
+	private Columns[] states = new Columns[0];
+
+	/**
+	 * Create a decimated view of the given dataset.
+	 *
+	 * @param source
+	 *            The full resolution dataset.
+	 */
+	public DecimatedXYDataset(XYDataset source) {
+		if (source == null)
+			throw new IllegalArgumentException("DecimatedXYDataset: null source dataset.");
+		this.source = source;
+		source.addChangeListener(this);
+	}
+
+	/**
+	 * Return the full resolution dataset, e.g. for export.
+	 *
+	 * @return The source dataset.
+	 */
+	public XYDataset getSource() {
+		return source;
+	}
+
+	/**
+	 * Return the number of columns the domain window is divided into.
+	 *
+	 * @return The number of columns.
+	 */
+	public int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Set the number of columns the domain window is divided into, usually
+	 * the width in pixels of the chart.
+	 *
+	 * @param columns
+	 *            The number of columns, at least 1.
+	 */
+	public void setColumns(int columns) {
+		if (columns < 1)
+			throw new IllegalArgumentException("DecimatedXYDataset: columns must be positive.");
+		if (columns == this.columns)
+			return;
+		this.columns = columns;
+		invalidate();
+	}
+
+	/**
+	 * Return the domain window the samples are decimated in.
+	 *
+	 * @return The window, or null if the whole domain is used.
+	 */
+	public Range getDomainWindow() {
+		return window;
+	}
+
+	/**
+	 * Restrict the decimation to a domain window, e.g. the range of a zoomed
+	 * domain axis, so that zooming in shows the samples at full resolution.
+	 * Samples outside the window are dropped, except the ones immediately
+	 * before and after it which keep the line continuous at the borders.
+	 *
+	 * @param window
+	 *            The domain window, or null to use the whole domain.
+	 */
+	public void setDomainWindow(Range window) {
+		if (window == null ? this.window == null : window.equals(this.window))
+			return;
+		this.window = window;
+		invalidate();
+	}
+
+	// The columns are kept, so that the samples appended are folded into them
+	public void datasetChanged(DatasetChangeEvent event) {
+		if (items.length != source.getSeriesCount())
+			clearCache();
+		else
+			Arrays.fill(items, null);
+		fireDatasetChanged();
+	}
+
+	private void invalidate() {
+		clearCache();
+		fireDatasetChanged();
+	}
+
+	private void clearCache() {
+		int n = source.getSeriesCount();
+		if (items.length != n) {
+			items = new int[n][];
+			itemCounts = new int[n];
+			states = new Columns[n];
+		}
+		else {
+			Arrays.fill(items, null);
+			Arrays.fill(states, null);
+		}
+	}
+
+	public int getSeriesCount() {
+		return source.getSeriesCount();
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Comparable getSeriesKey(int series) {
+		return source.getSeriesKey(series);
+	}
+
+	public DomainOrder getDomainOrder() {
+		return source.getDomainOrder();
+	}
+
+	public int getItemCount(int series) {
+		return decimate(series);
+	}
+
+	public double getXValue(int series, int item) {
+		return source.getXValue(series, sourceItem(series, item));
+	}
+
+	public double getYValue(int series, int item) {
+		return source.getYValue(series, sourceItem(series, item));
+	}
+
+	public Number getX(int series, int item) {
+		return source.getX(series, sourceItem(series, item));
+	}
+
+	public Number getY(int series, int item) {
+		return source.getY(series, sourceItem(series, item));
+	}
+
+	// The bounds are the ones of the full data, so that the auto-range of the
+	// axes does not depend on the decimation
+	public double getDomainLowerBound(boolean includeInterval) {
+		Range r = getDomainBounds(includeInterval);
+		return r == null ? Double.NaN : r.getLowerBound();
+	}
+
+	public double getDomainUpperBound(boolean includeInterval) {
+		Range r = getDomainBounds(includeInterval);
+		return r == null ? Double.NaN : r.getUpperBound();
+	}
+
+	public Range getDomainBounds(boolean includeInterval) {
+		return DatasetUtilities.findDomainBounds(source, includeInterval);
+	}
+
+	public double getRangeLowerBound(boolean includeInterval) {
+		Range r = getRangeBounds(includeInterval);
+		return r == null ? Double.NaN : r.getLowerBound();
+	}
+
+	public double getRangeUpperBound(boolean includeInterval) {
+		Range r = getRangeBounds(includeInterval);
+		return r == null ? Double.NaN : r.getUpperBound();
+	}
+
+	public Range getRangeBounds(boolean includeInterval) {
+		return DatasetUtilities.findRangeBounds(source, includeInterval);
+	}
+
+	private int sourceItem(int series, int item) {
+		if (item < 0 || item >= decimate(series))
+			throw new IndexOutOfBoundsException("DecimatedXYDataset: item " + item + " out of bounds.");
+		return items[series][item];
+	}
+
+	// Compute the items of a series if needed and return their number
+	private int decimate(int series) {
+		if (items.length != source.getSeriesCount())
+			clearCache();
+		if (items[series] != null)
+			return itemCounts[series];
+
+		int n = source.getItemCount(series);
+		long base = evictedCount(series);
+		Columns state = states[series];
+		if (state != null && !(state.isAppendOf(series, n, base) && state.fold(series, n, base)))
+			state = null;
+		if (state == null)
+			state = build(series, n, base);
+		states[series] = state;
+
+		int[] selected;
+		int count;
+		if (state == null) {
+			// Nothing to decimate: expose the items in the window unchanged
+			int from = 0, to = n;
+			if (n > 0 && window != null && source.getDomainOrder() == DomainOrder.ASCENDING) {
+				from = Math.max(0, lowerIndex(series, n, window.getLowerBound()) - 1);
+				to = Math.min(n, lowerIndex(series, n, Math.nextUp(window.getUpperBound())) + 1);
+			}
+			count = to - from;
+			selected = new int[count];
+			for (int i = 0; i < count; i++)
+				selected[i] = from + i;
+		}
+		else {
+			if (state.selected == null)
+				state.selected = new int[4 * state.first.length + 2];
+			selected = state.selected;
+			count = state.emit(selected, base);
+		}
+
+		items[series] = selected;
+		itemCounts[series] = count;
+		return count;
+	}
+
+
+	// The number of items dropped from the front of the series, if known
+	private long evictedCount(int series) {
+		return source instanceof RingBufferXYDataset ? ((RingBufferXYDataset) source).getEvictedCount(series) : 0;
+	}
+
+	// Fold all the items of the window into new columns, or return null if
+	// the items are too few or not in ascending order
+	private Columns build(int series, int n, long base) {
+		if (n == 0 || source.getDomainOrder() != DomainOrder.ASCENDING)
+			return null;
+
+		int from, to, buckets = columns;
+		double lo, hi;
+		if (window != null) {
+			from = Math.max(0, lowerIndex(series, n, window.getLowerBound()) - 1);
+			to = Math.min(n, lowerIndex(series, n, Math.nextUp(window.getUpperBound())) + 1);
+			lo = window.getLowerBound();
+			hi = window.getUpperBound();
+		}
+		else {
+			// Twice the domain, with twice the columns, leaves room for the samples to come
+			from = 0;
+			to = n;
+			lo = source.getXValue(series, 0);
+			hi = lo + 2.0 * (source.getXValue(series, n - 1) - lo);
+			buckets = 2 * columns;
+		}
+		if (to - from <= 4 * columns || !(hi > lo) || Double.isInfinite(hi - lo))
+			return null;
+
+		Columns state = new Columns(buckets, lo, hi, window == null);
+		state.foldedEnd = base + from;
+		if (!state.fold(series, n, base))
+			return null;
+		return state;
+	}
+
+	// The first, min, max and last items of each column, by their position in
+	// the source counting the dropped items, so that it does not change when
+	// older items are dropped
+	private class Columns {
+
+		final long[] first, last, min, max;
+		final double[] minY, maxY;
+		final double lo, hi, scale;
+		final boolean wholeDomain;
+
+		long before = -1, after = -1;	//The items next to the window, -1 if none
+		long start = -1;				//The first item folded
+		double startX;
+		long foldedEnd;					//The position following the last item folded
+		double lastX;
+		long base;						//The items dropped when last folded
+
+		int[] selected;					//The array of the exposed items, reused
+
+		Columns(int buckets, double lo, double hi, boolean wholeDomain) {
+			first = new long[buckets];
+			last = new long[buckets];
+			min = new long[buckets];
+			max = new long[buckets];
+			minY = new double[buckets];
+			maxY = new double[buckets];
+			Arrays.fill(first, -1);
+			this.lo = lo;
+			this.hi = hi;
+			this.wholeDomain = wholeDomain;
+			scale = buckets / (hi - lo);
+		}
+
+		// True if the source has only grown since the items were folded, and
+		// the items dropped meanwhile were all before the window
+		boolean isAppendOf(int series, int n, long base) {
+			if (base < this.base || base + n < foldedEnd)
+				return false;
+			if (base > this.base && (before < 0 || base > before))
+				return false;
+			if (start >= 0 && Double.compare(source.getXValue(series, (int) (start - base)), startX) != 0)
+				return false;
+			return foldedEnd <= base || Double.compare(source.getXValue(series, (int) (foldedEnd - 1 - base)), lastX) == 0;
+		}
+
+		// Fold the items from foldedEnd to the end of the source. It returns
+		// false if an item falls beyond the whole domain the columns span.
+		boolean fold(int series, int n, long base) {
+			this.base = base;
+			long end = base + n;
+			if (after >= 0 || foldedEnd >= end) {
+				foldedEnd = Math.max(foldedEnd, end);
+				if (n > 0)
+					lastX = source.getXValue(series, n - 1);
+				return true;
+			}
+
+			for (long p = foldedEnd; p < end; p++) {
+				int i = (int) (p - base);
+				double x = source.getXValue(series, i);
+				if (start < 0) {
+					start = p;
+					startX = x;
+				}
+				if (x < lo) {
+					before = p;
+					continue;
+				}
+				if (x > hi) {
+					if (wholeDomain)
+						return false;
+					after = p;
+					break;
+				}
+				int c = (int) ((x - lo) * scale);
+				if (c >= first.length)
+					c = first.length - 1;
+
+				double y = source.getYValue(series, i);
+				if (first[c] < 0) {
+					first[c] = last[c] = min[c] = max[c] = p;
+					minY[c] = maxY[c] = y;
+					continue;
+				}
+				last[c] = p;
+				if (y < minY[c]) {
+					min[c] = p;
+					minY[c] = y;
+				}
+				if (y > maxY[c]) {
+					max[c] = p;
+					maxY[c] = y;
+				}
+			}
+			foldedEnd = end;
+			lastX = source.getXValue(series, n - 1);
+			return true;
+		}
+
+		// Emit first, min, max and last of each column in item order
+		int emit(int[] selected, long base) {
+			int count = 0;
+			if (before >= 0)
+				selected[count++] = (int) (before - base);
+			for (int c = 0; c < first.length; c++) {
+				if (first[c] < 0)
+					continue;
+				long a = Math.min(min[c], max[c]);
+				long b = Math.max(min[c], max[c]);
+				selected[count++] = (int) (first[c] - base);
+				if (a != first[c] && a != last[c])
+					selected[count++] = (int) (a - base);
+				if (b != a && b != first[c] && b != last[c])
+					selected[count++] = (int) (b - base);
+				if (last[c] != first[c])
+					selected[count++] = (int) (last[c] - base);
+			}
+			if (after >= 0)
+				selected[count++] = (int) (after - base);
+			return count;
+		}
+	}
+
+	// Index of the first item whose x value is not less than x
+	private int lowerIndex(int series, int n, double x) {
+		int low = 0, high = n;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (source.getXValue(series, mid) < x)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+}
@@ -0,0 +1,171 @@
+package microsim.gui.plot;
+
+import java.util.Arrays;
+
+/**
+ * The bins of one histogram series, stored in primitive arrays which are
+ * reused each time the series is binned again. The binning methods accept
+ * double, float, int and long arrays directly, so that the values of the
+ * sources never need to be widened into a new double array.<br>
+ *
+ * The bin boundaries and the assignment of the values to the bins are the
+ * same as JFreeChart's HistogramDataset: the range [minimum, maximum] is
+ * split into bins of equal width, values below the minimum go to the first
+ * bin, and values not less than the maximum (or NaN) go to the last one.
+ */
+class HistogramBins {
+
+	Comparable<?> key;
+
+	/** The number of values in each bin. Only the first binCount entries are used. */
+	int[] counts = new int[0];
+
+	int binCount;
+
+	double minimum;
+
+	double maximum;
+
+	double binWidth;
+
+	/** The number of values binned. */
+	int total;
+
+	double getStartX(int bin) {
+		checkBin(bin);
+		return bin == 0 ? minimum : minimum + bin * binWidth;
+	}
+
+	double getEndX(int bin) {
+		checkBin(bin);
+		return bin == binCount - 1 ? maximum : minimum + (bin + 1) * binWidth;
+	}
+
+	int getCount(int bin) {
+		checkBin(bin);
+		return counts[bin];
+	}
+
+	private void checkBin(int bin) {
+		if (bin < 0 || bin >= binCount)
+			throw new IndexOutOfBoundsException("HistogramBins: bin " + bin + " out of bounds.");
+	}
+
+	// The width of the range, used by binIndex
+	private double range;
+
+	// Set up the bins, over the given bounds or, if either is null, over the
+	// range of the values
+	private void reset(Comparable<?> key, int bins, int length, Double minimum, Double maximum, double min, double max) {
+		if (key == null)
+			throw new IllegalArgumentException("HistogramBins: null series key.");
+		if (bins < 1)
+			throw new IllegalArgumentException("HistogramBins: the number of bins must be at least 1.");
+		if ((minimum == null || maximum == null) && length < 1)
+			throw new IllegalArgumentException("HistogramBins: null or zero length values array.");
+
+		if (minimum != null && maximum != null) {
+			min = minimum;
+			max = maximum;
+		}
+		this.key = key;
+		this.binCount = bins;
+		this.minimum = min;
+		this.maximum = max;
+		this.binWidth = (max - min) / bins;
+		this.range = max - min;
+		this.total = length;
+		if (counts.length < bins)
+			counts = new int[bins];
+		else
+			Arrays.fill(counts, 0, bins, 0);
+	}
+
+	// Same arithmetic as HistogramDataset, so that values on the boundary of
+	// two bins are assigned to the same bin
+	private int binIndex(double value) {
+		if (!(value < maximum))
+			return binCount - 1;
+		double fraction = (value - minimum) / range;
+		if (fraction < 0.0)
+			return 0;
+		int index = (int) (fraction * binCount);
+		return index >= binCount ? binCount - 1 : index;
+	}
+
+	/**
+	 * Bin the values into the given number of bins.
+	 *
+	 * @param key
+	 *            The series key.
+	 * @param values
+	 *            The values.
+	 * @param bins
+	 *            The number of bins.
+	 * @param minimum
+	 *            The lower bound of the first bin. If either minimum or
+	 *            maximum is null, the range of the values is used.
+	 * @param maximum
+	 *            The upper bound of the last bin.
+	 */
+	void bin(Comparable<?> key, double[] values, int bins, Double minimum, Double maximum) {
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		if (minimum == null || maximum == null)
+			for (double v : values) {
+				if (v < min)
+					min = v;
+				if (v > max)
+					max = v;
+			}
+		reset(key, bins, values.length, minimum, maximum, min, max);
+		int[] c = counts;
+		for (double v : values)
+			c[binIndex(v)]++;
+	}
+
+	void bin(Comparable<?> key, float[] values, int bins, Double minimum, Double maximum) {
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		if (minimum == null || maximum == null)
+			for (float v : values) {
+				if (v < min)
+					min = v;
+				if (v > max)
+					max = v;
+			}
+		reset(key, bins, values.length, minimum, maximum, min, max);
+		int[] c = counts;
+		for (float v : values)
+			c[binIndex(v)]++;
+	}
+
+	void bin(Comparable<?> key, int[] values, int bins, Double minimum, Double maximum) {
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		if (minimum == null || maximum == null)
+			for (int v : values) {
+				if (v < min)
+					min = v;
+				if (v > max)
+					max = v;
+			}
+		reset(key, bins, values.length, minimum, maximum, min, max);
+		int[] c = counts;
+		for (int v : values)
+			c[binIndex(v)]++;
+	}
+
+	void bin(Comparable<?> key, long[] values, int bins, Double minimum, Double maximum) {
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		if (minimum == null || maximum == null)
+			for (long v : values) {
+				if (v < min)
+					min = v;
+				if (v > max)
+					max = v;
+			}
+		reset(key, bins, values.length, minimum, maximum, min, max);
+		int[] c = counts;
+		for (long v : values)
+			c[binIndex(v)]++;
+	}
+
+}
@@ -1,11 +1,12 @@
 package microsim.gui.plot;
 
 import java.awt.Color;
+import java.awt.GraphicsEnvironment;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JInternalFrame;
 
-import microsim.engine.SimulationEngine;
 import microsim.event.CommonEventType;
 import microsim.event.EventListener;
 import microsim.statistics.IDoubleArraySource;
@@ -22,8 +23,6 @@ import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.StandardXYBarPainter;
 import org.jfree.chart.renderer.xy.XYBarRenderer;
-import org.jfree.data.general.SeriesChangeEvent;
-import org.jfree.data.statistics.HistogramDataset;
 import org.jfree.data.statistics.HistogramType;
 
 /**
@@ -67,7 +66,7 @@ public class HistogramSimulationPlotter extends JInternalFrame implements EventL
 	
 	private ArrayList<ArraySource> sources;
 	
-	private HistogramDataset dataset;
+	private PrimitiveHistogramDataset dataset;
 	
 	private HistogramType type;
 	
@@ -76,6 +75,18 @@ public class HistogramSimulationPlotter extends JInternalFrame implements EventL
 	private Double minimum;
 	
 	private Double maximum;
+
+	// The bins of the last update waiting to be shown, and a set of bins no 
+	// longer shown whose arrays are reused by the next update
+	private final AtomicReference<HistogramBins[]> pendingBins = new AtomicReference<HistogramBins[]>();
+
+	private final AtomicReference<HistogramBins[]> spareBins = new AtomicReference<HistogramBins[]>();
+
+	private final Runnable renderTask = new Runnable() {
+		public void run() {
+			render();
+		}
+	};
 	
 	/**
 	 * Constructor for histogram chart objects with chart legend displayed by default and
@@ -128,7 +139,8 @@ public class HistogramSimulationPlotter extends JInternalFrame implements EventL
 		
 		sources = new ArrayList<ArraySource>();
 		
-		dataset = new HistogramDataset();
+		dataset = new PrimitiveHistogramDataset();
+		dataset.setType(type);
 		
 		String yaxis;
 		if(type.equals(HistogramType.FREQUENCY)) {
@@ -176,16 +188,28 @@ public class HistogramSimulationPlotter extends JInternalFrame implements EventL
         final NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
         rangeAxis.setStandardTickUnits(NumberAxis.createStandardTickUnits());
         
-        final ChartPanel chartPanel = new ChartPanel(chart);
+        if (!GraphicsEnvironment.isHeadless()) {
+	        final ChartPanel chartPanel = new ChartPanel(chart);
                 
-        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
+	        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
 			
-        setContentPane(chartPanel);
+	        setContentPane(chartPanel);
+        }
         
         this.setSize(400, 400);
 	}
 	
 
+	/**
+	 * Return the chart of the plotter, e.g. to draw it offscreen with a
+	 * {@link PlotRecorder}.
+	 *
+	 * @return The chart.
+	 */
+	public JFreeChart getChart() {
+		return chart;
+	}
+
 	public void onEvent(Enum<?> type) {
 		if (type instanceof CommonEventType && type.equals(CommonEventType.Update)) {
 			update();
@@ -194,9 +218,14 @@ public class HistogramSimulationPlotter extends JInternalFrame implements EventL
 
 	public void update() {
 
-		dataset = new HistogramDataset();
-		dataset.setType(type);
-		chart.getXYPlot().setDataset(dataset);
+		// The sources are binned on the simulation thread, recycling the bins of 
+		// a previous update, and shown by the dataset on the EDT.
+		HistogramBins[] frame = spareBins.getAndSet(null);
+		if (frame == null || frame.length != sources.size()) {
+			frame = new HistogramBins[sources.size()];
+			for (int i = 0; i < frame.length; i++)
+				frame[i] = new HistogramBins();
+		}
 		
 //		int s = 0;
 //		Color color = (Color) chart.getXYPlot().getRenderer().getItemPaint(s, 0);
@@ -207,17 +236,23 @@ public class HistogramSimulationPlotter extends JInternalFrame implements EventL
 		
 		for (int i = 0; i < sources.size(); i++) {
 			ArraySource cs = (ArraySource) sources.get(i);
-			double[] vals = cs.getDoubleArray();
-			
-			if(minimum != null && maximum != null) { 
-				dataset.addSeries(cs.label, vals, bins, minimum, maximum);
-			}
-			else dataset.addSeries(cs.label, vals, bins);
-			
-			
+			cs.bin(frame[i]);
 		}
-		dataset.seriesChanged(new SeriesChangeEvent(new String("Update at time " + SimulationEngine.getInstance().getTime())));
+		
+		HistogramBins[] dropped = pendingBins.getAndSet(frame);
+		if (dropped != null)		//Never shown, as a newer update arrived before the next frame
+			spareBins.set(dropped);
+		PlotRenderScheduler.getInstance().requestRender(renderTask);
+	}
+
+	private void render() {
+		HistogramBins[] frame = pendingBins.getAndSet(null);
+		if (frame == null)
+			return;
 
+		HistogramBins[] previous = dataset.setBins(frame);
+		if (previous != null)
+			spareBins.set(previous);
 	}
 
 
@@ -226,7 +261,8 @@ public class HistogramSimulationPlotter extends JInternalFrame implements EventL
 		public String label;
 		protected boolean isUpdatable;
 
-		public abstract double[] getDoubleArray();
+		// Bin the values of the source into target, without copying them
+		public abstract void bin(HistogramBins target);
 
 	}
 	
@@ -244,10 +280,10 @@ public class HistogramSimulationPlotter extends JInternalFrame implements EventL
 		 * 
 		 * @see jas.plot.TimePlot.Source#getDouble()
 		 */
-		public double[] getDoubleArray() {
+		public void bin(HistogramBins target) {
 			if (isUpdatable)
 				((IUpdatableSource) source).updateSource();
-			return source.getDoubleArray();
+			target.bin(label, source.getDoubleArray(), bins, minimum, maximum);
 		}
 	}
 	
@@ -265,15 +301,10 @@ public class HistogramSimulationPlotter extends JInternalFrame implements EventL
 		 * 
 		 * @see jas.plot.TimePlot.Source#getDouble()
 		 */
-		public double[] getDoubleArray() {
+		public void bin(HistogramBins target) {
 			if (isUpdatable)
 				((IUpdatableSource) source).updateSource();
-			float[] array = source.getFloatArray();
-			double[] output = new double[array.length];
-		    for (int i = 0; i < array.length; i++)
-		        output[i] = array[i];
-		    
-		    return output;
+			target.bin(label, source.getFloatArray(), bins, minimum, maximum);
 		}
 	}
 	
@@ -291,15 +322,10 @@ public class HistogramSimulationPlotter extends JInternalFrame implements EventL
 		 * 
 		 * @see jas.plot.TimePlot.Source#getDouble()
 		 */
-		public double[] getDoubleArray() {
+		public void bin(HistogramBins target) {
 			if (isUpdatable)
 				((IUpdatableSource) source).updateSource();
-			int[] array = source.getIntArray();
-			double[] output = new double[array.length];
-		    for (int i = 0; i < array.length; i++)
-		        output[i] = array[i];
-		    
-		    return output;
+			target.bin(label, source.getIntArray(), bins, minimum, maximum);
 		}
 	}
 	
@@ -317,15 +343,10 @@ public class HistogramSimulationPlotter extends JInternalFrame implements EventL
 		 * 
 		 * @see jas.plot.TimePlot.Source#getDouble()
 		 */
-		public double[] getDoubleArray() {
+		public void bin(HistogramBins target) {
 			if (isUpdatable)
 				((IUpdatableSource) source).updateSource();
-			long[] array = source.getLongArray();
-			double[] output = new double[array.length];
-		    for (int i = 0; i < array.length; i++)
-		        output[i] = array[i];
-		    
-		    return output;
+			target.bin(label, source.getLongArray(), bins, minimum, maximum);
 		}
 	}
 	
@@ -1,11 +1,16 @@
 package microsim.gui.plot;
 
 import java.awt.Color;
+import java.awt.GraphicsEnvironment;
 import java.awt.Paint;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JInternalFrame;
 
+import microsim.engine.SimulationEngine;
 import microsim.event.CommonEventType;
 import microsim.event.EventListener;
 import microsim.gui.colormap.ColorMap;
@@ -70,6 +75,8 @@ public class IndividualBarSimulationPlotter extends JInternalFrame implements Ev
 	private ArrayList<Source> sources;
 	private ArrayList<String> categories;
 	
+	private JFreeChart chart;
+
 	private DefaultCategoryDataset dataset;
 		
 	private BarRenderer renderer;
@@ -77,6 +84,16 @@ public class IndividualBarSimulationPlotter extends JInternalFrame implements Ev
 	private String yaxis;
 	
 	private FixedColorMap colorMap;
+
+	private final AtomicReference<double[]> pendingValues = new AtomicReference<double[]>();
+
+	private volatile PlotDataSink dataSink;		//Not null while the sampled values are exported
+
+	private final Runnable renderTask = new Runnable() {
+		public void run() {
+			render();
+		}
+	};
 	
 	public IndividualBarSimulationPlotter(String title, String yaxis) {
 		super();
@@ -90,7 +107,7 @@ public class IndividualBarSimulationPlotter extends JInternalFrame implements Ev
 		
 		dataset = new DefaultCategoryDataset();
         
-        final JFreeChart chart = ChartFactory.createBarChart(
+        chart = ChartFactory.createBarChart(
                 title,      // chart title
                 "Categories",                      // x axis label                
                 yaxis,                      // y axis label
@@ -128,15 +145,55 @@ public class IndividualBarSimulationPlotter extends JInternalFrame implements Ev
         );
         // OPTIONAL CUSTOMISATION COMPLETED.
         
-        final ChartPanel chartPanel = new ChartPanel(chart);
+        if (!GraphicsEnvironment.isHeadless()) {
+	        final ChartPanel chartPanel = new ChartPanel(chart);
                 
-        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
+	        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
 			
-        setContentPane(chartPanel);
+	        setContentPane(chartPanel);
+        }
         
         this.setSize(400, 400);
 	}
 
+	/**
+	 * Return the chart of the plotter, e.g. to draw it offscreen with a
+	 * {@link PlotRecorder}.
+	 *
+	 * @return The chart.
+	 */
+	public JFreeChart getChart() {
+		return chart;
+	}
+
+	/**
+	 * Start exporting the sampled values to a columnar data file, which can be
+	 * converted to CSV with {@link ColumnarDataReader}. Each update appends a
+	 * row with the simulation time and the value of each bar; bars added
+	 * after the export has started are not exported.
+	 *
+	 * @param file
+	 *            The file, which is overwritten.
+	 * @throws IOException
+	 *             If the file cannot be created.
+	 */
+	public void startDataExport(File file) throws IOException {
+		PlotDataSink sink = new PlotDataSink(file, categories.toArray(new String[categories.size()]));
+		stopDataExport();
+		dataSink = sink;
+	}
+
+	/**
+	 * Stop exporting the sampled values and close the file.
+	 */
+	public void stopDataExport() {
+		PlotDataSink sink = dataSink;
+		if (sink != null) {
+			dataSink = null;
+			sink.close();
+		}
+	}
+
 	public void onEvent(Enum<?> type) {
 		if (type instanceof CommonEventType && type.equals(CommonEventType.Update)) {
 			update();
@@ -144,13 +201,34 @@ public class IndividualBarSimulationPlotter extends JInternalFrame implements Ev
 	}
 
 	public void update() {
+		// Values are sampled on the simulation thread; the dataset is only 
+		// modified on the EDT by the PlotRenderScheduler.
+		double[] values = new double[sources.size()];
+		PlotDataSink sink = dataSink;
 		for (int i = 0; i < sources.size(); i++) {
 			Source source = sources.get(i);
-			double d = source.getDouble();
+			values[i] = source.getDouble();
+			if (sink != null)
+				sink.set(i, values[i]);
+		}
+		if (sink != null)
+			sink.append(SimulationEngine.getInstance().getTime());
+		pendingValues.set(values);
+		PlotRenderScheduler.getInstance().requestRender(renderTask);
+	}
+
+	private void render() {
+		double[] values = pendingValues.getAndSet(null);
+		if (values == null)
+			return;
+
+		dataset.setNotify(false);
+		for (int i = 0; i < values.length; i++) {
 			String category = categories.get(i);
 			
-			dataset.addValue(d, yaxis, category);  						
+			dataset.addValue(values[i], yaxis, category);  						
 		}		
+		dataset.setNotify(true);		//Fires a single change event for the whole update
 	}
 	
 	private abstract class Source {
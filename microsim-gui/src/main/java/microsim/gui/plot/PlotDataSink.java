@@ -0,0 +1,77 @@
+package microsim.gui.plot;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Exports the values sampled by a plotter to a {@link ColumnarDataWriter}:
+ * each update of the plotter is a row made of the simulation time followed by
+ * the values sampled. The values are set into a reused row array, so the
+ * export does not allocate anything. As the plotters are updated by
+ * simulation events, which cannot throw checked exceptions, a write error is
+ * logged and stops the export. The rows are appended by the thread updating
+ * the plotter while the export may be stopped by another one, so appending
+ * and closing are synchronized, and the rows appended after the close are
+ * dropped.
+ */
+final class PlotDataSink {
+
+	private static final Logger log = Logger.getLogger(PlotDataSink.class);
+
+	private final ColumnarDataWriter writer;
+
+	private final double[] row;
+
+	private boolean failed;		//Also set when closed
+
+	/**
+	 * @param file
+	 *            The file to write.
+	 * @param valueNames
+	 *            The names of the value columns, which follow the "time"
+	 *            column.
+	 */
+	PlotDataSink(File file, String[] valueNames) throws IOException {
+		String[] columns = new String[valueNames.length + 1];
+		columns[0] = "time";
+		System.arraycopy(valueNames, 0, columns, 1, valueNames.length);
+		writer = new ColumnarDataWriter(file, columns);
+		row = new double[columns.length];
+	}
+
+	/**
+	 * Set a value of the current row. Values beyond the columns of the file,
+	 * e.g. of series added after the export started, are ignored.
+	 */
+	void set(int index, double value) {
+		if (index + 1 < row.length)
+			row[index + 1] = value;
+	}
+
+	/**
+	 * Append the current row.
+	 */
+	synchronized void append(double time) {
+		if (failed)
+			return;
+		row[0] = time;
+		try {
+			writer.append(row);
+		} catch (IOException e) {
+			failed = true;
+			log.error("Error exporting the plot data, the export is stopped: " + e.getMessage());
+		}
+	}
+
+	synchronized void close() {
+		failed = true;
+		try {
+			writer.close();
+		} catch (IOException e) {
+			log.error("Error closing the plot data export: " + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,272 @@
+package microsim.gui.plot;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+
+import microsim.engine.SimulationEngine;
+import microsim.event.CommonEventType;
+import microsim.event.EventListener;
+import microsim.gui.utils.ImageGenerator;
+
+import org.apache.batik.svggen.SVGGraphics2D;
+import org.apache.log4j.Logger;
+import org.jfree.chart.JFreeChart;
+
+/**
+ * The PlotRecorder draws the charts of the plotters offscreen and writes them
+ * to PNG or SVG files, so that charts can be produced by batch runs with no
+ * display (java.awt.headless=true). The plotters are created and fed with
+ * addSeries, addCollectionSource, etc. exactly as in the shell; in a headless
+ * environment they do not create any Swing component and update their datasets
+ * synchronously, and their charts are registered with
+ * {@link #addChart(String, JFreeChart)} using the plotters' getChart()
+ * method.<br>
+ *
+ * The recorder is scheduled like a plotter, with a CommonEventType.Update
+ * event following the update of the plotters. At each event whose simulation
+ * time reaches the next multiple of the recording interval every chart is
+ * written to the output directory, in a file named after the chart and the
+ * simulation time, e.g. "population_10.png". PNG images are drawn into a
+ * single offscreen BufferedImage reused across the charts.
+ *
+ * <p>
+ * Title: JAS-mine
+ * </p>
+ * <p>
+ * Description: Java Agent-based Simulation library
+ * </p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+public class PlotRecorder implements EventListener {
+
+	private static final Logger log = Logger.getLogger(PlotRecorder.class);
+
+	/** The image formats the charts can be written to. */
+	public enum Format {
+		PNG, SVG
+	}
+
+	/** The default size of the images, the preferred size of the plotters' chart panels. */
+	public static final int DEFAULT_WIDTH = 500, DEFAULT_HEIGHT = 270;
+
+	private final File directory;
+
+	private final Map<String, JFreeChart> charts = new LinkedHashMap<String, JFreeChart>();
+
+	private Format format = Format.PNG;
+
+	private int width = DEFAULT_WIDTH, height = DEFAULT_HEIGHT;
+
+	private double interval = 0.0;
+
+	private double nextTime = Double.NEGATIVE_INFINITY;
+
+	private BufferedImage image;		//The offscreen image, reused while the size does not change
+
+	/**
+	 * Create a recorder writing the charts to the given directory, which is
+	 * created when the first charts are written.
+	 *
+	 * @param directory
+	 *            The output directory.
+	 */
+	public PlotRecorder(String directory) {
+		this(new File(directory));
+	}
+
+	public PlotRecorder(File directory) {
+		if (directory == null)
+			throw new IllegalArgumentException("PlotRecorder: null output directory.");
+		this.directory = directory;
+	}
+
+	/**
+	 * Add a chart to be recorded.
+	 *
+	 * @param name
+	 *            The name of the chart, used as prefix of the file names.
+	 * @param chart
+	 *            The chart, usually returned by the getChart() method of a
+	 *            plotter.
+	 */
+	public void addChart(String name, JFreeChart chart) {
+		if (name == null || chart == null)
+			throw new IllegalArgumentException("PlotRecorder: null chart name or chart.");
+		if (charts.containsKey(name))
+			throw new IllegalArgumentException("PlotRecorder: a chart named " + name + " is already recorded.");
+		charts.put(name, chart);
+	}
+
+	public void removeChart(String name) {
+		charts.remove(name);
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	public void setFormat(Format format) {
+		if (format == null)
+			throw new IllegalArgumentException("PlotRecorder: null format.");
+		this.format = format;
+	}
+
+	/**
+	 * Set the size of the images.
+	 *
+	 * @param width
+	 *            The width in pixels.
+	 * @param height
+	 *            The height in pixels.
+	 */
+	public void setSize(int width, int height) {
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("PlotRecorder: the image size must be positive.");
+		this.width = width;
+		this.height = height;
+	}
+
+	public double getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Set the simulation time interval between two recordings. The charts are
+	 * recorded at the first event at or after each multiple of the interval.
+	 *
+	 * @param interval
+	 *            The interval. If 0, the charts are recorded at every event.
+	 */
+	public void setInterval(double interval) {
+		if (!(interval >= 0.0))
+			throw new IllegalArgumentException("PlotRecorder: the interval must be non negative.");
+		this.interval = interval;
+		nextTime = Double.NEGATIVE_INFINITY;
+	}
+
+	public void onEvent(Enum<?> type) {
+		if (type instanceof CommonEventType && type.equals(CommonEventType.Update)) {
+			double time = SimulationEngine.getInstance().getTime();
+			if (time < nextTime)
+				return;
+			nextTime = interval > 0.0 ? (Math.floor(time / interval) + 1.0) * interval : time;
+			try {
+				record(time);
+			} catch (IOException e) {
+				log.error("Error recording the charts: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Write all the charts now. The pending updates of the plotters are
+	 * applied first; when a display is available the charts are drawn on the
+	 * Event Dispatch Thread.
+	 *
+	 * @param time
+	 *            The simulation time, used in the file names.
+	 * @throws IOException
+	 *             If a file cannot be written.
+	 */
+	public void record(final double time) throws IOException {
+		PlotRenderScheduler.getInstance().flush();
+		if (GraphicsEnvironment.isHeadless() || SwingUtilities.isEventDispatchThread()) {
+			write(time);
+			return;
+		}
+
+		final IOException[] failure = new IOException[1];
+		try {
+			SwingUtilities.invokeAndWait(new Runnable() {
+				public void run() {
+					try {
+						write(time);
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		if (failure[0] != null)
+			throw failure[0];
+	}
+
+	private void write(double time) throws IOException {
+		if (charts.isEmpty())
+			return;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("PlotRecorder: cannot create the directory " + directory);
+
+		for (Map.Entry<String, JFreeChart> entry : charts.entrySet()) {
+			File file = new File(directory, fileName(entry.getKey(), time));
+			if (format == Format.SVG)
+				writeSVG(entry.getValue(), file);
+			else
+				writePNG(entry.getValue(), file);
+		}
+	}
+
+	private String fileName(String name, double time) {
+		String t = time == Math.rint(time) && Math.abs(time) < 1e15 ? Long.toString((long) time) : Double.toString(time);
+		return name + "_" + t + (format == Format.SVG ? ".svg" : ".png");
+	}
+
+	private void writePNG(JFreeChart chart, File file) throws IOException {
+		if (image == null || image.getWidth() != width || image.getHeight() != height)
+			image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+		Graphics2D g2 = image.createGraphics();
+		try {
+			chart.draw(g2, new Rectangle2D.Double(0, 0, width, height));
+		} finally {
+			g2.dispose();
+		}
+		if (!ImageIO.write(image, "png", file))
+			throw new IOException("PlotRecorder: no PNG writer available.");
+	}
+
+	private void writeSVG(JFreeChart chart, File file) throws IOException {
+		SVGGraphics2D svg = ImageGenerator.getSVGDocument();
+		svg.setSVGCanvasSize(new Dimension(width, height));
+		chart.draw(svg, new Rectangle2D.Double(0, 0, width, height));
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			svg.stream(out, true);
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+package microsim.gui.plot;
+
+import java.awt.GraphicsEnvironment;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * The PlotRenderScheduler decouples the sampling of the plotters from the
+ * rendering of their charts. Plotters sample their sources on the simulation
+ * thread and hand a render task to the scheduler; the scheduler coalesces
+ * the requests and runs each pending task at most once per frame on the
+ * Event Dispatch Thread, so that JFreeChart datasets are only modified on
+ * the EDT and a burst of Update events produces a single chart redraw.<br>
+ *
+ * The scheduler is shared by all the plotters of the microsim.gui.plot
+ * package. The frame rate defaults to {@link #DEFAULT_FRAME_RATE} frames per
+ * second; setting it to 0 makes the scheduler run the tasks immediately on
+ * the calling thread, which reproduces the old synchronous behaviour. In a
+ * headless environment (java.awt.headless=true) the shared scheduler is
+ * synchronous, so that the datasets are up to date whenever a
+ * {@link PlotRecorder} draws the charts.
+ *
+ * <p>
+ * Title: JAS-mine
+ * </p>
+ * <p>
+ * Description: Java Agent-based Simulation library
+ * </p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+public class PlotRenderScheduler {
+
+	/** The default number of chart refreshes per second. */
+	public static final int DEFAULT_FRAME_RATE = 30;
+
+	private static PlotRenderScheduler instance;
+
+	private final Set<Runnable> pending = new LinkedHashSet<Runnable>();
+
+	private final List<Runnable> running = new ArrayList<Runnable>();
+
+	private final Timer timer;
+
+	private volatile int frameRate;
+
+	/**
+	 * Return the scheduler shared by the plotters.
+	 *
+	 * @return The shared PlotRenderScheduler.
+	 */
+	public static synchronized PlotRenderScheduler getInstance() {
+		if (instance == null)
+			instance = new PlotRenderScheduler(GraphicsEnvironment.isHeadless() ? 0 : DEFAULT_FRAME_RATE);
+		return instance;
+	}
+
+	/**
+	 * Create a scheduler refreshing the charts at the given frame rate.
+	 *
+	 * @param frameRate
+	 *            The maximum number of refreshes per second. If 0 the tasks
+	 *            are run synchronously on the calling thread.
+	 */
+	public PlotRenderScheduler(int frameRate) {
+		timer = new Timer(1000 / DEFAULT_FRAME_RATE, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				runPending();
+			}
+		});
+		timer.setCoalesce(true);
+		if (frameRate > 0)
+			setFrameRate(frameRate);
+	}
+
+	/**
+	 * Return the current frame rate.
+	 *
+	 * @return The maximum number of refreshes per second, 0 if the scheduler
+	 *         is synchronous.
+	 */
+	public int getFrameRate() {
+		return frameRate;
+	}
+
+	/**
+	 * Set the maximum number of chart refreshes per second.
+	 *
+	 * @param frameRate
+	 *            The frame rate. If 0 the render tasks are executed
+	 *            immediately on the thread requesting them.
+	 */
+	public void setFrameRate(int frameRate) {
+		if (frameRate < 0)
+			throw new IllegalArgumentException("PlotRenderScheduler: frame rate must be non negative.");
+
+		boolean wasAsynchronous = this.frameRate > 0;
+		this.frameRate = frameRate;
+		if (frameRate > 0) {
+			timer.setDelay(Math.max(1, 1000 / frameRate));
+			timer.setInitialDelay(timer.getDelay());
+		}
+		else if (wasAsynchronous)
+			flush();
+	}
+
+	/**
+	 * Ask the scheduler to run the given task on the EDT at the next frame.
+	 * Requests for a task already waiting are coalesced into one execution.
+	 *
+	 * @param task
+	 *            The render task, usually moving the samples collected by a
+	 *            plotter into its chart dataset.
+	 */
+	public void requestRender(Runnable task) {
+		if (frameRate == 0) {
+			task.run();
+			return;
+		}
+
+		synchronized (pending) {
+			if (pending.add(task) && !timer.isRunning())
+				timer.start();
+		}
+	}
+
+	/**
+	 * Run all the pending render tasks now. If called from a thread different
+	 * from the EDT it waits until the tasks have been executed.
+	 */
+	public void flush() {
+		if (SwingUtilities.isEventDispatchThread()) {
+			runPending();
+			return;
+		}
+
+		try {
+			SwingUtilities.invokeAndWait(new Runnable() {
+				public void run() {
+					runPending();
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private void runPending() {
+		synchronized (pending) {
+			if (pending.isEmpty()) {
+				timer.stop();
+				return;
+			}
+			running.addAll(pending);
+			pending.clear();
+		}
+
+		try {
+			for (int i = 0; i < running.size(); i++)
+				running.get(i).run();
+		} finally {
+			running.clear();
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+package microsim.gui.plot;
+
+import org.jfree.data.statistics.HistogramType;
+import org.jfree.data.xy.AbstractIntervalXYDataset;
+
+/**
+ * A mutable histogram dataset backed by primitive bin arrays. It exposes the
+ * same values as JFreeChart's HistogramDataset, but instead of creating a new
+ * dataset (and a HistogramBin object per bin) at each update, the series are
+ * replaced all at once by a new set of {@link HistogramBins}, firing a single
+ * change event. The replaced bins are returned to the caller so that their
+ * arrays can be reused for the next update.<br>
+ *
+ * The primitive getters are overridden, so that the renderers can draw the
+ * histogram without allocating any object. Like any other dataset attached
+ * to a chart it should only be modified on the EDT.
+ *
+ * <p>
+ * Title: JAS-mine
+ * </p>
+ * <p>
+ * Description: Java Agent-based Simulation library
+ * </p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+public class PrimitiveHistogramDataset extends AbstractIntervalXYDataset {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final HistogramBins[] NO_BINS = new HistogramBins[0];
+
+	private HistogramType type = HistogramType.FREQUENCY;
+
+	private HistogramBins[] series = NO_BINS;
+
+	public HistogramType getType() {
+		return type;
+	}
+
+	/**
+	 * Set the histogram type and notify the listeners.
+	 *
+	 * @param type
+	 *            FREQUENCY, RELATIVE_FREQUENCY or SCALE_AREA_TO_1.
+	 */
+	public void setType(HistogramType type) {
+		if (type == null)
+			throw new IllegalArgumentException("PrimitiveHistogramDataset: null histogram type.");
+		this.type = type;
+		fireDatasetChanged();
+	}
+
+	/**
+	 * Replace all the series and send a single change event.
+	 *
+	 * @param bins
+	 *            The bins of each series. The array is kept by the dataset.
+	 * @return The bins previously shown, which the caller may fill again.
+	 */
+	HistogramBins[] setBins(HistogramBins[] bins) {
+		HistogramBins[] previous = series;
+		series = bins == null ? NO_BINS : bins;
+		fireDatasetChanged();
+		return previous == NO_BINS ? null : previous;
+	}
+
+	public int getSeriesCount() {
+		return series.length;
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Comparable getSeriesKey(int s) {
+		return series[s].key;
+	}
+
+	public int getItemCount(int s) {
+		return series[s].binCount;
+	}
+
+	public double getStartXValue(int s, int item) {
+		return series[s].getStartX(item);
+	}
+
+	public double getEndXValue(int s, int item) {
+		return series[s].getEndX(item);
+	}
+
+	public double getXValue(int s, int item) {
+		HistogramBins bins = series[s];
+		return (bins.getStartX(item) + bins.getEndX(item)) / 2.0;
+	}
+
+	public double getYValue(int s, int item) {
+		HistogramBins bins = series[s];
+		double count = bins.getCount(item);
+		if (type == HistogramType.FREQUENCY)
+			return count;
+		else if (type == HistogramType.RELATIVE_FREQUENCY)
+			return count / bins.total;
+		else if (type == HistogramType.SCALE_AREA_TO_1)
+			return count / (bins.binWidth * bins.total);
+		else
+			throw new IllegalStateException("PrimitiveHistogramDataset: unknown histogram type " + type);
+	}
+
+	public double getStartYValue(int s, int item) {
+		return getYValue(s, item);
+	}
+
+	public double getEndYValue(int s, int item) {
+		return getYValue(s, item);
+	}
+
+	public Number getStartX(int s, int item) {
+		return getStartXValue(s, item);
+	}
+
+	public Number getEndX(int s, int item) {
+		return getEndXValue(s, item);
+	}
+
+	public Number getX(int s, int item) {
+		return getXValue(s, item);
+	}
+
+	public Number getY(int s, int item) {
+		return getYValue(s, item);
+	}
+
+	public Number getStartY(int s, int item) {
+		return getY(s, item);
+	}
+
+	public Number getEndY(int s, int item) {
+		return getY(s, item);
+	}
+
+}
@@ -0,0 +1,366 @@
+package microsim.gui.plot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jfree.data.DomainInfo;
+import org.jfree.data.DomainOrder;
+import org.jfree.data.Range;
+import org.jfree.data.RangeInfo;
+import org.jfree.data.xy.AbstractXYDataset;
+
+/**
+ * An XYDataset storing the samples of each series in primitive ring buffers.
+ * Unlike JFreeChart's XYSeriesCollection no object is allocated when a sample
+ * is added: each series keeps two parallel double arrays for the x and y
+ * values, so that appending is O(1) and, when a maximum item count is set, the
+ * oldest sample is overwritten in place, giving a real bounded window.<br>
+ *
+ * Samples are added with {@link #add(int, double, double)}, which does not
+ * notify the listeners; after a batch of additions the caller should invoke
+ * {@link #seriesChanged(org.jfree.data.general.SeriesChangeEvent)} once to
+ * refresh the chart. The dataset is not synchronized and, like any other
+ * JFreeChart dataset attached to a chart, should be modified on the EDT only.
+ *
+ * <p>
+ * Title: JAS-mine
+ * </p>
+ * <p>
+ * Description: Java Agent-based Simulation library
+ * </p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+public class RingBufferXYDataset extends AbstractXYDataset implements DomainInfo, RangeInfo {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final List<Ring> series = new ArrayList<Ring>();
+
+	/**
+	 * Add a new empty series.
+	 *
+	 * @param key
+	 *            The series key, shown in the legend.
+	 * @param maximumItemCount
+	 *            The maximum number of samples kept. When the series is full the
+	 *            oldest sample is replaced by the new one. If 0 the series grows
+	 *            without limit.
+	 * @return The index of the new series.
+	 */
+	public int addSeries(Comparable<?> key, int maximumItemCount) {
+		if (key == null)
+			throw new IllegalArgumentException("RingBufferXYDataset: null series key.");
+		if (indexOf(key) >= 0)
+			throw new IllegalArgumentException("RingBufferXYDataset: the dataset already contains a series with the key " + key);
+		if (maximumItemCount < 0)
+			throw new IllegalArgumentException("RingBufferXYDataset: maximumItemCount must be non negative.");
+
+		series.add(new Ring(key, maximumItemCount));
+		fireDatasetChanged();
+		return series.size() - 1;
+	}
+
+	/**
+	 * Append a sample to a series without sending any change event.
+	 *
+	 * @param seriesIndex
+	 *            The series index.
+	 * @param x
+	 *            The x value.
+	 * @param y
+	 *            The y value.
+	 */
+	public void add(int seriesIndex, double x, double y) {
+		series.get(seriesIndex).add(x, y);
+	}
+
+	/**
+	 * Change the maximum number of samples kept by a series, discarding its
+	 * oldest samples if needed, and notify the listeners.
+	 *
+	 * @param seriesIndex
+	 *            The series index.
+	 * @param maximumItemCount
+	 *            The new maximum, 0 for an unbounded series.
+	 */
+	public void setMaximumItemCount(int seriesIndex, int maximumItemCount) {
+		if (maximumItemCount < 0)
+			throw new IllegalArgumentException("RingBufferXYDataset: maximumItemCount must be non negative.");
+
+		series.get(seriesIndex).setMaximumItemCount(maximumItemCount);
+		fireDatasetChanged();
+	}
+
+	/**
+	 * Return the maximum number of samples kept by a series.
+	 *
+	 * @param seriesIndex
+	 *            The series index.
+	 * @return The maximum item count, 0 if the series is unbounded.
+	 */
+	public int getMaximumItemCount(int seriesIndex) {
+		return series.get(seriesIndex).maximumItemCount;
+	}
+
+	/**
+	 * Remove all the samples, keeping the series, and notify the listeners.
+	 */
+	public void clear() {
+		for (Ring ring : series)
+			ring.clear();
+		fireDatasetChanged();
+	}
+
+	public int getSeriesCount() {
+		return series.size();
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Comparable getSeriesKey(int seriesIndex) {
+		return series.get(seriesIndex).key;
+	}
+
+	public int getItemCount(int seriesIndex) {
+		return series.get(seriesIndex).size;
+	}
+
+	/**
+	 * Return the number of samples dropped from the front of a series since it
+	 * was created or cleared, because the series was full or its maximum item
+	 * count was reduced. Adding it to an item index gives a position which does
+	 * not change when older samples are dropped.
+	 *
+	 * @param seriesIndex
+	 *            The series index.
+	 * @return The number of samples dropped.
+	 */
+	public long getEvictedCount(int seriesIndex) {
+		return series.get(seriesIndex).evicted;
+	}
+
+	public double getXValue(int seriesIndex, int item) {
+		Ring ring = series.get(seriesIndex);
+		return ring.x[ring.index(item)];
+	}
+
+	public double getYValue(int seriesIndex, int item) {
+		Ring ring = series.get(seriesIndex);
+		return ring.y[ring.index(item)];
+	}
+
+	public Number getX(int seriesIndex, int item) {
+		return getXValue(seriesIndex, item);
+	}
+
+	public Number getY(int seriesIndex, int item) {
+		return getYValue(seriesIndex, item);
+	}
+
+	/**
+	 * Returns ASCENDING when the x values of every series have been added in
+	 * non decreasing order (as the simulation time), which allows the
+	 * renderers to skip the samples falling outside the visible domain.
+	 */
+	public DomainOrder getDomainOrder() {
+		for (Ring ring : series)
+			if (!ring.ascending)
+				return DomainOrder.NONE;
+		return DomainOrder.ASCENDING;
+	}
+
+	public double getDomainLowerBound(boolean includeInterval) {
+		Range r = getDomainBounds(includeInterval);
+		return r == null ? Double.NaN : r.getLowerBound();
+	}
+
+	public double getDomainUpperBound(boolean includeInterval) {
+		Range r = getDomainBounds(includeInterval);
+		return r == null ? Double.NaN : r.getUpperBound();
+	}
+
+	public Range getDomainBounds(boolean includeInterval) {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (Ring ring : series) {
+			if (ring.size == 0)
+				continue;
+			if (ring.ascending) {
+				min = Math.min(min, ring.x[ring.index(0)]);
+				max = Math.max(max, ring.x[ring.index(ring.size - 1)]);
+			}
+			else {
+				for (int i = 0; i < ring.size; i++) {
+					double v = ring.x[ring.index(i)];
+					if (v < min)
+						min = v;
+					if (v > max)
+						max = v;
+				}
+			}
+		}
+		return min <= max ? new Range(min, max) : null;
+	}
+
+	public double getRangeLowerBound(boolean includeInterval) {
+		Range r = getRangeBounds(includeInterval);
+		return r == null ? Double.NaN : r.getLowerBound();
+	}
+
+	public double getRangeUpperBound(boolean includeInterval) {
+		Range r = getRangeBounds(includeInterval);
+		return r == null ? Double.NaN : r.getUpperBound();
+	}
+
+	public Range getRangeBounds(boolean includeInterval) {
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (Ring ring : series) {
+			ring.validateRange();
+			if (ring.minY < min)
+				min = ring.minY;
+			if (ring.maxY > max)
+				max = ring.maxY;
+		}
+		return min <= max ? new Range(min, max) : null;
+	}
+
+	// The samples of a series. Items are stored from index head onwards,
+	// wrapping around the end of the arrays.
+	private static class Ring implements java.io.Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final Comparable<?> key;
+		int maximumItemCount;
+		double[] x;
+		double[] y;
+		int head;
+		int size;
+		long evicted;
+		boolean ascending = true;
+
+		// Cached y bounds, recomputed lazily when an extreme value is evicted
+		double minY = Double.POSITIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		boolean rangeValid = true;
+
+		Ring(Comparable<?> key, int maximumItemCount) {
+			this.key = key;
+			this.maximumItemCount = maximumItemCount;
+			int capacity = maximumItemCount > 0 ? Math.min(INITIAL_CAPACITY, maximumItemCount) : INITIAL_CAPACITY;
+			x = new double[capacity];
+			y = new double[capacity];
+		}
+
+		int index(int item) {
+			if (item < 0 || item >= size)
+				throw new IndexOutOfBoundsException("RingBufferXYDataset: item " + item + " out of bounds (size " + size + ")");
+			int i = head + item;
+			return i < x.length ? i : i - x.length;
+		}
+
+		void add(double xValue, double yValue) {
+			if (size > 0 && xValue < x[index(size - 1)])
+				ascending = false;
+
+			if (size == x.length) {
+				if (maximumItemCount > 0 && size >= maximumItemCount) {
+					// Full window: overwrite the oldest sample
+					double oldY = y[head];
+					if (oldY <= minY || oldY >= maxY)
+						rangeValid = false;
+					x[head] = xValue;
+					y[head] = yValue;
+					head = (head + 1 == x.length) ? 0 : head + 1;
+					evicted++;
+					includeInRange(yValue);
+					return;
+				}
+				int capacity = size * 2;
+				if (maximumItemCount > 0)
+					capacity = Math.min(capacity, maximumItemCount);
+				resize(capacity);
+			}
+
+			int i = head + size;
+			if (i >= x.length)
+				i -= x.length;
+			x[i] = xValue;
+			y[i] = yValue;
+			size++;
+			includeInRange(yValue);
+		}
+
+		void setMaximumItemCount(int max) {
+			maximumItemCount = max;
+			if (max > 0 && size > max) {
+				// Drop the oldest samples
+				head = index(size - max);
+				evicted += size - max;
+				size = max;
+				rangeValid = false;
+			}
+			if (max > 0 && x.length > max)
+				resize(Math.max(size, 1));
+		}
+
+		void clear() {
+			head = 0;
+			size = 0;
+			evicted = 0;
+			ascending = true;
+			minY = Double.POSITIVE_INFINITY;
+			maxY = Double.NEGATIVE_INFINITY;
+			rangeValid = true;
+		}
+
+		void validateRange() {
+			if (rangeValid)
+				return;
+			minY = Double.POSITIVE_INFINITY;
+			maxY = Double.NEGATIVE_INFINITY;
+			rangeValid = true;
+			for (int i = 0; i < size; i++)
+				includeInRange(y[index(i)]);
+		}
+
+		private void includeInRange(double v) {
+			if (!rangeValid)
+				return;
+			if (v < minY)			//NaN values are ignored by both comparisons
+				minY = v;
+			if (v > maxY)
+				maxY = v;
+		}
+
+		// Copy the samples to new arrays starting from index 0
+		private void resize(int capacity) {
+			double[] xx = new double[capacity];
+			double[] yy = new double[capacity];
+			int first = Math.min(size, x.length - head);
+			System.arraycopy(x, head, xx, 0, first);
+			System.arraycopy(y, head, yy, 0, first);
+			System.arraycopy(x, 0, xx, first, size - first);
+			System.arraycopy(y, 0, yy, first, size - first);
+			x = xx;
+			y = yy;
+			head = 0;
+		}
+	}
+
+}
@@ -3,11 +3,15 @@ package microsim.gui.plot;
 //package microsim.gui.plot;
 
 import java.awt.Color;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.swing.JInternalFrame;
 
+import microsim.engine.SimulationEngine;
 import microsim.event.CommonEventType;
 import microsim.event.EventListener;
 import microsim.reflection.ReflectionUtils;
@@ -30,6 +34,7 @@ import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.XYItemRenderer;
 import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
+import org.jfree.data.general.SeriesChangeEvent;
 import org.jfree.data.xy.XYSeries;
 import org.jfree.data.xy.XYSeriesCollection;
 
@@ -74,10 +79,24 @@ public class ScatterplotSimulationPlotterRefreshable extends JInternalFrame impl
 	
 	private ArrayList<Pair<Source, Source>> sources;
 	
+	private JFreeChart chart;
+
 	private XYSeriesCollection dataset;
 	
 	private int maxSamples;
 
+	private volatile PlotDataSink dataSink;		//Not null while the sampled values are exported
+
+	private final XYSampleBuffer samples = new XYSampleBuffer();
+
+	private final XYSampleBuffer renderBuffer = new XYSampleBuffer();
+
+	private final Runnable renderTask = new Runnable() {
+		public void run() {
+			render();
+		}
+	};
+
 	
 	/**
 	 * Constructor for scatterplot chart objects with chart legend displayed by default and
@@ -122,7 +141,7 @@ public class ScatterplotSimulationPlotterRefreshable extends JInternalFrame impl
 		
 		dataset = new XYSeriesCollection();
         
-        final JFreeChart chart = ChartFactory.createScatterPlot(
+        chart = ChartFactory.createScatterPlot(
                 title,      // chart title
                 xaxis,                      // x axis label
                 yaxis,                      // y axis label
@@ -152,15 +171,61 @@ public class ScatterplotSimulationPlotterRefreshable extends JInternalFrame impl
         final NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
         rangeAxis.setStandardTickUnits(NumberAxis.createStandardTickUnits());
         
-        final ChartPanel chartPanel = new ChartPanel(chart);
+        if (!GraphicsEnvironment.isHeadless()) {
+	        final ChartPanel chartPanel = new ChartPanel(chart);
                 
-        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
+	        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
 			
-        setContentPane(chartPanel);
+	        setContentPane(chartPanel);
+        }
         
         this.setSize(400, 400);
 	}
 
+	/**
+	 * Return the chart of the plotter, e.g. to draw it offscreen with a
+	 * {@link PlotRecorder}.
+	 *
+	 * @return The chart.
+	 */
+	public JFreeChart getChart() {
+		return chart;
+	}
+
+	/**
+	 * Start exporting the sampled values to a columnar data file, which can be
+	 * converted to CSV with {@link ColumnarDataReader}. Each update appends a
+	 * row with the simulation time and the x and y values of each series; series added
+	 * after the export has started are not exported.
+	 *
+	 * @param file
+	 *            The file, which is overwritten.
+	 * @throws IOException
+	 *             If the file cannot be created.
+	 */
+	public void startDataExport(File file) throws IOException {
+		String[] names = new String[2 * sources.size()];
+		for (int i = 0; i < sources.size(); i++) {
+			String key = String.valueOf(dataset.getSeriesKey(i));
+			names[2 * i] = key + ".x";
+			names[2 * i + 1] = key + ".y";
+		}
+		PlotDataSink sink = new PlotDataSink(file, names);
+		stopDataExport();
+		dataSink = sink;
+	}
+
+	/**
+	 * Stop exporting the sampled values and close the file.
+	 */
+	public void stopDataExport() {
+		PlotDataSink sink = dataSink;
+		if (sink != null) {
+			dataSink = null;
+			sink.close();
+		}
+	}
+
 	public void onEvent(Enum<?> type) {
 		if (type instanceof CommonEventType && type.equals(CommonEventType.Update)) {
 			update();
@@ -169,18 +234,41 @@ public class ScatterplotSimulationPlotterRefreshable extends JInternalFrame impl
 	
 	public void update() {
 		double x = 0.0, y = 0.0;
+		PlotDataSink sink = dataSink;
 		for (int i = 0; i < sources.size(); i++) {
 			Source source_X = sources.get(i).getFirst();
 			Source source_Y = sources.get(i).getSecond();
-			XYSeries series = dataset.getSeries(i);
 			x = source_X.getDouble();
 			y = source_Y.getDouble();
-			series.add(x, y);
+			samples.add(i, x, y);
+			if (sink != null) {
+				sink.set(2 * i, x);
+				sink.set(2 * i + 1, y);
+			}
 //			if (maxSamples > 0 && series.getItemCount() > maxSamples ) {		//Should no longer be necessary if using XYSeries.setMaximumItemCount()
 //				XYDataItem xy = series.remove(0);
 //				System.out.println(series.getItemCount() + ", (" + xy.getXValue() + ", " + xy.getYValue() + ")");					
 //			}
 		}
+		if (sink != null)
+			sink.append(SimulationEngine.getInstance().getTime());
+		PlotRenderScheduler.getInstance().requestRender(renderTask);
+	}
+
+	// Executed on the EDT by the PlotRenderScheduler: moves the pending samples 
+	// into the series and notifies the chart once.
+	private void render() {
+		samples.drainTo(renderBuffer);
+		if (renderBuffer.size() == 0)
+			return;
+
+		int seriesCount = dataset.getSeriesCount();
+		for (int k = 0; k < renderBuffer.size(); k++) {
+			int s = renderBuffer.getSeries(k);
+			if (s < seriesCount)		//Samples taken before a reset() may refer to removed series
+				dataset.getSeries(s).add(renderBuffer.getX(k), renderBuffer.getY(k), false);
+		}
+		dataset.seriesChanged(new SeriesChangeEvent(dataset));
 	}
 
 
@@ -699,6 +787,7 @@ public class ScatterplotSimulationPlotterRefreshable extends JInternalFrame impl
 	
 	public void refresh() {
 
+		samples.clear();
 		List data = dataset.getSeries();
         for (int i = 0; i < data.size(); i++) {
             XYSeries series = (XYSeries) data.get(i);
@@ -709,8 +798,10 @@ public class ScatterplotSimulationPlotterRefreshable extends JInternalFrame impl
 	
 	public void reset() {
 		
+		samples.clear();
 		dataset.removeAllSeries();
 		sources.clear();		
+		stopDataExport();		//The columns of the export are the series removed
 		
 	}
 
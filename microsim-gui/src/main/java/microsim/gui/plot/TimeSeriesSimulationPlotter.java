@@ -1,8 +1,12 @@
 package microsim.gui.plot;
 
 import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import javax.swing.JInternalFrame;
@@ -25,11 +29,14 @@ import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartPanel;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.event.AxisChangeEvent;
+import org.jfree.chart.event.AxisChangeListener;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
-import org.jfree.data.xy.XYSeries;
-import org.jfree.data.xy.XYSeriesCollection;
+import org.jfree.data.general.SeriesChangeEvent;
+import org.jfree.data.xy.XYDataset;
 
 /**
  * A time series plotter is able to trace one or more data sources over time. It
@@ -70,13 +77,29 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 	
 	private ArrayList<Source> sources;
 	
-	private XYSeriesCollection dataset;
+	private JFreeChart chart;
+
+	private RingBufferXYDataset dataset;
 
 	private XYPlot plot;
 
 	private XYLineAndShapeRenderer renderer;
 
 	private int maxSamples = 0;
+
+	private DecimatedXYDataset levelOfDetailDataset;		//Not null when the level-of-detail mode is enabled
+
+	private volatile PlotDataSink dataSink;		//Not null while the sampled values are exported
+
+	private final XYSampleBuffer samples = new XYSampleBuffer();
+
+	private final XYSampleBuffer renderBuffer = new XYSampleBuffer();
+
+	private final Runnable renderTask = new Runnable() {
+		public void run() {
+			render();
+		}
+	};
 	
 	public TimeSeriesSimulationPlotter(String title, String yaxis) {			//Include legend by default
 		this(title, yaxis, true, 0);
@@ -90,9 +113,9 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 		
 		sources = new ArrayList<Source>();
 		
-		dataset = new XYSeriesCollection();
+		dataset = new RingBufferXYDataset();
         
-        final JFreeChart chart = ChartFactory.createXYLineChart(
+        chart = ChartFactory.createXYLineChart(
                 title,      // chart title
                 "Simulation time",                      // x axis label
                 yaxis,                      // y axis label
@@ -129,32 +152,106 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 //        rangeAxis.setStandardTickUnits(NumberAxis.createIntegerTickUnits());
         rangeAxis.setStandardTickUnits(NumberAxis.createStandardTickUnits());		//Ross - made this change to allow units on Y axis for finer ticks, which is especially important for timeseries with values < 1.
 
-        final ChartPanel chartPanel = new ChartPanel(chart);
+        if (!GraphicsEnvironment.isHeadless()) {
+	        final ChartPanel chartPanel = new ChartPanel(chart);
                 
-        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
+	        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
+
+	        // In level-of-detail mode decimate to the chart width, and to the visible domain when zoomed
+	        chartPanel.addComponentListener(new ComponentAdapter() {
+	        	public void componentResized(ComponentEvent e) {
+	        		if (levelOfDetailDataset != null && chartPanel.getWidth() > 0)
+	        			levelOfDetailDataset.setColumns(chartPanel.getWidth());
+	        	}
+	        });
+	        plot.getDomainAxis().addChangeListener(new AxisChangeListener() {
+	        	public void axisChanged(AxisChangeEvent event) {
+	        		if (levelOfDetailDataset != null) {
+	        			ValueAxis axis = (ValueAxis) event.getAxis();
+	        			levelOfDetailDataset.setDomainWindow(axis.isAutoRange() ? null : axis.getRange());
+	        		}
+	        	}
+	        });
 			
-        setContentPane(chartPanel);
+	        setContentPane(chartPanel);
+        }
         
         this.setSize(400, 400);
 	}
 
 
 
+	/**
+	 * Return the chart of the plotter, e.g. to draw it offscreen with a
+	 * {@link PlotRecorder}.
+	 *
+	 * @return The chart.
+	 */
+	public JFreeChart getChart() {
+		return chart;
+	}
+
+	/**
+	 * Start exporting the sampled values to a columnar data file, which can be
+	 * converted to CSV with {@link ColumnarDataReader}. Each update appends a
+	 * row with the simulation time and the value of each series; series added
+	 * after the export has started are not exported.
+	 *
+	 * @param file
+	 *            The file, which is overwritten.
+	 * @throws IOException
+	 *             If the file cannot be created.
+	 */
+	public void startDataExport(File file) throws IOException {
+		String[] names = new String[sources.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = String.valueOf(dataset.getSeriesKey(i));
+		}
+		PlotDataSink sink = new PlotDataSink(file, names);
+		stopDataExport();
+		dataSink = sink;
+	}
+
+	/**
+	 * Stop exporting the sampled values and close the file.
+	 */
+	public void stopDataExport() {
+		PlotDataSink sink = dataSink;
+		if (sink != null) {
+			dataSink = null;
+			sink.close();
+		}
+	}
+
 	public void onEvent(Enum<?> type) {
 		if (type instanceof CommonEventType && type.equals(CommonEventType.Update)) {
-			double d = 0.0;
+			double time = SimulationEngine.getInstance().getTime();
+			PlotDataSink sink = dataSink;
 			for (int i = 0; i < sources.size(); i++) {
-				Source source = sources.get(i);
-				XYSeries series = dataset.getSeries(i);
-				d = source.getDouble();
-				series.add(SimulationEngine.getInstance().getTime(), d);
-//				if (maxSamples > 0 && series.getItemCount() > maxSamples ) { 
-//					series.remove(0);
-//				}
+				double value = sources.get(i).getDouble();
+				samples.add(i, time, value);
+				if (sink != null)
+					sink.set(i, value);
 			}
+			if (sink != null)
+				sink.append(time);
+			PlotRenderScheduler.getInstance().requestRender(renderTask);
 		}
 	}
 
+	// Executed on the EDT by the PlotRenderScheduler: moves the pending samples 
+	// into the dataset and notifies the chart only once.
+	private void render() {
+		samples.drainTo(renderBuffer);
+		if (renderBuffer.size() == 0)
+			return;
+
+		for (int k = 0; k < renderBuffer.size(); k++) {
+			dataset.add(renderBuffer.getSeries(k), renderBuffer.getX(k), renderBuffer.getY(k));
+		}
+		dataset.seriesChanged(new SeriesChangeEvent(dataset));
+	}
+
 
 	private abstract class Source {
 		//public String label;
@@ -274,19 +371,13 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 	public void addSeries(String legend, IDoubleSource plottableObject) {
 		sources.add(new DSource(legend, plottableObject, IDoubleSource.Variables.Default));
 		//plot.addLegend(sources.size() - 1, legend);
-		XYSeries series = new XYSeries(legend);
-		if(maxSamples > 0) series.setMaximumItemCount(maxSamples);
-		dataset.addSeries(series);
+		dataset.addSeries(legend, maxSamples);
 	}
 
 	public void addSeries(String legend, IDoubleSource plottableObject, Color lineColor, boolean shapesFilled, boolean isDashed, Shape shape) {
 		sources.add(new DSource(legend, plottableObject, IDoubleSource.Variables.Default));
 		//plot.addLegend(sources.size() - 1, legend);
-		XYSeries series = new XYSeries(legend);
-		if(maxSamples > 0) series.setMaximumItemCount(maxSamples);
-		dataset.addSeries(series);
-
-		int seriesIndex = dataset.getSeriesIndex(series.getKey()); //Get int Index of series using its key
+		int seriesIndex = dataset.addSeries(legend, maxSamples); //Index of the new series, used to set its rendering properties
 		Stroke dashed =  new BasicStroke(1.0f,BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10.0f, new float[] {10.0f}, 0.0f);
 		getRenderer().setSeriesPaint(seriesIndex, lineColor); //Set color of the series in the renderer to what was requested
 		getRenderer().setSeriesShapesFilled(seriesIndex, shapesFilled); //Set if shapes should be filled or not
@@ -311,18 +402,13 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 			Enum<?> variableID) {
 		sources.add(new DSource(legend, plottableObject, variableID));
 		//plot.addLegend(sources.size() - 1, legend);
-		XYSeries series = new XYSeries(legend);
-		if(maxSamples > 0) series.setMaximumItemCount(maxSamples);
-		dataset.addSeries(series);		
+		dataset.addSeries(legend, maxSamples);		
 	}
 
 	public void addSeries(String legend, IDoubleSource plottableObject, Enum<?> variableID, Color lineColor, boolean shapesFilled, boolean isDashed, Shape shape) {
 		sources.add(new DSource(legend, plottableObject, variableID));
 		//plot.addLegend(sources.size() - 1, legend);
-		XYSeries series = new XYSeries(legend);
-		if(maxSamples > 0) series.setMaximumItemCount(maxSamples);
-		dataset.addSeries(series);
-		int seriesIndex = dataset.getSeriesIndex(series.getKey()); //Get int Index of series using its key
+		int seriesIndex = dataset.addSeries(legend, maxSamples); //Index of the new series, used to set its rendering properties
 
 		Stroke dashed =  new BasicStroke(1.0f,BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10.0f, new float[] {10.0f}, 0.0f);
 		getRenderer().setSeriesPaint(seriesIndex, lineColor); //Set color of the series in the renderer to what was requested
@@ -359,9 +445,7 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 	public void addSeries(String legend, IFloatSource plottableObject) {
 		sources.add(new FSource(legend, plottableObject, IFloatSource.Variables.Default));
 		//plot.addLegend(sources.size() - 1, legend);
-		XYSeries series = new XYSeries(legend);
-		if(maxSamples > 0) series.setMaximumItemCount(maxSamples);
-		dataset.addSeries(series);		
+		dataset.addSeries(legend, maxSamples);		
 	}
 
 	/**
@@ -379,9 +463,7 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 			Enum<?> variableID) {
 		sources.add(new FSource(legend, plottableObject, variableID));
 		//plot.addLegend(sources.size() - 1, legend);
-		XYSeries series = new XYSeries(legend);
-		if(maxSamples > 0) series.setMaximumItemCount(maxSamples);
-		dataset.addSeries(series);
+		dataset.addSeries(legend, maxSamples);
 	}
 
 	/**
@@ -395,9 +477,7 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 	public void addSeries(String legend, ILongSource plottableObject) {
 		sources.add(new LSource(legend, plottableObject, ILongSource.Variables.Default));
 		//plot.addLegend(sources.size() - 1, legend);
-		XYSeries series = new XYSeries(legend);
-		if(maxSamples > 0) series.setMaximumItemCount(maxSamples);
-		dataset.addSeries(series);
+		dataset.addSeries(legend, maxSamples);
 	}
 
 	/**
@@ -414,9 +494,7 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 			Enum<?> variableID) {
 		sources.add(new LSource(legend, plottableObject, variableID));
 		//plot.addLegend(sources.size() - 1, legend);
-		XYSeries series = new XYSeries(legend);
-		if(maxSamples > 0) series.setMaximumItemCount(maxSamples);
-		dataset.addSeries(series);
+		dataset.addSeries(legend, maxSamples);
 	}
 
 	/**
@@ -430,9 +508,7 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 	public void addSeries(String legend, IIntSource plottableObject) {
 		sources.add(new ISource(legend, plottableObject, IIntSource.Variables.Default));
 		//plot.addLegend(sources.size() - 1, legend);
-		XYSeries series = new XYSeries(legend);
-		if(maxSamples > 0) series.setMaximumItemCount(maxSamples);
-		dataset.addSeries(series);
+		dataset.addSeries(legend, maxSamples);
 	}
 
 	/**
@@ -449,9 +525,7 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 			Enum<?> variableID) {
 		sources.add(new ISource(legend, plottableObject, variableID));
 		//plot.addLegend(sources.size() - 1, legend);
-		XYSeries series = new XYSeries(legend);
-		if(maxSamples > 0) series.setMaximumItemCount(maxSamples);
-		dataset.addSeries(series);
+		dataset.addSeries(legend, maxSamples);
 	}
 
 	/**
@@ -490,9 +564,7 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 					+ " does not provide a value of a valid data type.");
 
 		sources.add(source);
-		XYSeries series = new XYSeries(legend);
-		if(maxSamples > 0) series.setMaximumItemCount(maxSamples);
-		dataset.addSeries(series);
+		dataset.addSeries(legend, maxSamples);
 		//plot.addLegend(sources.size() - 1, legend);
 	}
 	
@@ -514,6 +586,49 @@ public class TimeSeriesSimulationPlotter extends JInternalFrame implements Event
 	}
 
 
+	/**
+	 * Return the dataset holding the full resolution samples of the series, 
+	 * also when the level-of-detail mode is enabled.
+	 */
+	public XYDataset getDataset() {
+		return dataset;
+	}
+
+	/**
+	 * Return true if the level-of-detail mode is enabled.
+	 */
+	public boolean isLevelOfDetail() {
+		return levelOfDetailDataset != null;
+	}
+
+	/**
+	 * Enable or disable the level-of-detail mode. When enabled the chart draws a 
+	 * min/max decimated view of each series, keeping the first, minimum, maximum 
+	 * and last sample of each pixel column of the visible domain, so that the 
+	 * drawing cost depends on the chart width and not on the length of the run. 
+	 * Zooming into the chart shows the samples at full resolution, and the full 
+	 * data remain available through getDataset(). Should be called on the EDT.
+	 * @param enabled true to draw the decimated series.
+	 */
+	public void setLevelOfDetail(boolean enabled) {
+		if (enabled == isLevelOfDetail())
+			return;
+		
+		if (enabled) {
+			levelOfDetailDataset = new DecimatedXYDataset(dataset);
+			if (getContentPane().getWidth() > 0)
+				levelOfDetailDataset.setColumns(getContentPane().getWidth());
+			ValueAxis axis = plot.getDomainAxis();
+			levelOfDetailDataset.setDomainWindow(axis.isAutoRange() ? null : axis.getRange());
+			plot.setDataset(levelOfDetailDataset);
+		}
+		else {
+			dataset.removeChangeListener(levelOfDetailDataset);
+			levelOfDetailDataset = null;
+			plot.setDataset(dataset);
+		}
+	}
+
 	public XYLineAndShapeRenderer getRenderer() {
 		return (XYLineAndShapeRenderer) plot.getRenderer();
 	}
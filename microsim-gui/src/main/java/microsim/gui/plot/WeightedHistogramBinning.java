@@ -0,0 +1,123 @@
+package microsim.gui.plot;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The binning kernel of {@link Weighted_HistogramDataset}. The weights of the
+ * values are accumulated into a flat double array of counts; large arrays are
+ * split into chunks binned in parallel on the common fork/join pool, each into
+ * its own partial array of counts, which are summed when the chunks are
+ * joined. Small arrays are binned serially without allocating anything.<br>
+ *
+ * Values are assigned to the bins with the same arithmetic as JFreeChart's
+ * HistogramDataset: values below the minimum go to the first bin, values not
+ * less than the maximum (or NaN) to the last one. As the weights of a bin are
+ * summed in a different order when binning in parallel, the counts may differ
+ * from a serial binning in the last bits.
+ */
+final class WeightedHistogramBinning {
+
+	/** Arrays shorter than this are binned serially. */
+	static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	private WeightedHistogramBinning() {
+	}
+
+	/**
+	 * Bin the values, adding their weights to the counts.
+	 *
+	 * @param values
+	 *            The values.
+	 * @param weightings
+	 *            The weight of each value.
+	 * @param bins
+	 *            The number of bins.
+	 * @param minimum
+	 *            The lower bound of the first bin.
+	 * @param maximum
+	 *            The upper bound of the last bin.
+	 * @param counts
+	 *            The counts, of length at least bins, which are not cleared.
+	 */
+	static void bin(double[] values, double[] weightings, int bins, double minimum, double maximum, double[] counts) {
+		int n = values.length;
+		int parallelism = ForkJoinPool.getCommonPoolParallelism();
+		if (n < PARALLEL_THRESHOLD || parallelism < 2) {
+			binRange(values, weightings, 0, n, bins, minimum, maximum, counts);
+			return;
+		}
+
+		// A few chunks per worker to balance the load
+		int chunk = Math.max(PARALLEL_THRESHOLD / 2, n / (4 * parallelism) + 1);
+		double[] partial = ForkJoinPool.commonPool().invoke(
+				new BinningTask(values, weightings, 0, n, chunk, bins, minimum, maximum));
+		for (int b = 0; b < bins; b++)
+			counts[b] += partial[b];
+	}
+
+	private static void binRange(double[] values, double[] weightings, int from, int to, int bins,
+			double minimum, double maximum, double[] counts) {
+		double range = maximum - minimum;
+		for (int i = from; i < to; i++) {
+			double v = values[i];
+			int binIndex = bins - 1;
+			if (v < maximum) {
+				double fraction = (v - minimum) / range;
+				if (fraction < 0.0)
+					fraction = 0.0;
+				binIndex = (int) (fraction * bins);
+				if (binIndex >= bins)
+					binIndex = bins - 1;
+			}
+			counts[binIndex] += weightings[i];
+		}
+	}
+
+	private static class BinningTask extends RecursiveTask<double[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final double[] values, weightings;
+		private final int from, to, chunk, bins;
+		private final double minimum, maximum;
+
+		BinningTask(double[] values, double[] weightings, int from, int to, int chunk, int bins,
+				double minimum, double maximum) {
+			this.values = values;
+			this.weightings = weightings;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+			this.bins = bins;
+			this.minimum = minimum;
+			this.maximum = maximum;
+		}
+
+		protected double[] compute() {
+			if (to - from <= chunk) {
+				double[] counts = new double[bins];
+				binRange(values, weightings, from, to, bins, minimum, maximum, counts);
+				return counts;
+			}
+
+			int mid = (from + to) >>> 1;
+			BinningTask left = new BinningTask(values, weightings, from, mid, chunk, bins, minimum, maximum);
+			BinningTask right = new BinningTask(values, weightings, mid, to, chunk, bins, minimum, maximum);
+			left.fork();
+			double[] counts = right.compute();
+			double[] other = left.join();
+			for (int b = 0; b < bins; b++)
+				counts[b] += other[b];
+			return counts;
+		}
+	}
+
+	static double sum(double[] counts, int bins) {
+		double total = 0.0;
+		for (int b = 0; b < bins; b++)
+			total += counts[b];
+		return total;
+	}
+
+}
@@ -42,9 +42,8 @@ package microsim.gui.plot;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import org.jfree.chart.util.ParamChecks;
 
 import org.jfree.data.general.DatasetChangeEvent;
@@ -65,8 +64,8 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
     /** For serialization. */
     private static final long serialVersionUID = -6341668077370231153L;
 
-    /** A list of maps. */
-    private List list;
+    /** The series, with the weighted count of each bin in a flat array. */
+    private List<Series> list;
 
     /** The histogram type. */
     private HistogramType type;
@@ -81,7 +80,7 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      * {@link HistogramType}.FREQUENCY.
      */
     public Weighted_HistogramDataset() {
-        this.list = new ArrayList();
+        this.list = new ArrayList<Series>();
         this.type = HistogramType.FREQUENCY;
         totalWeight = 0.;
     }
@@ -128,7 +127,8 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      * Adds a series to the dataset. Any data value less than minimum will be
      * assigned to the first bin, and any data value greater than maximum will
      * be assigned to the last bin.  Values falling on the boundary of
-     * adjacent bins will be assigned to the higher indexed bin.
+     * adjacent bins will be assigned to the higher indexed bin.  Large arrays
+     * are binned in parallel, see {@link WeightedHistogramBinning}.
      *
      * @param key  the series key (<code>null</code> not permitted).
      * @param values  the raw observations.
@@ -153,53 +153,15 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
         			"The length of weightings array must be the same as the values array!");
         }        
         
-        double binWidth = (maximum - minimum) / bins;
-
-        double lower = minimum;
-        double upper;
-        List binList = new ArrayList(bins);
-        for (int i = 0; i < bins; i++) {
-            Weighted_HistogramBin bin;
-            // make sure bins[bins.length]'s upper boundary ends at maximum
-            // to avoid the rounding issue. the bins[0] lower boundary is
-            // guaranteed start from min
-            if (i == bins - 1) {
-                bin = new Weighted_HistogramBin(lower, maximum);
-            }
-            else {
-                upper = minimum + (i + 1) * binWidth;
-                bin = new Weighted_HistogramBin(lower, upper);
-                lower = upper;
-            }
-            binList.add(bin);
-        }
-        // fill the bins
-        for (int i = 0; i < values.length; i++) {
-            int binIndex = bins - 1;
-            if (values[i] < maximum) {
-                double fraction = (values[i] - minimum) / (maximum - minimum);
-                if (fraction < 0.0) {
-                    fraction = 0.0;
-                }
-                binIndex = (int) (fraction * bins);
-                // rounding could result in binIndex being equal to bins
-                // which will cause an IndexOutOfBoundsException - see bug
-                // report 1553088
-                if (binIndex >= bins) {
-                    binIndex = bins - 1;
-                }
-            }
-            Weighted_HistogramBin bin = (Weighted_HistogramBin) binList.get(binIndex);
-           	bin.incrementCount(weightings[i]);
-           	totalWeight += weightings[i];
+        if (minimum > maximum) {
+            throw new IllegalArgumentException(
+                    "HistogramBin():  startBoundary > endBoundary.");
         }
-        // generic map for each series
-        Map map = new LinkedHashMap();
-        map.put("key", key);
-        map.put("bins", binList);
-        map.put("values.length", new Integer(values.length));
-        map.put("bin width", new Double(binWidth));
-        this.list.add(map);
+
+        Series series = new Series(key, bins, minimum, maximum, values.length);
+        WeightedHistogramBinning.bin(values, weightings, bins, minimum, maximum, series.counts);
+        totalWeight += WeightedHistogramBinning.sum(series.counts, bins);
+        this.list.add(series);
         fireDatasetChanged();
     }
 
@@ -248,7 +210,8 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
     }
 
     /**
-     * Returns the bins for a series.
+     * Returns the bins for a series.  The bins are created from the counts
+     * held by the dataset at each call, the dataset itself does not use them.
      *
      * @param series  the series index (in the range <code>0</code> to
      *     <code>getSeriesCount() - 1</code>).
@@ -258,9 +221,15 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      * @throws IndexOutOfBoundsException if <code>series</code> is outside the
      *     specified range.
      */
-    List getBins(int series) {
-        Map map = (Map) this.list.get(series);
-        return (List) map.get("bins");
+    List<Weighted_HistogramBin> getBins(int series) {
+        Series s = this.list.get(series);
+        List<Weighted_HistogramBin> bins = new ArrayList<Weighted_HistogramBin>(s.counts.length);
+        for (int i = 0; i < s.counts.length; i++) {
+            Weighted_HistogramBin bin = new Weighted_HistogramBin(s.getStartBoundary(i), s.getEndBoundary(i));
+            bin.incrementCount(s.counts[i]);
+            bins.add(bin);
+        }
+        return bins;
     }
 
     /**
@@ -271,8 +240,7 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      * @return The total.
      */
     private int getTotal(int series) {
-        Map map = (Map) this.list.get(series);
-        return ((Integer) map.get("values.length")).intValue();
+        return this.list.get(series).total;
     }
 
     /**
@@ -283,8 +251,7 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      * @return The bin width.
      */
     private double getBinWidth(int series) {
-        Map map = (Map) this.list.get(series);
-        return ((Double) map.get("bin width")).doubleValue();
+        return this.list.get(series).binWidth;
     }
 
     /**
@@ -310,8 +277,7 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      */
     @Override
     public Comparable getSeriesKey(int series) {
-        Map map = (Map) this.list.get(series);
-        return (Comparable) map.get("key");
+        return this.list.get(series).key;
     }
 
     /**
@@ -327,7 +293,7 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      */
     @Override
     public int getItemCount(int series) {
-        return getBins(series).size();
+        return this.list.get(series).counts.length;
     }
 
     /**
@@ -345,12 +311,15 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      * @throws IndexOutOfBoundsException if <code>series</code> is outside the
      *     specified range.
      */
+    @Override
+    public double getXValue(int series, int item) {
+        Series s = this.list.get(series);
+        return (s.getStartBoundary(item) + s.getEndBoundary(item)) / 2.;
+    }
+
     @Override
     public Number getX(int series, int item) {
-        List bins = getBins(series);
-       Weighted_HistogramBin bin = (Weighted_HistogramBin) bins.get(item);
-        double x = (bin.getStartBoundary() + bin.getEndBoundary()) / 2.;
-        return new Double(x);
+        return Double.valueOf(getXValue(series, item));
     }
 
     /**
@@ -367,26 +336,30 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      *     specified range.
      */
     @Override
-    public Number getY(int series, int item) {
-        List bins = getBins(series);
-       Weighted_HistogramBin bin = (Weighted_HistogramBin) bins.get(item);
+    public double getYValue(int series, int item) {
+        double count = this.list.get(series).counts[item];
         double total = getTotal(series);
         double binWidth = getBinWidth(series);
 
         if (this.type == HistogramType.FREQUENCY) {
-            return new Double(bin.getCount());
+            return count;
         }
         else if (this.type == HistogramType.RELATIVE_FREQUENCY) {
-            return new Double(bin.getCount() / total);
+            return count / total;
         }
         else if (this.type == HistogramType.SCALE_AREA_TO_1) {
-            return new Double(bin.getCount() / (binWidth * total));
+            return count / (binWidth * total);
         }
         else { // pretty sure this shouldn't ever happen
             throw new IllegalStateException();
         }
     }
 
+    @Override
+    public Number getY(int series, int item) {
+        return Double.valueOf(getYValue(series, item));
+    }
+
     /**
      * Returns the start value for a bin.
      *
@@ -399,11 +372,14 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      * @throws IndexOutOfBoundsException if <code>series</code> is outside the
      *     specified range.
      */
+    @Override
+    public double getStartXValue(int series, int item) {
+        return this.list.get(series).getStartBoundary(item);
+    }
+
     @Override
     public Number getStartX(int series, int item) {
-        List bins = getBins(series);
-        Weighted_HistogramBin bin = (Weighted_HistogramBin) bins.get(item);
-        return new Double(bin.getStartBoundary());
+        return Double.valueOf(getStartXValue(series, item));
     }
 
     /**
@@ -418,11 +394,14 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      * @throws IndexOutOfBoundsException if <code>series</code> is outside the
      *     specified range.
      */
+    @Override
+    public double getEndXValue(int series, int item) {
+        return this.list.get(series).getEndBoundary(item);
+    }
+
     @Override
     public Number getEndX(int series, int item) {
-        List bins = getBins(series);
-        Weighted_HistogramBin bin = (Weighted_HistogramBin) bins.get(item);
-        return new Double(bin.getEndBoundary());
+        return Double.valueOf(getEndXValue(series, item));
     }
 
     /**
@@ -439,6 +418,11 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      * @throws IndexOutOfBoundsException if <code>series</code> is outside the
      *     specified range.
      */
+    @Override
+    public double getStartYValue(int series, int item) {
+        return getYValue(series, item);
+    }
+
     @Override
     public Number getStartY(int series, int item) {
         return getY(series, item);
@@ -458,6 +442,11 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
      * @throws IndexOutOfBoundsException if <code>series</code> is outside the
      *     specified range.
      */
+    @Override
+    public double getEndYValue(int series, int item) {
+        return getYValue(series, item);
+    }
+
     @Override
     public Number getEndY(int series, int item) {
         return getY(series, item);
@@ -499,11 +488,81 @@ public class Weighted_HistogramDataset extends AbstractIntervalXYDataset
     public Object clone() throws CloneNotSupportedException {
         Weighted_HistogramDataset clone = (Weighted_HistogramDataset) super.clone();
         int seriesCount = getSeriesCount();
-        clone.list = new java.util.ArrayList(seriesCount);
+        clone.list = new ArrayList<Series>(seriesCount);
         for (int i = 0; i < seriesCount; i++) {
-            clone.list.add(new LinkedHashMap((Map) this.list.get(i)));
+            clone.list.add(this.list.get(i).clone());
         }
         return clone;
     }
 
+    /**
+     * The data of a series: the bin range and the weighted count of each bin.
+     */
+    private static class Series implements Cloneable, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private Comparable key;
+        private double[] counts;
+        private double minimum;
+        private double maximum;
+        private double binWidth;
+        private int total;
+
+        Series(Comparable key, int bins, double minimum, double maximum, int total) {
+            this.key = key;
+            this.counts = new double[bins];
+            this.minimum = minimum;
+            this.maximum = maximum;
+            this.binWidth = (maximum - minimum) / bins;
+            this.total = total;
+        }
+
+        // make sure the last bin's upper boundary ends at maximum to avoid
+        // the rounding issue, the first bin's lower boundary is minimum
+        double getStartBoundary(int bin) {
+            checkBin(bin);
+            return bin == 0 ? minimum : minimum + bin * binWidth;
+        }
+
+        double getEndBoundary(int bin) {
+            checkBin(bin);
+            return bin == counts.length - 1 ? maximum : minimum + (bin + 1) * binWidth;
+        }
+
+        private void checkBin(int bin) {
+            if (bin < 0 || bin >= counts.length) {
+                throw new IndexOutOfBoundsException("Bin index " + bin + " out of bounds.");
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof Series)) {
+                return false;
+            }
+            Series that = (Series) obj;
+            return ObjectUtilities.equal(this.key, that.key)
+                    && this.minimum == that.minimum
+                    && this.maximum == that.maximum
+                    && this.total == that.total
+                    && Arrays.equals(this.counts, that.counts);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (key == null ? 0 : key.hashCode()) + Arrays.hashCode(counts);
+        }
+
+        @Override
+        public Series clone() throws CloneNotSupportedException {
+            Series clone = (Series) super.clone();
+            clone.counts = this.counts.clone();
+            return clone;
+        }
+    }
+
 }
@@ -3,11 +3,12 @@ package microsim.gui.plot;
 //package microsim.gui.plot;
 
 import java.awt.Color;
+import java.awt.GraphicsEnvironment;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JInternalFrame;
 
-import microsim.engine.SimulationEngine;
 import microsim.event.CommonEventType;
 import microsim.event.EventListener;
 import microsim.statistics.IUpdatableSource;
@@ -24,7 +25,6 @@ import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.StandardXYBarPainter;
 import org.jfree.chart.renderer.xy.XYBarRenderer;
-import org.jfree.data.general.SeriesChangeEvent;
 import org.jfree.data.statistics.HistogramType;
 
 /**
@@ -83,6 +83,14 @@ public class Weighted_HistogramSimulationPlotter extends JInternalFrame implemen
 	private Double minimum;
 	
 	private Double maximum;
+
+	private final AtomicReference<Weighted_HistogramDataset> pendingDataset = new AtomicReference<Weighted_HistogramDataset>();
+
+	private final Runnable renderTask = new Runnable() {
+		public void run() {
+			render();
+		}
+	};
 	
 	/**
 	 * Constructor for histogram chart objects with chart legend displayed by default and
@@ -185,16 +193,28 @@ public class Weighted_HistogramSimulationPlotter extends JInternalFrame implemen
         final NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
         rangeAxis.setStandardTickUnits(NumberAxis.createStandardTickUnits());
         
-        final ChartPanel chartPanel = new ChartPanel(chart);
+        if (!GraphicsEnvironment.isHeadless()) {
+	        final ChartPanel chartPanel = new ChartPanel(chart);
                 
-        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
+	        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
 			
-        setContentPane(chartPanel);
+	        setContentPane(chartPanel);
+        }
         
         this.setSize(400, 400);
 	}
 	
 
+	/**
+	 * Return the chart of the plotter, e.g. to draw it offscreen with a
+	 * {@link PlotRecorder}.
+	 *
+	 * @return The chart.
+	 */
+	public JFreeChart getChart() {
+		return chart;
+	}
+
 	public void onEvent(Enum<?> type) {
 		if (type instanceof CommonEventType && type.equals(CommonEventType.Update)) {
 			update();
@@ -204,9 +224,10 @@ public class Weighted_HistogramSimulationPlotter extends JInternalFrame implemen
 
 	public void update() {
 
-		dataset = new Weighted_HistogramDataset();
+		// The new dataset is filled on the simulation thread and published to the 
+		// chart on the EDT by the PlotRenderScheduler.
+		Weighted_HistogramDataset dataset = new Weighted_HistogramDataset();
 		dataset.setType(type);
-		chart.getXYPlot().setDataset(dataset);
 		
 //		int s = 0;
 //		Color color = (Color) chart.getXYPlot().getRenderer().getItemPaint(s, 0);
@@ -226,8 +247,17 @@ public class Weighted_HistogramSimulationPlotter extends JInternalFrame implemen
 			
 			
 		}
-		dataset.seriesChanged(new SeriesChangeEvent(new String("Update at time " + SimulationEngine.getInstance().getTime())));
+		pendingDataset.set(dataset);
+		PlotRenderScheduler.getInstance().requestRender(renderTask);
+	}
+
+	private void render() {
+		Weighted_HistogramDataset latest = pendingDataset.getAndSet(null);
+		if (latest == null)
+			return;
 
+		dataset = latest;
+		chart.getXYPlot().setDataset(dataset);
 	}
 
 
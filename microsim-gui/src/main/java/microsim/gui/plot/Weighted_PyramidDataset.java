@@ -46,6 +46,7 @@ package microsim.gui.plot;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -70,12 +71,15 @@ public class Weighted_PyramidDataset extends AbstractSeriesDataset
     /** For serialization. */
     private static final long serialVersionUID = -6875925093485823495L;
 
-    /** A list of maps. */
-    private Map<String, Map<GroupName, Double>> dataMap;
+    /** The weighted sum of each group, per series key. */
+    private Map<String, double[]> dataMap;
     private double[][] groupRanges;
     private GroupName[] groupNames;
     private double scalingFactor = 1.0;
     
+    /** Finds the group of a value, built once from the group ranges. */
+    private GroupIndex groupIndex;
+    
     /**
      * Creates a new dataset using the provided groupNames and 
      * groupRanges to build a HashMap of total group weight.
@@ -89,10 +93,11 @@ public class Weighted_PyramidDataset extends AbstractSeriesDataset
         ParamChecks.nullNotPermitted(groupNames, "groupNames");
         ParamChecks.nullNotPermitted(groupRanges, "groupRanges");
         ParamChecks.nullNotPermitted(scalingFactor, "scalingFactor");
-        this.dataMap = new HashMap<String, Map<GroupName, Double>>();
+        this.dataMap = new HashMap<String, double[]>();
         this.groupNames = groupNames;
         this.groupRanges = groupRanges;
         this.scalingFactor = scalingFactor;
+        this.groupIndex = new GroupIndex(groupRanges, groupNames.length);
     }
     
     /**
@@ -120,20 +125,14 @@ public class Weighted_PyramidDataset extends AbstractSeriesDataset
     	// Create and add the two series to the dataMap  
     	for (int s = 0; s < 2; s++) {
             // for each series create a new bucket to store the variable sums
-            Map<GroupName, Double> bucket = new HashMap<GroupName, Double>();
+            double[] bucket = new double[this.groupNames.length];
+            // the weights are multiplied by the scaling factor (negated if this is the left side)
+            double factor = s==1?scalingFactor:-scalingFactor;
     		
             for (int v = 0; v < values[s].length; v++) {	// for each value
-            	for (int g=0; g < this.groupNames.length; g++) {	// for each group
-            		// if the value matches the group, add to the correct bucket element
-            		if (values[s][v] >= this.groupRanges[g][0] && values[s][v] <= this.groupRanges[g][1]) {  
-            			// if the element does not exist, create it
-                    	if (!bucket.containsKey(this.groupNames[g])) bucket.put(this.groupNames[g], 0.); 
-                    	// multiply the weight by the scaling factor and add to the existing sum (negate if this is the left side),  
-                    	bucket.put(this.groupNames[g], bucket.get(this.groupNames[g]) + weightings[s][v] * (s==1?scalingFactor:-scalingFactor));
-                    	// do not check any more groups for this value
-                    	break;
-            		}
-            	}
+            	int g = groupIndex.find(values[s][v]);
+            	if (g >= 0)
+            		bucket[g] += weightings[s][v] * factor;
             }
             // store the series bucket
             dataMap.put(keys[s], bucket);
@@ -219,11 +218,9 @@ public class Weighted_PyramidDataset extends AbstractSeriesDataset
 	public double[][] getDataArray() {
 		double [][] data = new double[dataMap.keySet().size()][groupNames.length];
 		int i=0;
-		for (Map<GroupName, Double> v :  dataMap.values()){
-			int j=0;
-	        for (GroupName entry : groupNames)
-	        	// make sure that if either side of the dataset is missing a value, this is filled with 0
-	        	data[i][j++] = v.containsKey(entry)?v.get(entry):0; 
+		for (double[] v :  dataMap.values()){
+			// groups without any value are left to 0
+			System.arraycopy(v, 0, data[i], 0, groupNames.length);
 	        i++;
 		}
 		
@@ -331,5 +328,101 @@ public class Weighted_PyramidDataset extends AbstractSeriesDataset
 		return null;
 	}
 
+	/**
+	 * Finds the group of a value. A value belongs to the first group (in the
+	 * order given) whose range [min, max] contains it. When the groups do not
+	 * overlap they are sorted by their lower bound and searched in O(log g);
+	 * when they are contiguous integer ranges of the same width, as the age
+	 * groups made by the Weighted_PyramidPlotter, the group is found directly 
+	 * from the value. Overlapping groups are scanned linearly.
+	 */
+	private static class GroupIndex implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final double[][] groupRanges;
+		private final int groups;
+		// The groups that can contain a value, sorted by lower bound
+		private final int[] order;
+		private final double[] lower;
+		private final double[] upper;
+		private final boolean overlapping;
+		// Width of the groups for the direct index, 0 if not applicable
+		private final double width;
+
+		GroupIndex(final double[][] groupRanges, int groups) {
+			this.groupRanges = groupRanges;
+			this.groups = groups;
+			
+			Integer[] sorted = new Integer[groups];
+			int n = 0;
+			for (int g = 0; g < groups; g++)
+				if (groupRanges[g][0] <= groupRanges[g][1])		//Empty or NaN ranges never match
+					sorted[n++] = g;
+			Arrays.sort(sorted, 0, n, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int c = Double.compare(groupRanges[a][0], groupRanges[b][0]);
+					return c != 0 ? c : a.compareTo(b);
+				}
+			});
+
+			order = new int[n];
+			lower = new double[n];
+			upper = new double[n];
+			boolean overlap = false;
+			for (int i = 0; i < n; i++) {
+				order[i] = sorted[i];
+				lower[i] = groupRanges[sorted[i]][0];
+				upper[i] = groupRanges[sorted[i]][1];
+				if (i > 0 && lower[i] <= upper[i-1])
+					overlap = true;
+			}
+			overlapping = overlap;
+			
+			// Contiguous integer groups of the same width, e.g. 0-4, 5-9, 10-14...
+			double w = n > 0 ? upper[0] - lower[0] + 1 : 0;
+			boolean uniform = n > 0 && !overlap;
+			for (int i = 0; i < n && uniform; i++) {
+				uniform = lower[i] == Math.rint(lower[i]) && upper[i] == Math.rint(upper[i]) 
+						&& upper[i] - lower[i] + 1 == w && (i == 0 || lower[i] == upper[i-1] + 1);
+			}
+			width = uniform ? w : 0;
+		}
+
+		/**
+		 * Return the index of the group containing the value, -1 if none.
+		 */
+		int find(double value) {
+			if (overlapping) {
+				for (int g = 0; g < groups; g++)
+					if (value >= groupRanges[g][0] && value <= groupRanges[g][1])
+						return g;
+				return -1;
+			}
+			
+			int n = order.length;
+			if (n == 0 || !(value >= lower[0]) || !(value <= upper[n-1]))		//Also rejects NaN
+				return -1;
+			
+			int i;
+			if (width > 0)
+				i = Math.min((int) ((value - lower[0]) / width), n - 1);
+			else {
+				// Last group whose lower bound is not greater than the value
+				int low = 0, high = n - 1;
+				while (low < high) {
+					int mid = (low + high + 1) >>> 1;
+					if (lower[mid] <= value)
+						low = mid;
+					else
+						high = mid - 1;
+				}
+				i = low;
+			}
+			// Values between two groups (e.g. 4.5 with groups 0-4, 5-9) belong to none
+			return value >= lower[i] && value <= upper[i] ? order[i] : -1;
+		}
+	}
+
 
 }
@@ -1,8 +1,10 @@
 package microsim.gui.plot;
 
 import java.awt.Color;
+import java.awt.GraphicsEnvironment;
 import java.text.DecimalFormat;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.JInternalFrame;
 
@@ -22,6 +24,7 @@ import org.jfree.chart.plot.CategoryPlot;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.chart.renderer.category.StackedBarRenderer;
 import org.jfree.chart.renderer.category.StandardBarPainter;
+import org.jfree.data.category.DefaultCategoryDataset;
 import org.jfree.data.general.DatasetUtilities;
 
 /**
@@ -104,6 +107,24 @@ public class Weighted_PyramidPlotter extends JInternalFrame implements EventList
 	
 	private double scalingFactor;	// This scales the sample (e.g. to the whole population) 
 
+	private DefaultCategoryDataset categoryDataset;	// The dataset shown by the chart, whose values are updated in place
+	
+	private GroupName[] shownGroupNames;	// The columns of categoryDataset, compared by identity
+	
+	private String[] shownSeriesKeys;		// The rows of categoryDataset
+	
+	private GroupDetails detectedGroups;	// The groups detected from the data, kept while the range of the data is unchanged
+	
+	private int detectedMin, detectedMax;
+	
+	private final AtomicReference<PyramidFrame> pendingFrame = new AtomicReference<PyramidFrame>();
+
+	private final Runnable renderTask = new Runnable() {
+		public void run() {
+			render();
+		}
+	};
+
 	
 	/**
 	 * Constructor for pyramid objects, showing only the latest data as time moves forward.
@@ -317,11 +338,13 @@ public class Weighted_PyramidPlotter extends JInternalFrame implements EventList
 		this.setResizable(true);
 		sources = new WeightedArraySource[2];
 		
+        // The chart, its renderer and its dataset are created once, the values are then updated in place
+        categoryDataset = (DefaultCategoryDataset) DatasetUtilities.createCategoryDataset(this.catNames, new String[] {""}, new double[][] {{0},{0}});
         chart = ChartFactory.createStackedBarChart(
                 title,      // chart title
                 this.xaxis,                      // x axis label
                 this.yaxis,                      // y axis label
-                DatasetUtilities.createCategoryDataset(this.catNames, new String[] {""}, new double[][] {{0},{0}}),
+                categoryDataset,
 	            PlotOrientation.HORIZONTAL,
 	            true,         // include legend
 	            true,
@@ -332,23 +355,35 @@ public class Weighted_PyramidPlotter extends JInternalFrame implements EventList
         
         chart.getCategoryPlot().getRangeAxis().setVisible(false);
         
-        final ChartPanel chartPanel = new ChartPanel(chart);
+        if (!GraphicsEnvironment.isHeadless()) {
+	        final ChartPanel chartPanel = new ChartPanel(chart);
                 
-        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
+	        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
 			
-        setContentPane(chartPanel);
+	        setContentPane(chartPanel);
+        }
         
         this.setSize(400, 400);
 	}
 	
 
+	/**
+	 * Return the chart of the plotter, e.g. to draw it offscreen with a
+	 * {@link PlotRecorder}.
+	 *
+	 * @return The chart.
+	 */
+	public JFreeChart getChart() {
+		return chart;
+	}
+
 	public void onEvent(Enum<?> type) {
 		if (type instanceof CommonEventType && type.equals(CommonEventType.Update)) {
 			update();
 		}
 	}
 
-	// This function generates a new chart based on the latest data  
+	// This function updates the chart with the latest data  
 	public void update() {
 		if (sources.length != 2 || catNames.length != 2) return;
 		GroupName[] groupNames = null;
@@ -361,14 +396,20 @@ public class Weighted_PyramidPlotter extends JInternalFrame implements EventList
 		final double[][] weights = new double[][] { leftData.getWeights(), rightData.getWeights() };
 		
         // If there are no groups defined, create one for each age between the min/max found in the data
-		// *Note: do we want this done in every repetition, or should we save to "this"? 
         if (this.groupNames == null || this.groupRanges == null) {
-        	int min = (int)Math.min(Arrays.stream(vals[0]).min().orElse(0), Arrays.stream(vals[1]).min().orElse(0));	// if there is no data, set min to 0
-        	int max = (int)Math.min(Arrays.stream(vals[0]).max().orElse(100), Arrays.stream(vals[1]).max().orElse(100));	// if there is no data, set max to 100
-    		// Create the groups based on the range, and save them to the local variables 
-        	GroupDetails gd = makeGroupsFromRange(min, max, 1, true, yaxisFormat);
-        	groupNames = gd.groupNames;
-        	groupRanges = gd.groupRanges;
+        	double[] left = minMax(vals[0]);
+        	double[] right = minMax(vals[1]);
+        	int min = (int)Math.min(left[0], right[0]);
+        	int max = (int)Math.min(left[1], right[1]);
+        	// The groups are only made again when the range of the data changes, so that the 
+        	// chart keeps its categories (and the dataset its columns) from one update to the next
+        	if (detectedGroups == null || min != detectedMin || max != detectedMax) {
+        		detectedGroups = makeGroupsFromRange(min, max, 1, true, yaxisFormat);
+        		detectedMin = min;
+        		detectedMax = max;
+        	}
+        	groupNames = detectedGroups.groupNames;
+        	groupRanges = detectedGroups.groupRanges;
         }
         else {
         	// else, just use the existing groups
@@ -380,29 +421,46 @@ public class Weighted_PyramidPlotter extends JInternalFrame implements EventList
         dataset = new Weighted_PyramidDataset(groupNames, groupRanges, scalingFactor);
 		dataset.addSeries(this.catNames, vals, weights);
 		
-		
-        chart = ChartFactory.createStackedBarChart(
-                this.title,      // chart title
-                this.xaxis,                      // x axis label
-                this.yaxis,                      // y axis label
-                DatasetUtilities.createCategoryDataset(
-                		dataset.getSeriesKeys(),	
-                		groupNames, 
-                		dataset.getDataArray()),      // data
-	            PlotOrientation.HORIZONTAL,
-	            true,         // include legend
-	            true,
-	            true
-        );
-        
-        setChartProperties();
-        
-        final ChartPanel chartPanel = new ChartPanel(chart);
-                
-        chartPanel.setPreferredSize(new java.awt.Dimension(500, 270));
-			
-        setContentPane(chartPanel);
+		// The values are copied into the chart's dataset on the EDT by the PlotRenderScheduler
+		pendingFrame.set(new PyramidFrame(dataset.getSeriesKeys(), groupNames, dataset.getDataArray()));
+		PlotRenderScheduler.getInstance().requestRender(renderTask);
+	}
+	
+	// Return {min, max} of the values in a single pass, or {0, 100} if there is no data.
+	// As with a stream reduction, a NaN value makes both NaN.
+	private static double[] minMax(double[] values) {
+		if (values.length == 0)
+			return new double[] { 0, 100 };
+		double min = values[0], max = values[0];
+		for (int i = 1; i < values.length; i++) {
+			min = Math.min(min, values[i]);
+			max = Math.max(max, values[i]);
+		}
+		return new double[] { min, max };
+	}
 
+	private void render() {
+		PyramidFrame frame = pendingFrame.getAndSet(null);
+		if (frame == null)
+			return;
+		
+		categoryDataset.setNotify(false);
+		if (frame.groupNames != shownGroupNames || !Arrays.equals(frame.seriesKeys, shownSeriesKeys)) {
+			// The categories have changed, so the rows and columns are laid out again
+			categoryDataset.clear();
+			shownGroupNames = frame.groupNames;
+			shownSeriesKeys = frame.seriesKeys;
+		}
+		for (int r = 0; r < frame.seriesKeys.length; r++) {
+			for (int c = 0; c < frame.groupNames.length; c++) {
+				categoryDataset.setValue(frame.data[r][c], frame.seriesKeys[r], frame.groupNames[c]);
+			}
+		}
+		// A single change event redraws the chart
+		categoryDataset.setNotify(true);
+		
+		// The range axis is hidden until there is data to show
+		chart.getCategoryPlot().getRangeAxis().setVisible(true);
 	}
 	
 	/**
@@ -431,6 +489,17 @@ public class Weighted_PyramidPlotter extends JInternalFrame implements EventList
         
 	}
 
+	private static class PyramidFrame {
+		final String[] seriesKeys;
+		final GroupName[] groupNames;
+		final double[][] data;
+		PyramidFrame(String[] seriesKeys, GroupName[] groupNames, double[][] data) {
+			this.seriesKeys = seriesKeys;
+			this.groupNames = groupNames;
+			this.data = data;
+		}
+	}
+
 	private class GroupDetails {
 		public GroupName[] groupNames;
 		public double[][] groupRanges;
@@ -0,0 +1,100 @@
+package microsim.gui.plot;
+
+/**
+ * A growable buffer of (series, x, y) samples stored in primitive arrays.
+ * It is used by the plotters to hand the values sampled on the simulation
+ * thread to the render task executed by the {@link PlotRenderScheduler}:
+ * the producer adds samples while the consumer swaps the whole content into
+ * its own buffer, so that the lock is held only for the time of the swap.
+ */
+class XYSampleBuffer {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int[] series;
+	private double[] x;
+	private double[] y;
+	private int size;
+
+	XYSampleBuffer() {
+		series = new int[INITIAL_CAPACITY];
+		x = new double[INITIAL_CAPACITY];
+		y = new double[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Append a sample.
+	 *
+	 * @param seriesIndex
+	 *            The index of the series the sample belongs to.
+	 * @param xValue
+	 *            The x value.
+	 * @param yValue
+	 *            The y value.
+	 */
+	synchronized void add(int seriesIndex, double xValue, double yValue) {
+		if (size == x.length) {
+			int capacity = size * 2;
+			int[] s = new int[capacity];
+			double[] xx = new double[capacity];
+			double[] yy = new double[capacity];
+			System.arraycopy(series, 0, s, 0, size);
+			System.arraycopy(x, 0, xx, 0, size);
+			System.arraycopy(y, 0, yy, 0, size);
+			series = s;
+			x = xx;
+			y = yy;
+		}
+		series[size] = seriesIndex;
+		x[size] = xValue;
+		y[size] = yValue;
+		size++;
+	}
+
+	/**
+	 * Move the content of this buffer into the target one, which receives the
+	 * samples in the same order they were added. The target buffer must be
+	 * confined to the calling thread. This buffer is left empty.
+	 *
+	 * @param target
+	 *            The buffer receiving the samples. Its previous content is
+	 *            discarded.
+	 */
+	synchronized void drainTo(XYSampleBuffer target) {
+		int[] s = target.series;
+		double[] xx = target.x;
+		double[] yy = target.y;
+
+		target.series = series;
+		target.x = x;
+		target.y = y;
+		target.size = size;
+
+		series = s;
+		x = xx;
+		y = yy;
+		size = 0;
+	}
+
+	/** Discard all the samples. */
+	synchronized void clear() {
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int getSeries(int item) {
+		return series[item];
+	}
+
+	double getX(int item) {
+		return x[item];
+	}
+
+	double getY(int item) {
+		return y[item];
+	}
+
+}
@@ -0,0 +1,51 @@
+package microsim.gui.space;
+
+import java.awt.Rectangle;
+import java.util.Collection;
+import java.util.function.ToIntFunction;
+
+/**
+ * Not of interest for users. A collection of agents with the functions
+ * returning their coordinates, which the object layers iterate over instead
+ * of the cells of their space, so that a sparse space is painted in a time
+ * proportional to the number of agents.
+ */
+final class AgentCoordinates<T>
+{
+  private final Collection<? extends T> agents;
+  private final ToIntFunction<? super T> xCoordinate, yCoordinate;
+
+  /** Visits the agents within the cells painted. */
+  interface Visitor
+  {
+    void visit(Object agent, int x, int y);
+  }
+
+  AgentCoordinates(Collection<? extends T> agents, ToIntFunction<? super T> xCoordinate,
+                   ToIntFunction<? super T> yCoordinate)
+  {
+    if (agents == null || xCoordinate == null || yCoordinate == null)
+      throw new IllegalArgumentException("AgentCoordinates: null agents or coordinate function.");
+    this.agents = agents;
+    this.xCoordinate = xCoordinate;
+    this.yCoordinate = yCoordinate;
+  }
+
+  /** Visit the agents within the given cells.
+   *  @param cells The cells painted.
+   *  @param visitor The visitor.*/
+  void forEach(Rectangle cells, Visitor visitor)
+  {
+    int x0 = cells.x, y0 = cells.y;
+    int x1 = x0 + cells.width, y1 = y0 + cells.height;
+    for (T agent : agents)
+    {
+      if (agent == null)
+        continue;
+      int x = xCoordinate.applyAsInt(agent);
+      int y = yCoordinate.applyAsInt(agent);
+      if (x >= x0 && x < x1 && y >= y0 && y < y1)
+        visitor.visit(agent, x, y);
+    }
+  }
+}
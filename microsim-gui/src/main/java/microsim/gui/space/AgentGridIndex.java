@@ -0,0 +1,403 @@
+package microsim.gui.space;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Not of interest for users. A grid index of agents with continuous
+ * coordinates, used by LayerContinuousAgentDrawer to draw the agents within
+ * the clip and to pick the agent under the mouse without scanning all of
+ * them. The agents are sorted by bucket with a counting sort, the buckets
+ * being sized to hold about one agent each when the agents are spread
+ * uniformly. A bucket holding more than a few agents, e.g. in a crowded
+ * area or on the border of the space where the agents outside it are put,
+ * is split further into a k-d tree stored implicitly in the order of its
+ * agents: its range is split at the median, alternately along x and y, until
+ * it holds a few agents. A query thus never scans a crowded bucket whole.
+ * <p>
+ * The index is a snapshot of the positions of the agents, rebuilt every
+ * time the layer is updated and never modified while it is published, so it
+ * can be read by the Event Dispatch Thread while the simulation moves the
+ * agents. The arrays of an index no longer published are reused by the
+ * next rebuild once no thread reads it, see acquire().
+ */
+final class AgentGridIndex
+{
+  //The number of agents above which a bucket is split into a k-d tree
+  private static final int LEAF_SIZE = 8;
+
+  //The agents in bucket order, each bucket being a k-d tree
+  private Object[] agents = new Object[0];
+  private double[] xs = new double[0], ys = new double[0];
+  private int[] tags = new int[0];
+  private int n;
+
+  private double bucketLen;
+  private int columns, rows;
+  private int[] bucketStart = new int[1];	//The agents of bucket b are from bucketStart[b] to bucketStart[b + 1] excluded
+
+  //Used by the rebuild only: the agents as they are collected, their
+  //buckets, and the positions they were collected at, moved with the
+  //coordinates while the buckets are split
+  private Object[] agentBuffer = new Object[0];
+  private double[] xBuffer = new double[0], yBuffer = new double[0];
+  private int[] tagBuffer = new int[0];
+  private int[] bucketOf = new int[0];
+  private int[] from = new int[0];
+  private int[] next = new int[0];
+
+  private final AtomicInteger readers = new AtomicInteger();
+
+  /** Visits the agents found. */
+  interface Visitor
+  {
+    /** @param i The index of the agent in the snapshot.*/
+    void visit(int i);
+  }
+
+  private AgentGridIndex()
+  {
+  }
+
+  /** Build the index of a collection of agents. The agents which are null
+   *  or have a NaN coordinate are left out.
+   *  @param agents The agents.
+   *  @param xCoordinate The function returning the x coordinate of an agent.
+   *  @param yCoordinate The function returning the y coordinate of an agent.
+   *  @param tag The function returning an int stored with the agent, e.g.
+   *         the index of its color, or null.
+   *  @param width The width of the space.
+   *  @param height The height of the space.
+   *  @param reuse An index no longer published and not read, whose arrays
+   *         are reused, or null.
+   *  @return The index, the reused one if given.*/
+  static <T> AgentGridIndex build(Collection<? extends T> agents, ToDoubleFunction<? super T> xCoordinate,
+                                  ToDoubleFunction<? super T> yCoordinate, ToIntFunction<? super T> tag,
+                                  double width, double height, AgentGridIndex reuse)
+  {
+    AgentGridIndex idx = reuse != null ? reuse : new AgentGridIndex();
+    int capacity = agents.size();
+    idx.ensureCapacity(capacity);
+
+    int n = 0;
+    for (T agent : agents)
+    {
+      if (agent == null || n == capacity)
+        continue;
+      double x = xCoordinate.applyAsDouble(agent);
+      double y = yCoordinate.applyAsDouble(agent);
+      if (Double.isNaN(x) || Double.isNaN(y))
+        continue;
+      idx.agentBuffer[n] = agent;
+      idx.xBuffer[n] = x;
+      idx.yBuffer[n] = y;
+      idx.tagBuffer[n] = tag != null ? tag.applyAsInt(agent) : 0;
+      n++;
+    }
+
+    idx.sort(n, width, height);
+    return idx;
+  }
+
+  private void ensureCapacity(int capacity)
+  {
+    if (xs.length >= capacity)
+      return;
+    capacity = Math.max(capacity, xs.length + (xs.length >> 1));
+    agents = new Object[capacity];
+    xs = new double[capacity];
+    ys = new double[capacity];
+    tags = new int[capacity];
+    agentBuffer = new Object[capacity];
+    xBuffer = new double[capacity];
+    yBuffer = new double[capacity];
+    tagBuffer = new int[capacity];
+    bucketOf = new int[capacity];
+    from = new int[capacity];
+  }
+
+  // Sort the n agents collected by bucket, and split the crowded buckets
+  private void sort(int n, double width, double height)
+  {
+    int previous = this.n;
+    this.n = n;
+
+    double area = Math.max(1.0, width) * Math.max(1.0, height);
+    bucketLen = Math.max(1.0, Math.sqrt(area / Math.max(1, n)));
+    columns = Math.max(1, (int) Math.ceil(Math.max(1.0, width) / bucketLen));
+    rows = Math.max(1, (int) Math.ceil(Math.max(1.0, height) / bucketLen));
+    int buckets = columns * rows;
+    if (bucketStart.length < buckets + 1)
+    {
+      bucketStart = new int[buckets + 1];
+      next = new int[buckets];
+    }
+
+    // Counting sort of the agents by bucket
+    Arrays.fill(bucketStart, 0, buckets + 1, 0);
+    for (int i = 0; i < n; i++)
+    {
+      bucketOf[i] = bucket(xBuffer[i], yBuffer[i]);
+      bucketStart[bucketOf[i] + 1]++;
+    }
+    for (int b = 0; b < buckets; b++)
+      bucketStart[b + 1] += bucketStart[b];
+    System.arraycopy(bucketStart, 0, next, 0, buckets);
+    for (int i = 0; i < n; i++)
+    {
+      int p = next[bucketOf[i]]++;
+      xs[p] = xBuffer[i];
+      ys[p] = yBuffer[i];
+      from[p] = i;
+    }
+
+    for (int b = 0; b < buckets; b++)
+      if (bucketStart[b + 1] - bucketStart[b] > LEAF_SIZE)
+        split(bucketStart[b], bucketStart[b + 1], 0);
+
+    // The agents and the tags are moved once, after the coordinates
+    for (int p = 0; p < n; p++)
+    {
+      agents[p] = agentBuffer[from[p]];
+      tags[p] = tagBuffer[from[p]];
+    }
+    // The agents of the previous snapshot are not kept alive
+    Arrays.fill(agents, n, Math.max(n, previous), null);
+    Arrays.fill(agentBuffer, 0, n, null);
+  }
+
+  /** Register a thread reading the index. The caller must check that the
+   *  index is still the published one afterwards, and call release() when
+   *  done.*/
+  void acquire()
+  {
+    readers.incrementAndGet();
+  }
+
+  /** Unregister a thread reading the index. */
+  void release()
+  {
+    readers.decrementAndGet();
+  }
+
+  /** Return if no thread reads the index, so that it can be rebuilt once it
+   *  is no longer published.
+   *  @return True if it is not read.*/
+  boolean isFree()
+  {
+    return readers.get() == 0;
+  }
+
+  private int column(double x)
+  {
+    return (int) Math.max(0, Math.min(columns - 1, Math.floor(x / bucketLen)));
+  }
+
+  private int row(double y)
+  {
+    return (int) Math.max(0, Math.min(rows - 1, Math.floor(y / bucketLen)));
+  }
+
+  // The agents outside the space are put in the buckets on its borders
+  private int bucket(double x, double y)
+  {
+    return row(y) * columns + column(x);
+  }
+
+  // Build the k-d tree of the agents from lo to hi excluded, split along x
+  // at even depths
+  private void split(int lo, int hi, int depth)
+  {
+    while (hi - lo > LEAF_SIZE)
+    {
+      int mid = (lo + hi) >>> 1;
+      select((depth & 1) == 0 ? xs : ys, lo, hi, mid);
+      split(lo, mid, depth + 1);
+      lo = mid + 1;
+      depth++;
+    }
+  }
+
+  // Move the agent of rank k by coordinate c to k, the agents before it
+  // having a coordinate not greater and those after it not smaller. It is a
+  // quickselect with a Hoare partition, which stops on the agents equal to
+  // the pivot, so that many agents at the same place split evenly
+  private void select(double[] c, int lo, int hi, int k)
+  {
+    int l = lo, r = hi - 1;
+    while (l < r)
+    {
+      int m = (l + r) >>> 1;
+      double a = c[l], b = c[m], d = c[r];
+      double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), d));
+
+      int i = l, j = r;
+      while (i <= j)
+      {
+        while (c[i] < pivot)
+          i++;
+        while (c[j] > pivot)
+          j--;
+        if (i <= j)
+          swap(i++, j--);
+      }
+      if (k <= j)
+        r = j;
+      else if (k >= i)
+        l = i;
+      else
+        return;
+    }
+  }
+
+  private void swap(int i, int j)
+  {
+    double x = xs[i], y = ys[i];
+    xs[i] = xs[j];
+    ys[i] = ys[j];
+    xs[j] = x;
+    ys[j] = y;
+    int f = from[i];
+    from[i] = from[j];
+    from[j] = f;
+  }
+
+  /** Return the number of agents indexed. */
+  int size()
+  {
+    return n;
+  }
+
+  Object agent(int i)
+  {
+    return agents[i];
+  }
+
+  double x(int i)
+  {
+    return xs[i];
+  }
+
+  double y(int i)
+  {
+    return ys[i];
+  }
+
+  int tag(int i)
+  {
+    return tags[i];
+  }
+
+  /** Visit the agents within a rectangle.
+   *  @param x0 The left side, included.
+   *  @param y0 The top side, included.
+   *  @param x1 The right side, excluded.
+   *  @param y1 The bottom side, excluded.
+   *  @param visitor The visitor.*/
+  void forEachIn(double x0, double y0, double x1, double y1, Visitor visitor)
+  {
+    int c0 = column(x0), c1 = column(x1);
+    int r0 = row(y0), r1 = row(y1);
+    for (int r = r0; r <= r1; r++)
+      for (int b = r * columns + c0; b <= r * columns + c1; b++)
+        forEachIn(bucketStart[b], bucketStart[b + 1], 0, x0, y0, x1, y1, visitor);
+  }
+
+  // Visit the agents within the rectangle in the k-d tree from lo to hi
+  private void forEachIn(int lo, int hi, int depth, double x0, double y0, double x1, double y1,
+                         Visitor visitor)
+  {
+    while (hi - lo > LEAF_SIZE)
+    {
+      int i = (lo + hi) >>> 1;
+      boolean alongX = (depth & 1) == 0;
+      double v = alongX ? xs[i] : ys[i];
+
+      if (xs[i] >= x0 && xs[i] < x1 && ys[i] >= y0 && ys[i] < y1)
+        visitor.visit(i);
+      if ((alongX ? x0 : y0) <= v)
+        forEachIn(lo, i, depth + 1, x0, y0, x1, y1, visitor);
+      if ((alongX ? x1 : y1) <= v)
+        return;
+      lo = i + 1;
+      depth++;
+    }
+
+    for (int i = lo; i < hi; i++)
+      if (xs[i] >= x0 && xs[i] < x1 && ys[i] >= y0 && ys[i] < y1)
+        visitor.visit(i);
+  }
+
+  /** Return the agent nearest to a point within a distance.
+   *  @param x The x coordinate of the point.
+   *  @param y The y coordinate of the point.
+   *  @param radius The maximum distance.
+   *  @return The index of the agent in the snapshot, -1 if none is found.*/
+  int nearest(double x, double y, double radius)
+  {
+    Nearest s = new Nearest(x, y, radius);
+    int c0 = column(x - radius), c1 = column(x + radius);
+    int r0 = row(y - radius), r1 = row(y + radius);
+    for (int r = r0; r <= r1; r++)
+      for (int b = r * columns + c0; b <= r * columns + c1; b++)
+        nearest(bucketStart[b], bucketStart[b + 1], 0, s);
+    return s.best;
+  }
+
+  // The state of a nearest agent search
+  private static final class Nearest
+  {
+    final double x, y;
+    double bestDistance;
+    int best = -1;
+
+    Nearest(double x, double y, double radius)
+    {
+      this.x = x;
+      this.y = y;
+      bestDistance = radius * radius;
+    }
+  }
+
+  // Search the k-d tree from lo to hi, the side of the point first and the
+  // other one if it may hold a nearer agent
+  private void nearest(int lo, int hi, int depth, Nearest s)
+  {
+    if (hi - lo <= LEAF_SIZE)
+    {
+      for (int i = lo; i < hi; i++)
+        check(i, s);
+      return;
+    }
+
+    int i = (lo + hi) >>> 1;
+    check(i, s);
+    double delta = (depth & 1) == 0 ? s.x - xs[i] : s.y - ys[i];
+    if (delta < 0)
+    {
+      nearest(lo, i, depth + 1, s);
+      if (delta * delta <= s.bestDistance)
+        nearest(i + 1, hi, depth + 1, s);
+    }
+    else
+    {
+      nearest(i + 1, hi, depth + 1, s);
+      if (delta * delta <= s.bestDistance)
+        nearest(lo, i, depth + 1, s);
+    }
+  }
+
+  private void check(int i, Nearest s)
+  {
+    double dx = xs[i] - s.x, dy = ys[i] - s.y;
+    double distance = dx * dx + dy * dy;
+    if (distance <= s.bestDistance)
+    {
+      s.bestDistance = distance;
+      s.best = i;
+    }
+  }
+}
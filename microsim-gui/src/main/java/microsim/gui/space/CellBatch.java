@@ -0,0 +1,136 @@
+package microsim.gui.space;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Not of interest for users. It collects the occupied cells of an object
+ * layer with the index of their color, and draws them grouped by color: the
+ * cells are bucketed with a counting sort on the color index, and every cell
+ * of a bucket is stamped with the same pre-rendered sprite, an image of the
+ * oval previously drawn by fillOval. The sprites are cached per color until
+ * the cell length changes. The buffers are reused from one paint to the next.
+ */
+final class CellBatch
+{
+  private int[] xs = new int[256], ys = new int[256], colors = new int[256];
+  private int size;
+
+  private int[] buckets = new int[0];
+  private int[] order = new int[0];
+
+  private final Map<Integer, BufferedImage> sprites = new HashMap<Integer, BufferedImage>();
+  private int spritesLen = -1;	//The length of the sprites cached
+
+  /** Remove all the cells. */
+  void clear()
+  {
+    size = 0;
+  }
+
+  /** Add a cell.
+   *  @param x The x coordinate of the cell.
+   *  @param y The y coordinate of the cell.
+   *  @param colorIndex The index of its color in the palette.*/
+  void add(int x, int y, int colorIndex)
+  {
+    if (size == xs.length)
+    {
+      int length = 2 * size;
+      xs = Arrays.copyOf(xs, length);
+      ys = Arrays.copyOf(ys, length);
+      colors = Arrays.copyOf(colors, length);
+    }
+    xs[size] = x;
+    ys[size] = y;
+    colors[size] = colorIndex;
+    size++;
+  }
+
+  /** Draw the cells added, one color at a time.
+   *  @param g The graphic context.
+   *  @param cellLen The length of a cell in pixels.
+   *  @param palette The palette of the color indices.*/
+  void draw(Graphics g, int cellLen, ColorPalette palette)
+  {
+    draw(g, cellLen, cellLen, palette);
+  }
+
+  /** Draw the sprites added, one color at a time. The coordinates added are
+   *  multiplied by the scale, e.g. a scale of 1 for coordinates in pixels.
+   *  @param g The graphic context.
+   *  @param scale The length of a coordinate unit in pixels.
+   *  @param spriteLen The length of a sprite in pixels.
+   *  @param palette The palette of the color indices.*/
+  void draw(Graphics g, int scale, int spriteLen, ColorPalette palette)
+  {
+    // The bucket of color c is c + 1, so that FixedColorMap.UNMAPPED_INDEX has the first one
+    int maxBucket = 0;
+    for (int s = 0; s < size; s++)
+      if (colors[s] + 1 > maxBucket)
+        maxBucket = colors[s] + 1;
+
+    // Counting sort of the cells by color
+    if (buckets.length < maxBucket + 1)
+      buckets = new int[maxBucket + 1];
+    Arrays.fill(buckets, 0, maxBucket + 1, 0);
+    for (int s = 0; s < size; s++)
+      buckets[colors[s] + 1]++;
+    for (int b = 0, start = 0; b <= maxBucket; b++)
+    {
+      int n = buckets[b];
+      buckets[b] = start;
+      start += n;
+    }
+    if (order.length < size)
+      order = new int[xs.length];
+    for (int s = 0; s < size; s++)
+      order[buckets[colors[s] + 1]++] = s;
+
+    // Now buckets[b] is the end of bucket b
+    for (int b = 0, begin = 0; b <= maxBucket; b++)
+    {
+      int end = buckets[b];
+      if (end > begin)
+      {
+        BufferedImage sprite = getSprite(palette.get(b - 1), spriteLen);
+        for (int q = begin; q < end; q++)
+        {
+          int s = order[q];
+          g.drawImage(sprite, xs[s] * scale, ys[s] * scale, null);
+        }
+      }
+      begin = end;
+    }
+  }
+
+  /** Return the sprite of a cell.
+   *  @param argb The color of the cell.
+   *  @param cellLen The length of a cell in pixels.
+   *  @return An image of the cell.*/
+  BufferedImage getSprite(int argb, int cellLen)
+  {
+    if (cellLen != spritesLen)
+    {
+      sprites.clear();
+      spritesLen = cellLen;
+    }
+
+    BufferedImage sprite = sprites.get(argb);
+    if (sprite == null)
+    {
+      sprite = new BufferedImage(cellLen, cellLen, BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g = sprite.createGraphics();
+      g.setColor(new Color(argb, true));
+      g.fillOval(0, 0, cellLen, cellLen);
+      g.dispose();
+      sprites.put(argb, sprite);
+    }
+    return sprite;
+  }
+}
@@ -0,0 +1,117 @@
+package microsim.gui.space;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+import microsim.gui.colormap.ColorMap;
+import microsim.gui.colormap.FixedColorMap;
+
+/**
+ * Not of interest for users. The colors of a ColorMap packed into the ARGB
+ * ints stored by the DataBufferInt of TYPE_INT_RGB and TYPE_INT_ARGB images,
+ * so that the grid drawers can write their pixels without going through the
+ * raster's SampleModel. The trasparency color of a layer is resolved once per
+ * palette entry, whose alpha is then 0.<br>
+ * The colors of a FixedColorMap are packed when the palette is created, the
+ * ones of other color maps the first time they are used. The palette can be
+ * read by several threads rasterizing the same grid.
+ */
+final class ColorPalette
+{
+  //The alpha of the packed colors is either 0 or 255, so this value never is a color
+  private static final int UNRESOLVED = 0x01000000;
+
+  private final ColorMap colorMap;
+  private final int[] trasparencyColor;
+
+  private volatile int[] argb = new int[0];
+
+  /** Create the palette of a color map.
+   *  @param colorMap The color map.
+   *  @param trasparencyColor The RGB components of the trasparency color,
+   *         or null if the layer is opaque.*/
+  ColorPalette(ColorMap colorMap, int[] trasparencyColor)
+  {
+    this.colorMap = colorMap;
+    this.trasparencyColor = trasparencyColor;
+
+    if (colorMap instanceof FixedColorMap)
+    {
+      Color[] colors = ((FixedColorMap) colorMap).toArray();
+      for (int i = 0; i < colors.length; i++)
+        if (colors[i] != null)
+          resolve(i);
+    }
+  }
+
+  /** Return the packed color of a color index.
+   *  @param index The color index returned by the color map.
+   *  @return The ARGB color.*/
+  int get(int index)
+  {
+    int[] a = argb;
+    if (index >= 0 && index < a.length && a[index] != UNRESOLVED)
+      return a[index];
+    // A negative index, e.g. FixedColorMap.UNMAPPED_INDEX, is not cached
+    if (index < 0)
+      return pack(colorMap.getColorComponents(index));
+    return resolve(index);
+  }
+
+  private synchronized int resolve(int index)
+  {
+    int[] a = argb;
+    if (index >= a.length)
+    {
+      int length = Math.max(index + 1, 2 * a.length);
+      a = Arrays.copyOf(a, length);
+      Arrays.fill(a, argb.length, length, UNRESOLVED);
+    }
+    else if (a[index] != UNRESOLVED)
+      return a[index];
+
+    a[index] = pack(colorMap.getColorComponents(index));
+    argb = a;
+    return a[index];
+  }
+
+  /** Map a slice of values to packed colors with the bulk method of the
+   *  color map. The colors equal to the trasparency color get alpha 0.
+   *  @param values The values.
+   *  @param from The index of the first value.
+   *  @param argb The array receiving the colors.
+   *  @param offset The index of the first color.
+   *  @param length The number of values.*/
+  void map(double[] values, int from, int[] argb, int offset, int length)
+  {
+    colorMap.getColors(values, from, argb, offset, length);
+    clearTrasparency(argb, offset, length);
+  }
+
+  /** The same as map(double[], ...) for int values. */
+  void map(int[] values, int from, int[] argb, int offset, int length)
+  {
+    colorMap.getColors(values, from, argb, offset, length);
+    clearTrasparency(argb, offset, length);
+  }
+
+  private void clearTrasparency(int[] argb, int offset, int length)
+  {
+    if (trasparencyColor == null)
+      return;
+    int rgb = ColorMap.pack(trasparencyColor) & 0x00FFFFFF;
+    for (int i = offset; i < offset + length; i++)
+      if ((argb[i] & 0x00FFFFFF) == rgb)
+        argb[i] = rgb;
+  }
+
+  private int pack(int[] c)
+  {
+    int alpha = 0xFF;
+    if (trasparencyColor != null && c[0] == trasparencyColor[0] &&
+        c[1] == trasparencyColor[1] && c[2] == trasparencyColor[2])
+      alpha = 0;
+
+    return alpha << 24 | (c[0] & 0xFF) << 16 | (c[1] & 0xFF) << 8 | (c[2] & 0xFF);
+  }
+}
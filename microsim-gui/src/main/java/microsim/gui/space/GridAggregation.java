@@ -0,0 +1,32 @@
+package microsim.gui.space;
+
+/**
+ * The statistic summarizing the block of cells shown by a single pixel when
+ * a grid layer is zoomed out, see LayeredSurfacePanel.setZoomOutLevel().
+ *
+ * <p>Title: JAS-mine</p>
+ * <p>Description: Java Agent-based Simulation library</p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+public enum GridAggregation
+{
+  /** The block is drawn with the color of the mean of its values. */
+  MEAN,
+  /** The block is drawn with the color of its maximum value. */
+  MAX,
+  /** The block is drawn with its most frequent color. Beyond the first
+   *  level the mode is taken over the four blocks of the level beneath,
+   *  so it approximates the mode of the cells. */
+  MODE
+}
@@ -0,0 +1,323 @@
+package microsim.gui.space;
+
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Not of interest for users. The aggregation pyramid used by the grid
+ * drawers when they are zoomed out: level l holds one value for each block
+ * of 2^l x 2^l cells, computed from the four blocks of level l - 1 (the
+ * cells themselves for level 1), and the layer is drawn with one pixel per
+ * block of the requested level.<br>
+ * The pyramid is updated incrementally: the first level is recomputed from
+ * the cells to be drawn, and a block of the upper levels is recomputed only
+ * when one of the blocks beneath has changed. As for the full resolution
+ * image, the blocks outside the cells drawn are brought up to date when
+ * they are first drawn, and the blocks are rasterized into the back image
+ * of a GridRaster over the visible blocks, so that drawing the pyramid does
+ * not wait for an update. The pyramid is updated by one thread at a time,
+ * which the layer ensures by its lock.
+ */
+abstract class GridPyramid
+{
+  private final int xSize, ySize;
+  private final GridAggregation aggregation;
+  private final ColorPalette palette;
+  private final boolean transparent;
+
+  private double[][] values = new double[1][];	//The values of level l, level 0 is the grid
+  private BitSet[] dirty = new BitSet[1];	//The blocks of level l whose blocks beneath have changed, all of them initially
+
+  private volatile Level current;	//The level drawn and its image, null until the first update
+
+  // The image of a level
+  private static final class Level
+  {
+    final int level;
+    final GridRaster raster;
+
+    Level(int level, GridRaster raster)
+    {
+      this.level = level;
+      this.raster = raster;
+    }
+  }
+
+  /** Create a pyramid.
+   *  @param xSize The width of the grid.
+   *  @param ySize The height of the grid.
+   *  @param aggregation The statistic of the blocks.
+   *  @param palette The palette of the color indices.
+   *  @param transparent True if the layer has a trasparency color.*/
+  GridPyramid(int xSize, int ySize, GridAggregation aggregation, ColorPalette palette, boolean transparent)
+  {
+    this.xSize = xSize;
+    this.ySize = ySize;
+    this.aggregation = aggregation;
+    this.palette = palette;
+    this.transparent = transparent;
+  }
+
+  /** Return the value of a cell.
+   *  @param k The index of the cell in the grid array.*/
+  abstract double value(int k);
+
+  /** Return the color index of a value.
+   *  @param value A value of a cell or an aggregated value.*/
+  abstract int colorIndex(double value);
+
+  // The number of blocks of a level covering the given number of cells
+  private static int blocks(int cells, int level)
+  {
+    return cells == 0 ? 0 : ((cells - 1) >> level) + 1;
+  }
+
+  private void setLevel(int level)
+  {
+    if (values.length <= level)
+    {
+      int from = values.length;
+      values = Arrays.copyOf(values, level + 1);
+      dirty = Arrays.copyOf(dirty, level + 1);
+      for (int l = from; l <= level; l++)
+      {
+        int n = blocks(xSize, l) * blocks(ySize, l);
+        values[l] = new double[n];
+        dirty[l] = new BitSet(n);
+        dirty[l].set(0, n);
+      }
+    }
+
+    current = new Level(level, new GridRaster(transparent));
+  }
+
+  /** Return if the given cells have been updated at the given level since
+   *  they were last drawn.
+   *  @param level The zoom out level, at least 1.
+   *  @param cells The cells to be drawn.
+   *  @return True if they are up to date.*/
+  boolean isFresh(int level, Rectangle cells)
+  {
+    Level c = current;
+    return c != null && c.level == level && c.raster.isFresh(toBlocks(cells, level));
+  }
+
+  /** Draw the given cells aggregated at the given level, as they were at
+   *  the last update. Nothing is drawn if the last update was at another
+   *  level.
+   *  @param g The graphic context.
+   *  @param level The zoom out level, at least 1.
+   *  @param cells The cells to be drawn.*/
+  void paint(Graphics g, int level, Rectangle cells)
+  {
+    Level c = current;
+    if (c != null && c.level == level)
+      c.raster.draw(g, toBlocks(cells, level), 1);
+  }
+
+  // The blocks of a level covering the given cells, within the grid
+  private Rectangle toBlocks(Rectangle cells, int level)
+  {
+    Rectangle c = cells.intersection(new Rectangle(0, 0, xSize, ySize));
+    if (c.isEmpty())
+      return new Rectangle();
+    int x0 = c.x >> level, y0 = c.y >> level;
+    return new Rectangle(x0, y0, ((c.x + c.width - 1) >> level) - x0 + 1,
+                                 ((c.y + c.height - 1) >> level) - y0 + 1);
+  }
+
+  /** Update the given cells aggregated at the given level.
+   *  @param level The zoom out level, at least 1.
+   *  @param cells The cells to be checked.
+   *  @return The bounds of the changed blocks in pixels.*/
+  Rectangle update(int level, Rectangle cells)
+  {
+    boolean resized = current == null || current.level != level;
+    if (resized)
+      setLevel(level);
+
+    Rectangle b = toBlocks(cells, level);
+    if (b.isEmpty())
+      return new Rectangle();
+
+    // The levels beneath are aggregated over the blocks of the top one, so
+    // that every block computed has its blocks beneath up to date
+    for (int l = 1; l <= level; l++)
+    {
+      int shift = level - l;
+      int w = blocks(xSize, l), h = blocks(ySize, l);
+      aggregate(l, b.x << shift, b.y << shift,
+                Math.min(w, (b.x + b.width) << shift), Math.min(h, (b.y + b.height) << shift));
+    }
+
+    Rectangle dirty = draw(current.raster, b);
+    return resized ? new Rectangle(0, 0, blocks(xSize, level), blocks(ySize, level)) : dirty;
+  }
+
+  // Recompute the blocks of level l from (x0, y0) to (x1, y1) excluded
+  private void aggregate(int l, int x0, int y0, int x1, int y1)
+  {
+    int w = blocks(xSize, l);
+    int parentW = blocks(xSize, l + 1);
+    double[] v = values[l];
+    BitSet d = dirty[l];
+    BitSet parentDirty = l + 1 < dirty.length ? dirty[l + 1] : null;
+
+    for (int by = y0; by < y1; by++)
+      for (int bx = x0; bx < x1; bx++)
+      {
+        int idx = by * w + bx;
+        // The first level has no marks, the cells are not tracked
+        if (l > 1)
+        {
+          if (!d.get(idx))
+            continue;
+          d.clear(idx);
+        }
+
+        double a = aggregate(l, bx, by);
+        if (Double.compare(a, v[idx]) != 0)
+        {
+          v[idx] = a;
+          if (parentDirty != null)
+            parentDirty.set((by >> 1) * parentW + (bx >> 1));
+        }
+      }
+  }
+
+  // The value of a block of level l from the (up to) four blocks beneath
+  private double aggregate(int l, int bx, int by)
+  {
+    int below = l - 1;
+    int w = blocks(xSize, below), h = blocks(ySize, below);
+    int cx0 = 2 * bx, cx1 = Math.min(w, cx0 + 2);
+    int cy0 = 2 * by, cy1 = Math.min(h, cy0 + 2);
+
+    // The common case of four blocks of the same size
+    if (cx1 - cx0 == 2 && cy1 - cy0 == 2 && (below == 0 || (cx1 << below <= xSize && cy1 << below <= ySize)))
+    {
+      double a = child(below, cx0, cy0, w), b = child(below, cx0 + 1, cy0, w);
+      double c = child(below, cx0, cy0 + 1, w), d = child(below, cx0 + 1, cy0 + 1, w);
+      switch (aggregation)
+      {
+        case MAX:
+          return Math.max(Math.max(a, b), Math.max(c, d));
+        case MODE:
+          // The first of the most frequent values, in row order
+          int na = 1 + (a == b ? 1 : 0) + (a == c ? 1 : 0) + (a == d ? 1 : 0);
+          int nb = 1 + (b == c ? 1 : 0) + (b == d ? 1 : 0);
+          int nc = 1 + (c == d ? 1 : 0);
+          if (na >= nb && na >= nc && na >= 2)
+            return a;
+          if (nb >= nc && nb >= 2)
+            return b;
+          if (nc >= 2)
+            return c;
+          return a;
+        default:
+          return (a + b + c + d) / 4;
+      }
+    }
+
+    switch (aggregation)
+    {
+      case MAX:
+      {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int cy = cy0; cy < cy1; cy++)
+          for (int cx = cx0; cx < cx1; cx++)
+            max = Math.max(max, child(below, cx, cy, w));
+        return max;
+      }
+      case MODE:
+      {
+        double mode = 0;
+        int best = 0;
+        for (int cy = cy0; cy < cy1; cy++)
+          for (int cx = cx0; cx < cx1; cx++)
+          {
+            double c = child(below, cx, cy, w);
+            int count = 0;
+            for (int oy = cy0; oy < cy1; oy++)
+              for (int ox = cx0; ox < cx1; ox++)
+                if (child(below, ox, oy, w) == c)
+                  count++;
+            if (count > best)
+            {
+              best = count;
+              mode = c;
+            }
+          }
+        return mode;
+      }
+      default:
+      {
+        // The blocks on the borders of the grid may cover fewer cells
+        double sum = 0;
+        long weights = 0;
+        for (int cy = cy0; cy < cy1; cy++)
+          for (int cx = cx0; cx < cx1; cx++)
+          {
+            long weight = (long) cellsOf(xSize, below, cx) * cellsOf(ySize, below, cy);
+            sum += weight * child(below, cx, cy, w);
+            weights += weight;
+          }
+        return sum / weights;
+      }
+    }
+  }
+
+  // The number of cells covered by the block index of a level along a side
+  private static int cellsOf(int cells, int level, int index)
+  {
+    return Math.min(cells, (index + 1) << level) - (index << level);
+  }
+
+  private double child(int level, int x, int y, int w)
+  {
+    if (level > 0)
+      return values[level][y * w + x];
+
+    double v = value(y * xSize + x);
+    return aggregation == GridAggregation.MODE ? colorIndex(v) : v;
+  }
+
+  // Write the pixels of the changed blocks into the back image, publish it
+  // and return the bounds of the blocks written
+  private Rectangle draw(GridRaster raster, Rectangle b)
+  {
+    int level = current.level;
+    int w = blocks(xSize, level);
+    double[] v = values[level];
+    int[] data = raster.begin(b);
+    Rectangle region = raster.getRegion();
+    int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+
+    for (int by = b.y; by < b.y + b.height; by++)
+    {
+      int pixel = (by - region.y) * region.width + b.x - region.x;
+      for (int bx = b.x; bx < b.x + b.width; bx++, pixel++)
+      {
+        int idx = by * w + bx;
+        int currIndex = aggregation == GridAggregation.MODE ? (int) v[idx] : colorIndex(v[idx]);
+        int argb = palette.get(currIndex);
+        if (argb != data[pixel])
+        {
+          data[pixel] = argb;
+
+          if (bx < minX) minX = bx;
+          if (bx > maxX) maxX = bx;
+          if (by < minY) minY = by;
+          maxY = by;
+        }
+      }
+    }
+    raster.publish(b);
+
+    if (maxX < minX)
+      return new Rectangle();
+    return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+  }
+}
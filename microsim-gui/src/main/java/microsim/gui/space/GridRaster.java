@@ -0,0 +1,185 @@
+package microsim.gui.space;
+
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Not of interest for users. The double buffered image of a grid layer, with
+ * one pixel per cell over a region of the grid: the region follows the cells
+ * drawn, usually the visible ones, so the memory taken depends on the size of
+ * the viewport rather than on the size of the grid. The cells are rasterized
+ * into the back image, which starts as a copy of the front one, so that the
+ * changed cells are found by comparing their colors with the pixels; the back
+ * image is then published by swapping it with the front one under a short
+ * lock, which is the only lock taken when the front image is drawn. The
+ * Event Dispatch Thread thus never waits for a rasterization in progress.<br>
+ * The back image is written by one thread at a time, which the layer
+ * ensures by its own lock.
+ */
+final class GridRaster
+{
+  /** The pixel of a cell not drawn yet, never a packed color whose alpha is 0 or 255. */
+  static final int UNDRAWN = Integer.MIN_VALUE;
+
+  // An image with the region of the grid it covers
+  private static final class Buffer
+  {
+    final BufferedImage img;
+    final int[] data;
+    Rectangle region;
+
+    Buffer(int width, int height, boolean transparent)
+    {
+      img = new BufferedImage(width, height, transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+      data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    }
+  }
+
+  private final boolean transparent;
+
+  private final Object frontLock = new Object();
+  private Buffer front;	//Guarded by frontLock
+  private Rectangle fresh;	//The cells of the front image up to date, guarded by frontLock
+  private Buffer back;
+  private long largest;	//The largest number of cells rasterized at once
+
+  /** Create an empty raster.
+   *  @param transparent True if the layer has a trasparency color.*/
+  GridRaster(boolean transparent)
+  {
+    this.transparent = transparent;
+  }
+
+  /** Prepare the back image to rasterize the given cells, as a copy of the
+   *  front image where they overlap. The region of the back image is the one
+   *  of the front image if it contains the cells, e.g. for a partial repaint,
+   *  or their union when it is at most twice the largest cells rasterized,
+   *  e.g. while panning, otherwise the cells themselves.
+   *  @param cells The cells, within the grid and not empty.
+   *  @return The pixels of the back image, row by row over its region.*/
+  int[] begin(Rectangle cells)
+  {
+    largest = Math.max(largest, (long) cells.width * cells.height);
+    Rectangle region = cells;
+    Rectangle r = getFrontRegion();
+    if (r != null && r.contains(cells))
+      region = r;
+    else if (r != null)
+    {
+      Rectangle u = r.union(cells);
+      if ((long) u.width * u.height <= 2 * largest)
+        region = u;
+    }
+
+    if (back == null || back.img.getWidth() != region.width || back.img.getHeight() != region.height)
+      back = new Buffer(region.width, region.height, transparent);
+    back.region = new Rectangle(region);
+
+    Buffer f;
+    synchronized (frontLock)
+    {
+      f = front;
+    }
+    // The front image is not written until it is swapped again, by this thread
+    Rectangle overlap = f == null ? new Rectangle() : f.region.intersection(region);
+    if (overlap.isEmpty())
+      Arrays.fill(back.data, UNDRAWN);
+    else
+    {
+      if (!overlap.equals(region))
+        Arrays.fill(back.data, UNDRAWN);
+      for (int y = overlap.y; y < overlap.y + overlap.height; y++)
+        System.arraycopy(f.data, (y - f.region.y) * f.region.width + overlap.x - f.region.x,
+                         back.data, (y - region.y) * region.width + overlap.x - region.x, overlap.width);
+    }
+    return back.data;
+  }
+
+  /** Return the region of the back image, set by begin().
+   *  @return The region.*/
+  Rectangle getRegion()
+  {
+    return back.region;
+  }
+
+  /** Swap the back image with the front one.
+   *  @param cells The cells brought up to date.*/
+  void publish(Rectangle cells)
+  {
+    synchronized (frontLock)
+    {
+      Buffer b = front;
+      front = back;
+      back = b;
+      fresh = cells;
+    }
+  }
+
+  /** Return the region of the front image.
+   *  @return The region, null if there is no image.*/
+  Rectangle getFrontRegion()
+  {
+    synchronized (frontLock)
+    {
+      return front == null ? null : front.region;
+    }
+  }
+
+  /** Return if the given cells of the front image have been brought up to
+   *  date since it was last drawn.
+   *  @param cells The cells.
+   *  @return True if they are up to date.*/
+  boolean isFresh(Rectangle cells)
+  {
+    synchronized (frontLock)
+    {
+      return fresh != null && fresh.contains(cells);
+    }
+  }
+
+  /** Draw the given cells of the front image, within the clip of the
+   *  graphic context, scaled up with nearest neighbor interpolation.
+   *  The cells are no longer up to date afterwards.
+   *  @param g The graphic context.
+   *  @param cells The cells to be drawn.
+   *  @param cellLen The length of a cell in pixels.*/
+  void draw(Graphics g, Rectangle cells, int cellLen)
+  {
+    synchronized (frontLock)
+    {
+      fresh = null;
+      if (front == null)
+        return;
+      Rectangle c = cells.intersection(front.region);
+      Rectangle clip = g.getClipBounds();
+      if (clip != null)
+        c = c.intersection(new Rectangle(clip.x / cellLen, clip.y / cellLen,
+                                         clip.width / cellLen + 2, clip.height / cellLen + 2));
+      if (c.isEmpty())
+        return;
+
+      int x = c.x - front.region.x, y = c.y - front.region.y;
+      Graphics2D g2 = (Graphics2D) g.create();
+      g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+      g2.drawImage(front.img, c.x * cellLen, c.y * cellLen, (c.x + c.width) * cellLen, (c.y + c.height) * cellLen,
+                              x, y, x + c.width, y + c.height, null);
+      g2.dispose();
+    }
+  }
+
+  /** Release the images, e.g. while the layer is zoomed out.*/
+  void release()
+  {
+    synchronized (frontLock)
+    {
+      front = null;
+      fresh = null;
+    }
+    back = null;
+  }
+}
@@ -0,0 +1,536 @@
+package microsim.gui.space;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Records the colors of the cells of a set of layers at every step into a
+ * compressed file, which can be replayed with a GridRecording, e.g. by the
+ * timeline of a LayeredSurfaceFrame.<br>
+ * The cells are stored as the color indices of the layers, in 1, 2 or 4
+ * bytes depending on the number of colors, and the color of an index is
+ * stored when it first appears. The calling thread only reads the color
+ * indices of the cells and the colors of the indices: the frames are
+ * compared, encoded, compressed and written by a writer thread, while the
+ * simulation goes on. At most two
+ * frames wait for the writer, record() waits when it falls behind.<br>
+ * Each step is stored as a frame, compressed on its own so that any frame
+ * can be reached without decompressing the whole file. A frame is either a
+ * keyframe, with all the cells, or a delta, with the cells changed since the
+ * previous frame only. A keyframe is written every keyframe interval frames,
+ * whenever more than a quarter of the cells have changed, and when the color
+ * of an index stored has changed, e.g. because the ColorMap was modified.
+ * <p>
+ * The file starts with the header<br>
+ * <code>int magic, int version, int layers, {int width, int height} for each layer</code><br>
+ * followed by the frames<br>
+ * <code>int compressedLength, int rawLength, byte type, double time, byte[compressedLength] data</code><br>
+ * whose deflated data is, for each layer,<br>
+ * <code>int colors, {varint code, int argb} for each color, byte codeLength</code><br>
+ * with the codes whose color appears, a code being the color index plus 1 and
+ * 0 for a negative index, followed by the width * height codes of a keyframe
+ * or, for a delta, by the number of changed cells and the index gap from the
+ * previous changed cell, as an unsigned varint, and the code of each of them.
+ * The codes of the cells take codeLength bytes, big-endian. A keyframe
+ * clears the colors of the previous frames.
+ *
+ * <p>Title: JAS-mine</p>
+ * <p>Description: Java Agent-based Simulation library</p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+public class GridRecorder implements Closeable
+{
+  static final int MAGIC = 0x4A415352;	// "JASR"
+  static final int VERSION = 2;
+  static final byte KEYFRAME = 0;
+  static final byte DELTA = 1;
+  static final int FRAME_HEADER_LENGTH = 17;
+
+  public static final int DEFAULT_KEYFRAME_INTERVAL = 100;
+
+  //The number of frame buffers: the previous frame kept by the writer and two waiting
+  private static final int BUFFERS = 3;
+
+  //The color of a code whose color has not been stored, never a color since its alpha is 1
+  private static final int UNKNOWN = 0x01000000;
+
+  // The color indices of the layers at a step, with the colors of the codes
+  private static final class Frame
+  {
+    final int[][] indices;
+    final int[][] colors;
+    double time;
+    final CountDownLatch flushed;	//Not null for a request to flush the file
+
+    Frame(int[][] indices, CountDownLatch flushed)
+    {
+      this.indices = indices;
+      this.flushed = flushed;
+      colors = indices == null ? null : new int[indices.length][0];
+    }
+  }
+
+  private static final Frame END = new Frame(null, null);
+
+  private final DataOutputStream out;
+  private final IRecordableLayer[] layers;
+  private final int keyframeInterval;
+  private int frames;
+  private final int[][] layerColors;	//The colors of the codes met so far, read from the layers
+
+  private final BlockingQueue<Frame> free = new ArrayBlockingQueue<Frame>(BUFFERS);
+  private final BlockingQueue<Frame> queue = new LinkedBlockingQueue<Frame>();
+  private final Thread writer;
+  private volatile IOException failure;
+  private volatile boolean closed;
+
+  //Used by the writer thread only
+  private Frame previous;
+  private int written, sinceKeyframe;
+  private long totalCells;
+  private final int[][] colors;	//The colors stored for the codes of each layer since the last keyframe
+  private byte[] raw = new byte[1 << 16];
+  private int rawLength;
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private byte[] compressed = new byte[1 << 16];
+
+  /** Create a recorder with the default keyframe interval.
+   *  @param file The file, which is overwritten.
+   *  @param layers The layers to be recorded.
+   *  @throws IOException If the file cannot be written.*/
+  public GridRecorder(File file, List<? extends IRecordableLayer> layers) throws IOException
+  {
+    this(file, layers, DEFAULT_KEYFRAME_INTERVAL);
+  }
+
+  /** Create a recorder.
+   *  @param file The file, which is overwritten.
+   *  @param layers The layers to be recorded.
+   *  @param keyframeInterval The maximum number of frames between two
+   *         keyframes. A shorter interval makes the frames faster to reach
+   *         and the file larger.
+   *  @throws IOException If the file cannot be written.*/
+  public GridRecorder(File file, List<? extends IRecordableLayer> layers, int keyframeInterval) throws IOException
+  {
+    if (layers == null || layers.isEmpty())
+      throw new IllegalArgumentException("GridRecorder: no layer to be recorded.");
+    if (keyframeInterval < 1)
+      throw new IllegalArgumentException("GridRecorder: the keyframe interval must be positive.");
+
+    this.layers = layers.toArray(new IRecordableLayer[layers.size()]);
+    this.keyframeInterval = keyframeInterval;
+    colors = new int[this.layers.length][];
+    layerColors = new int[this.layers.length][];
+    for (int l = 0; l < this.layers.length; l++)
+    {
+      totalCells += this.layers[l].getGridWidth() * this.layers[l].getGridHeight();
+      colors[l] = new int[0];
+      layerColors[l] = new int[0];
+    }
+    for (int b = 0; b < BUFFERS; b++)
+    {
+      int[][] indices = new int[this.layers.length][];
+      for (int l = 0; l < this.layers.length; l++)
+        indices[l] = new int[this.layers[l].getGridWidth() * this.layers[l].getGridHeight()];
+      free.add(new Frame(indices, null));
+    }
+
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(this.layers.length);
+    for (int l = 0; l < this.layers.length; l++)
+    {
+      out.writeInt(this.layers[l].getGridWidth());
+      out.writeInt(this.layers[l].getGridHeight());
+    }
+
+    writer = new Thread(new Runnable() {
+      public void run()
+      {
+        write();
+      }
+    }, "GridRecorder");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** Return the number of frames recorded.
+   *  @return The number of frames.*/
+  public int getFrameCount() { return frames; }
+
+  /** Record the current colors of the layers as a new frame. The color
+   *  indices of the cells and their colors are read by the calling thread,
+   *  the frame is written by the writer thread.
+   *  @param time The simulation time of the frame.
+   *  @throws IOException If a frame could not be written.*/
+  public void record(double time) throws IOException
+  {
+    checkFailure();
+    if (closed)
+      throw new IOException("GridRecorder: the recorder is closed.");
+
+    Frame f;
+    try {
+      f = free.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("GridRecorder: interrupted while waiting for the writer.");
+    }
+    for (int l = 0; l < layers.length; l++)
+    {
+      layers[l].getCellColorIndices(f.indices[l]);
+      readColors(l, f);
+    }
+    f.time = time;
+    queue.add(f);
+    frames++;
+  }
+
+  /** Wait until the frames recorded have been written, and flush them to
+   *  the file, e.g. before it is opened by a GridRecording.
+   *  @throws IOException If a frame could not be written.*/
+  public void flush() throws IOException
+  {
+    if (closed)
+      return;
+    Frame request = new Frame(null, new CountDownLatch(1));
+    queue.add(request);
+    try {
+      request.flushed.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("GridRecorder: interrupted while flushing.");
+    }
+    checkFailure();
+  }
+
+  // Read the colors of the codes of a layer met so far, which may have
+  // changed, and the ones of the new codes, into the frame
+  private void readColors(int layer, Frame f)
+  {
+    IRecordableLayer lay = layers[layer];
+    int[] c = layerColors[layer];
+    for (int code = 0; code < c.length; code++)
+      if (c[code] != UNKNOWN)
+        c[code] = lay.getIndexColor(code - 1);
+
+    int[] indices = f.indices[layer];
+    for (int k = 0; k < indices.length; k++)
+    {
+      int code = code(indices[k]);
+      if (code >= c.length)
+      {
+        int length = Math.max(code + 1, 2 * c.length);
+        int from = c.length;
+        c = Arrays.copyOf(c, length);
+        Arrays.fill(c, from, length, UNKNOWN);
+        layerColors[layer] = c;
+      }
+      if (c[code] == UNKNOWN)
+        c[code] = lay.getIndexColor(code - 1);
+    }
+
+    if (f.colors[layer].length != c.length)
+      f.colors[layer] = new int[c.length];
+    System.arraycopy(c, 0, f.colors[layer], 0, c.length);
+  }
+
+  private void checkFailure() throws IOException
+  {
+    IOException e = failure;
+    if (e != null)
+      throw new IOException("GridRecorder: " + e.getMessage(), e);
+  }
+
+  // The loop of the writer thread. After a failure the frames are only
+  // given back, so that record() does not wait forever
+  private void write()
+  {
+    while (true)
+    {
+      Frame f;
+      try {
+        f = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (f == END)
+        return;
+
+      try {
+        if (failure == null)
+        {
+          if (f.flushed != null)
+            out.flush();
+          else
+            writeFrame(f);
+        }
+      } catch (IOException e) {
+        failure = e;
+      }
+
+      if (f.flushed != null)
+        f.flushed.countDown();
+      else if (f != previous)
+        free.add(f);
+    }
+  }
+
+  private void writeFrame(Frame f) throws IOException
+  {
+    rawLength = 0;
+    boolean key = written == 0 || sinceKeyframe >= keyframeInterval || colorsChanged(f);
+    if (!key && !encodeDelta(f))
+      key = true;
+    if (key)
+      encodeKeyframe(f);
+
+    int length = deflate();
+    out.writeInt(length);
+    out.writeInt(rawLength);
+    out.writeByte(key ? KEYFRAME : DELTA);
+    out.writeDouble(f.time);
+    out.write(compressed, 0, length);
+
+    if (previous != null)
+      free.add(previous);
+    previous = f;
+    written++;
+    sinceKeyframe = key ? 1 : sinceKeyframe + 1;
+  }
+
+  // Return true if the color of a code stored has changed
+  private boolean colorsChanged(Frame f)
+  {
+    for (int l = 0; l < layers.length; l++)
+    {
+      int[] c = colors[l];
+      for (int code = 0; code < c.length; code++)
+        if (c[code] != UNKNOWN && c[code] != f.colors[l][code])
+          return true;
+    }
+    return false;
+  }
+
+  private static int code(int index)
+  {
+    return index < 0 ? 0 : index + 1;
+  }
+
+  private void encodeKeyframe(Frame f)
+  {
+    rawLength = 0;
+    for (int l = 0; l < layers.length; l++)
+    {
+      int[] c = f.indices[l];
+      Arrays.fill(colors[l], UNKNOWN);
+      int count = 0;
+      for (int k = 0; k < c.length; k++)
+        if (isNewCode(l, code(c[k])))
+          count++;
+      putColors(l, count, f);
+
+      int codeLength = codeLength(colors[l].length);
+      putByte(codeLength);
+      ensure((long) c.length * codeLength);
+      for (int k = 0; k < c.length; k++)
+        putCode(code(c[k]), codeLength);
+    }
+  }
+
+  // Return false if too many cells have changed for a delta to be worth it
+  private boolean encodeDelta(Frame f)
+  {
+    long changes = 0;
+    for (int l = 0; l < layers.length; l++)
+    {
+      int[] c = f.indices[l], p = previous.indices[l];
+      for (int k = 0; k < c.length; k++)
+        if (c[k] != p[k])
+          changes++;
+      if (changes > totalCells / 4)
+        return false;
+    }
+
+    for (int l = 0; l < layers.length; l++)
+    {
+      int[] c = f.indices[l], p = previous.indices[l];
+      int count = 0, newColors = 0;
+      for (int k = 0; k < c.length; k++)
+        if (c[k] != p[k])
+        {
+          count++;
+          if (isNewCode(l, code(c[k])))
+            newColors++;
+        }
+      putColors(l, newColors, f);
+
+      int codeLength = codeLength(colors[l].length);
+      putByte(codeLength);
+      putInt(count);
+      int last = -1;
+      for (int k = 0; k < c.length; k++)
+        if (c[k] != p[k])
+        {
+          putVarint(k - last - 1);
+          putCode(code(c[k]), codeLength);
+          last = k;
+        }
+    }
+    return true;
+  }
+
+  // Return true the first time a code appears since the last keyframe, its
+  // color is then marked to be stored by putColors()
+  private boolean isNewCode(int layer, int code)
+  {
+    int[] c = colors[layer];
+    if (code >= c.length)
+    {
+      int length = Math.max(code + 1, 2 * c.length);
+      c = Arrays.copyOf(c, length);
+      Arrays.fill(c, colors[layer].length, length, UNKNOWN);
+      colors[layer] = c;
+    }
+    if (c[code] != UNKNOWN)
+      return false;
+    // Marked until its color is stored
+    c[code] = ~UNKNOWN;
+    return true;
+  }
+
+  // Store the colors of the codes marked by isNewCode(), as read with the frame
+  private void putColors(int layer, int count, Frame f)
+  {
+    putInt(count);
+    int[] c = colors[layer];
+    for (int code = 0; code < c.length && count > 0; code++)
+      if (c[code] == ~UNKNOWN)
+      {
+        c[code] = f.colors[layer][code];
+        putVarint(code);
+        putInt(c[code]);
+        count--;
+      }
+  }
+
+  private static int codeLength(int codes)
+  {
+    return codes <= 1 << 8 ? 1 : codes <= 1 << 16 ? 2 : 4;
+  }
+
+  private void ensure(long bytes)
+  {
+    if (rawLength + bytes > raw.length)
+    {
+      long length = Math.max(rawLength + bytes, 2L * raw.length);
+      if (length > Integer.MAX_VALUE - 8)
+        throw new IllegalStateException("GridRecorder: frame too large.");
+      raw = Arrays.copyOf(raw, (int) length);
+    }
+  }
+
+  private void putByte(int value)
+  {
+    ensure(1);
+    raw[rawLength++] = (byte) value;
+  }
+
+  private void putInt(int value)
+  {
+    ensure(4);
+    raw[rawLength++] = (byte) (value >>> 24);
+    raw[rawLength++] = (byte) (value >>> 16);
+    raw[rawLength++] = (byte) (value >>> 8);
+    raw[rawLength++] = (byte) value;
+  }
+
+  private void putCode(int code, int codeLength)
+  {
+    if (codeLength == 4)
+      putInt(code);
+    else
+    {
+      ensure(codeLength);
+      if (codeLength == 2)
+        raw[rawLength++] = (byte) (code >>> 8);
+      raw[rawLength++] = (byte) code;
+    }
+  }
+
+  private void putVarint(int value)
+  {
+    ensure(5);
+    while ((value & ~0x7F) != 0)
+    {
+      raw[rawLength++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    raw[rawLength++] = (byte) value;
+  }
+
+  private int deflate()
+  {
+    deflater.reset();
+    deflater.setInput(raw, 0, rawLength);
+    deflater.finish();
+    int length = 0;
+    while (!deflater.finished())
+    {
+      if (length == compressed.length)
+        compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+      length += deflater.deflate(compressed, length, compressed.length - length);
+    }
+    return length;
+  }
+
+  /** Write the frames recorded and close the file.
+   *  @throws IOException If a frame or the file could not be written.*/
+  public void close() throws IOException
+  {
+    if (closed)
+      return;
+    closed = true;
+    queue.add(END);
+    boolean interrupted = false;
+    while (true)
+    {
+      try {
+        writer.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+
+    deflater.end();
+    out.close();
+    checkFailure();
+  }
+}
@@ -0,0 +1,272 @@
+package microsim.gui.space;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a file written by a GridRecorder and reconstructs any of its frames,
+ * starting from the nearest keyframe before it and applying the following
+ * deltas. Moving forward frame by frame, as a timeline slider does, only
+ * applies one delta per frame. The colors of the cells are resolved from
+ * their color indices while the frames are applied. The file may be read
+ * while it is still being recorded: refresh() makes the frames added since
+ * it was opened, and flushed by the recorder, available.
+ * A frame is returned as an image per recorded layer, with one pixel per
+ * cell, which can be painted scaled by a LayeredSurfacePanel.
+ *
+ * <p>Title: JAS-mine</p>
+ * <p>Description: Java Agent-based Simulation library</p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+public class GridRecording implements Closeable
+{
+  private final RandomAccessFile file;
+  private final int[] widths, heights;
+  private final BufferedImage[] images;
+  private final int[][] cells;
+  private final int[][] colors;	//The colors of the codes of each layer since the last keyframe
+
+  private long[] offsets = new long[256];
+  private double[] times = new double[256];
+  private boolean[] keyframes = new boolean[256];
+  private int frames;
+  private long end;
+
+  private int current = -1;
+  private final Inflater inflater = new Inflater();
+  private byte[] compressed = new byte[1 << 16];
+  private ByteBuffer raw = ByteBuffer.allocate(1 << 16);
+
+  /** Open a recording.
+   *  @param file The file written by a GridRecorder.
+   *  @throws IOException If the file cannot be read or it is not a recording.*/
+  public GridRecording(File file) throws IOException
+  {
+    this.file = new RandomAccessFile(file, "r");
+    if (this.file.readInt() != GridRecorder.MAGIC)
+    {
+      this.file.close();
+      throw new IOException("GridRecording: " + file + " is not a recording.");
+    }
+    if (this.file.readInt() != GridRecorder.VERSION)
+    {
+      this.file.close();
+      throw new IOException("GridRecording: unsupported version of " + file + ".");
+    }
+
+    int layers = this.file.readInt();
+    widths = new int[layers];
+    heights = new int[layers];
+    images = new BufferedImage[layers];
+    cells = new int[layers][];
+    colors = new int[layers][];
+    for (int l = 0; l < layers; l++)
+    {
+      widths[l] = this.file.readInt();
+      heights[l] = this.file.readInt();
+      // The cells are reconstructed straight into the data of the image
+      images[l] = new BufferedImage(widths[l], heights[l], BufferedImage.TYPE_INT_ARGB);
+      cells[l] = ((DataBufferInt) images[l].getRaster().getDataBuffer()).getData();
+      colors[l] = new int[0];
+    }
+    end = this.file.getFilePointer();
+    refresh();
+  }
+
+  /** Index the frames written since the last call, if the file is still
+   *  being recorded. A frame not completely written yet is left out.
+   *  @throws IOException If the file cannot be read.*/
+  public synchronized void refresh() throws IOException
+  {
+    long length = file.length();
+    while (end + GridRecorder.FRAME_HEADER_LENGTH <= length)
+    {
+      file.seek(end);
+      int compressedLength = file.readInt();
+      file.readInt();
+      byte type = file.readByte();
+      double time = file.readDouble();
+      long next = end + GridRecorder.FRAME_HEADER_LENGTH + compressedLength;
+      if (next > length)
+        break;
+
+      if (frames == offsets.length)
+      {
+        offsets = Arrays.copyOf(offsets, 2 * frames);
+        times = Arrays.copyOf(times, 2 * frames);
+        keyframes = Arrays.copyOf(keyframes, 2 * frames);
+      }
+      offsets[frames] = end;
+      times[frames] = time;
+      keyframes[frames] = type == GridRecorder.KEYFRAME;
+      frames++;
+      end = next;
+    }
+  }
+
+  /** Return the number of frames.
+   *  @return The number of frames indexed.*/
+  public synchronized int getFrameCount() { return frames; }
+
+  /** Return the simulation time of a frame.
+   *  @param frame The index of the frame.
+   *  @return The time passed to the recorder.*/
+  public synchronized double getTime(int frame)
+  {
+    checkFrame(frame);
+    return times[frame];
+  }
+
+  /** Return the number of layers recorded.
+   *  @return The number of layers.*/
+  public int getLayerCount() { return images.length; }
+
+  /** Return the width of a recorded layer.
+   *  @param layer The index of the layer.
+   *  @return The number of columns.*/
+  public int getGridWidth(int layer) { return widths[layer]; }
+
+  /** Return the height of a recorded layer.
+   *  @param layer The index of the layer.
+   *  @return The number of rows.*/
+  public int getGridHeight(int layer) { return heights[layer]; }
+
+  private void checkFrame(int frame)
+  {
+    if (frame < 0 || frame >= frames)
+      throw new IllegalArgumentException("GridRecording: frame " + frame + " out of range [0, " + frames + ").");
+  }
+
+  /** Reconstruct a frame. The images returned are the same at every call,
+   *  and they are overwritten by the next call.
+   *  @param frame The index of the frame.
+   *  @return An image per layer, in the recording order, with one pixel per cell.
+   *  @throws IOException If the file cannot be read or it is corrupted.*/
+  public synchronized BufferedImage[] getFrame(int frame) throws IOException
+  {
+    checkFrame(frame);
+    if (frame == current)
+      return images;
+
+    int key = frame;
+    while (!keyframes[key])
+      key--;
+    int from = current >= key && current < frame ? current + 1 : key;
+    current = -1;
+    for (int f = from; f <= frame; f++)
+      apply(f);
+    current = frame;
+    return images;
+  }
+
+  private void apply(int frame) throws IOException
+  {
+    file.seek(offsets[frame]);
+    int compressedLength = file.readInt();
+    int rawLength = file.readInt();
+    file.skipBytes(GridRecorder.FRAME_HEADER_LENGTH - 8);
+    if (compressed.length < compressedLength)
+      compressed = new byte[compressedLength];
+    file.readFully(compressed, 0, compressedLength);
+
+    if (raw.capacity() < rawLength)
+      raw = ByteBuffer.allocate(rawLength);
+    raw.clear();
+    inflater.reset();
+    inflater.setInput(compressed, 0, compressedLength);
+    try {
+      if (inflater.inflate(raw.array(), 0, rawLength) != rawLength)
+        throw new IOException("GridRecording: frame " + frame + " is truncated.");
+    } catch (DataFormatException e) {
+      throw new IOException("GridRecording: frame " + frame + " is corrupted.", e);
+    }
+    raw.limit(rawLength);
+
+    try {
+      for (int l = 0; l < cells.length; l++)
+        applyLayer(l, keyframes[frame]);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("GridRecording: frame " + frame + " is corrupted.", e);
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("GridRecording: frame " + frame + " is corrupted.", e);
+    }
+  }
+
+  private void applyLayer(int layer, boolean keyframe)
+  {
+    if (keyframe)
+      Arrays.fill(colors[layer], 0);
+    int count = raw.getInt();
+    for (int i = 0; i < count; i++)
+    {
+      int code = readVarint();
+      if (code >= colors[layer].length)
+        colors[layer] = Arrays.copyOf(colors[layer], Math.max(code + 1, 2 * colors[layer].length));
+      colors[layer][code] = raw.getInt();
+    }
+
+    int[] p = colors[layer];
+    int[] c = cells[layer];
+    int codeLength = raw.get();
+    if (keyframe)
+      for (int k = 0; k < c.length; k++)
+        c[k] = p[readCode(codeLength)];
+    else
+    {
+      count = raw.getInt();
+      int k = -1;
+      for (int i = 0; i < count; i++)
+      {
+        k += readVarint() + 1;
+        c[k] = p[readCode(codeLength)];
+      }
+    }
+  }
+
+  private int readCode(int codeLength)
+  {
+    if (codeLength == 1)
+      return raw.get() & 0xFF;
+    if (codeLength == 2)
+      return raw.getShort() & 0xFFFF;
+    return raw.getInt();
+  }
+
+  private int readVarint()
+  {
+    int value = 0;
+    for (int shift = 0; ; shift += 7)
+    {
+      byte b = raw.get();
+      value |= (b & 0x7F) << shift;
+      if (b >= 0)
+        return value;
+    }
+  }
+
+  public void close() throws IOException
+  {
+    inflater.end();
+    file.close();
+  }
+}
@@ -0,0 +1,296 @@
+package microsim.gui.space;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Creates the IGridSource of a grid held by a NIO buffer, by a memory-mapped
+ * file or by a heap array of a type narrower than double. The sources read
+ * the buffers in place, with absolute gets which do not move their
+ * positions, so the cells are counted from the start of the buffer and a
+ * buffer may be written by the simulation while it is drawn. A direct
+ * buffer keeps the grid off the heap; a narrow type, e.g. bytes for a
+ * categorical grid, reduces the memory the grid takes.
+ *
+ * <p>Title: JAS-mine</p>
+ * <p>Description: Java Agent-based Simulation library</p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+public final class GridSources
+{
+  /** The types of the cells of a memory-mapped grid. */
+  public enum CellType
+  {
+    /** Unsigned bytes, from 0 to 255. */
+    BYTE(1),
+    SHORT(2),
+    INT(4),
+    FLOAT(4),
+    DOUBLE(8);
+
+    private final int bytes;
+
+    private CellType(int bytes)
+    {
+      this.bytes = bytes;
+    }
+
+    /** Return the size of a cell.
+     *  @return The number of bytes of a cell.*/
+    public int getBytes() { return bytes; }
+  }
+
+  private GridSources()
+  {
+  }
+
+  private static void check(int capacity, int width, int height)
+  {
+    if (width <= 0 || height <= 0)
+      throw new IllegalArgumentException("GridSources: the grid size must be positive.");
+    if (capacity < (long) width * height)
+      throw new IllegalArgumentException("GridSources: the buffer holds " + capacity
+                                         + " cells, fewer than " + width + " * " + height + ".");
+  }
+
+  /** Not of interest for users. The base class of the sources. */
+  private abstract static class Source implements IGridSource
+  {
+    private final int width, height;
+
+    Source(int width, int height)
+    {
+      this.width = width;
+      this.height = height;
+    }
+
+    public int getWidth() { return width; }
+
+    public int getHeight() { return height; }
+  }
+
+  /** Return the source of a buffer of doubles.
+   *  @param buffer The buffer, with at least width * height cells.
+   *  @param width The width of the grid.
+   *  @param height The height of the grid.
+   *  @return The source.*/
+  public static IGridSource of(final DoubleBuffer buffer, int width, int height)
+  {
+    check(buffer.capacity(), width, height);
+    return new Source(width, height) {
+      public double getValue(int k)
+      {
+        return buffer.get(k);
+      }
+
+      public void getValues(int k, double[] values, int offset, int length)
+      {
+        buffer.get(k, values, offset, length);
+      }
+    };
+  }
+
+  /** Return the source of a buffer of floats.
+   *  @param buffer The buffer, with at least width * height cells.
+   *  @param width The width of the grid.
+   *  @param height The height of the grid.
+   *  @return The source.*/
+  public static IGridSource of(final FloatBuffer buffer, int width, int height)
+  {
+    check(buffer.capacity(), width, height);
+    return new Source(width, height) {
+      public double getValue(int k)
+      {
+        return buffer.get(k);
+      }
+
+      public void getValues(int k, double[] values, int offset, int length)
+      {
+        for (int i = 0; i < length; i++)
+          values[offset + i] = buffer.get(k + i);
+      }
+    };
+  }
+
+  /** Return the source of a buffer of ints.
+   *  @param buffer The buffer, with at least width * height cells.
+   *  @param width The width of the grid.
+   *  @param height The height of the grid.
+   *  @return The source.*/
+  public static IGridSource of(final IntBuffer buffer, int width, int height)
+  {
+    check(buffer.capacity(), width, height);
+    return new Source(width, height) {
+      public double getValue(int k)
+      {
+        return buffer.get(k);
+      }
+
+      public void getValues(int k, double[] values, int offset, int length)
+      {
+        for (int i = 0; i < length; i++)
+          values[offset + i] = buffer.get(k + i);
+      }
+
+      public void getValues(int k, int[] values, int offset, int length)
+      {
+        for (int i = 0; i < length; i++)
+          values[offset + i] = buffer.get(k + i);
+      }
+    };
+  }
+
+  /** Return the source of a buffer of shorts.
+   *  @param buffer The buffer, with at least width * height cells.
+   *  @param width The width of the grid.
+   *  @param height The height of the grid.
+   *  @return The source.*/
+  public static IGridSource of(final ShortBuffer buffer, int width, int height)
+  {
+    check(buffer.capacity(), width, height);
+    return new Source(width, height) {
+      public double getValue(int k)
+      {
+        return buffer.get(k);
+      }
+
+      public void getValues(int k, double[] values, int offset, int length)
+      {
+        for (int i = 0; i < length; i++)
+          values[offset + i] = buffer.get(k + i);
+      }
+
+      public void getValues(int k, int[] values, int offset, int length)
+      {
+        for (int i = 0; i < length; i++)
+          values[offset + i] = buffer.get(k + i);
+      }
+    };
+  }
+
+  /** Return the source of a buffer of unsigned bytes, e.g. the classes of a
+   *  categorical grid.
+   *  @param buffer The buffer, with at least width * height cells.
+   *  @param width The width of the grid.
+   *  @param height The height of the grid.
+   *  @return The source.*/
+  public static IGridSource of(final ByteBuffer buffer, int width, int height)
+  {
+    check(buffer.capacity(), width, height);
+    return new Source(width, height) {
+      public double getValue(int k)
+      {
+        return buffer.get(k) & 0xFF;
+      }
+
+      public void getValues(int k, double[] values, int offset, int length)
+      {
+        for (int i = 0; i < length; i++)
+          values[offset + i] = buffer.get(k + i) & 0xFF;
+      }
+
+      public void getValues(int k, int[] values, int offset, int length)
+      {
+        for (int i = 0; i < length; i++)
+          values[offset + i] = buffer.get(k + i) & 0xFF;
+      }
+    };
+  }
+
+  /** Return the source of an array of floats.
+   *  @param matrix The array, of width * height length at least.
+   *  @param width The width of the grid.
+   *  @param height The height of the grid.
+   *  @return The source.*/
+  public static IGridSource of(float[] matrix, int width, int height)
+  {
+    return of(FloatBuffer.wrap(matrix), width, height);
+  }
+
+  /** Return the source of an array of shorts.
+   *  @param matrix The array, of width * height length at least.
+   *  @param width The width of the grid.
+   *  @param height The height of the grid.
+   *  @return The source.*/
+  public static IGridSource of(short[] matrix, int width, int height)
+  {
+    return of(ShortBuffer.wrap(matrix), width, height);
+  }
+
+  /** Return the source of an array of unsigned bytes.
+   *  @param matrix The array, of width * height length at least.
+   *  @param width The width of the grid.
+   *  @param height The height of the grid.
+   *  @return The source.*/
+  public static IGridSource of(byte[] matrix, int width, int height)
+  {
+    return of(ByteBuffer.wrap(matrix), width, height);
+  }
+
+  /** Return the source of a grid stored in a file, row by row, which is
+   *  mapped into memory read-only. The pages of the file are loaded by the
+   *  operating system when they are drawn, and the changes written to the
+   *  file by another process or channel are shown at the next update.
+   *  @param file The file.
+   *  @param type The type of the cells.
+   *  @param order The byte order of the cells.
+   *  @param width The width of the grid.
+   *  @param height The height of the grid.
+   *  @return The source.
+   *  @throws IOException If the file cannot be mapped.
+   *  @throw IllegalArgumentException If the file is smaller than the grid, or
+   *         the grid is larger than 2 GB.*/
+  public static IGridSource map(File file, CellType type, ByteOrder order, int width, int height)
+    throws IOException
+  {
+    long size = (long) width * height * type.getBytes();
+    if (size > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("GridSources: a mapped grid must be smaller than 2 GB.");
+
+    MappedByteBuffer bytes;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() < size)
+        throw new IllegalArgumentException("GridSources: " + file + " is smaller than the grid.");
+      // The mapping stays valid after the channel is closed
+      bytes = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } finally {
+      raf.close();
+    }
+    bytes.order(order);
+
+    switch (type)
+    {
+      case BYTE:
+        return of(bytes, width, height);
+      case SHORT:
+        return of(bytes.asShortBuffer(), width, height);
+      case INT:
+        return of(bytes.asIntBuffer(), width, height);
+      case FLOAT:
+        return of(bytes.asFloatBuffer(), width, height);
+      default:
+        return of(bytes.asDoubleBuffer(), width, height);
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package microsim.gui.space;
+
+/**
+ * The values of a grid read by a LayerDblGridDrawer or a LayerIntGridDrawer,
+ * when they are not held by a heap array of doubles or ints, e.g. a grid kept in an off-heap buffer, in a
+ * memory-mapped file or in an array of a narrower type. The drawer reads the
+ * values where they are, a row at a time, so the grid is never copied whole.
+ * See GridSources for the sources of buffers, files and narrow arrays.
+ * <p>
+ * The cells are stored row by row: the cell (x, y) has index y * width + x.
+ * A source may be read by several threads at once, see
+ * LayerDblGridDrawer.setParallelRendering().
+ *
+ * <p>Title: JAS-mine</p>
+ * <p>Description: Java Agent-based Simulation library</p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+public interface IGridSource
+{
+  /** Return the width of the grid.
+   *  @return The number of columns.*/
+  public int getWidth();
+
+  /** Return the height of the grid.
+   *  @return The number of rows.*/
+  public int getHeight();
+
+  /** Return the value of a cell.
+   *  @param k The index of the cell.
+   *  @return The value.*/
+  public double getValue(int k);
+
+  /** Copy the values of consecutive cells.
+   *  @param k The index of the first cell.
+   *  @param values The array receiving the values.
+   *  @param offset The index of the first value.
+   *  @param length The number of cells.*/
+  public void getValues(int k, double[] values, int offset, int length);
+
+  /** Copy the values of consecutive cells rounded to ints, as read by a
+   *  LayerIntGridDrawer. The sources of integer types override it to
+   *  avoid the conversion.
+   *  @param k The index of the first cell.
+   *  @param values The array receiving the values.
+   *  @param offset The index of the first value.
+   *  @param length The number of cells.*/
+  public default void getValues(int k, int[] values, int offset, int length)
+  {
+    for (int i = 0; i < length; i++)
+      values[offset + i] = (int) Math.round(getValue(k + i));
+  }
+}
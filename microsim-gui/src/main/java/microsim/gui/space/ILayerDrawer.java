@@ -1,6 +1,8 @@
 package microsim.gui.space;
 
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
 
 /**
  * An interface used by LayeredSurfaceFrame to delegate
@@ -43,4 +45,113 @@ public interface ILayerDrawer extends ILayerMouseListener
    *  @param cellLen The length of a cell in pixels.*/
   public void paint(Graphics g, int cellLen);
 
+  /** Paint the given cells of the layer on the screen. LayeredSurfacePanel
+   *  calls it with the cells within the clip of the graphic context, so that
+   *  a layer can iterate over the visible cells only. The default paints the
+   *  whole layer.
+   *  @param g The current graphics device.
+   *  @param cellLen The length of a cell in pixels.
+   *  @param cells The cells to be painted, in grid coordinates.*/
+  public default void paint(Graphics g, int cellLen, Rectangle cells)
+  {
+    paint(g, cellLen);
+  }
+
+  /** Bring the layer up to date with the values it draws and return the
+   *  region changed since the last update, so that LayeredSurfaceFrame
+   *  repaints only that region. It is called by the thread updating the
+   *  frame, usually the simulation thread, before the repaint is requested
+   *  on the Event Dispatch Thread; a layer may then skip its own update in
+   *  the following call to paint.
+   *  @param cellLen The length of a cell in pixels.
+   *  @return The changed region in pixels, an empty rectangle if nothing
+   *          changed, or null if the whole layer has to be repainted, which
+   *          is the default.*/
+  public default Rectangle getDirtyRegion(int cellLen)
+  {
+    return null;
+  }
+
+  /** Like getDirtyRegion(int), but only the given cells, the ones visible
+   *  when the panel was last painted, have to be checked. The cells which
+   *  are not checked are brought up to date when they are painted. The
+   *  default checks the whole layer.
+   *  @param cellLen The length of a cell in pixels.
+   *  @param cells The cells to be checked, in grid coordinates.
+   *  @return The changed region in pixels, an empty rectangle if nothing
+   *          changed, or null if the whole layer has to be repainted.*/
+  public default Rectangle getDirtyRegion(int cellLen, Rectangle cells)
+  {
+    return getDirtyRegion(cellLen);
+  }
+
+  /** Paint the given cells of the layer when the panel is zoomed out, with
+   *  one pixel for each block of 2^level x 2^level cells. The default paints
+   *  the layer with a cell length of 1 on a scaled down graphic context.
+   *  @param g The current graphics device.
+   *  @param level The zoom out level, at least 1.
+   *  @param cells The cells to be painted, in grid coordinates.*/
+  public default void paintAggregated(Graphics g, int level, Rectangle cells)
+  {
+    Graphics2D g2 = (Graphics2D) g.create();
+    double scale = 1.0 / (1 << level);
+    g2.scale(scale, scale);
+    paint(g2, 1, cells);
+    g2.dispose();
+  }
+
+  /** Like getDirtyRegion(int, Rectangle), when the panel is zoomed out.
+   *  The default scales down the region changed with a cell length of 1.
+   *  @param level The zoom out level, at least 1.
+   *  @param cells The cells to be checked, in grid coordinates.
+   *  @return The changed region in pixels, an empty rectangle if nothing
+   *          changed, or null if the whole layer has to be repainted.*/
+  public default Rectangle getAggregatedDirtyRegion(int level, Rectangle cells)
+  {
+    Rectangle r = getDirtyRegion(1, cells);
+    if (r == null || r.isEmpty())
+      return r;
+    int x0 = r.x >> level, y0 = r.y >> level;
+    return new Rectangle(x0, y0, ((r.x + r.width - 1) >> level) - x0 + 1,
+                                 ((r.y + r.height - 1) >> level) - y0 + 1);
+  }
+
+  /** Notify a double click event at a point of the grid. LayeredSurfacePanel
+   *  calls it with the coordinates of the mouse in cells, e.g. 2.5 for the
+   *  center of the third cell, so that a layer of agents with continuous
+   *  coordinates can pick the agent under the mouse. The default passes the
+   *  clicked cell to performDblClickActionAt(int, int).
+   *  @param atX The x coordinate of the clicked point, in cells.
+   *  @param atY The y coordinate of the clicked point, in cells.
+   *  @return True if the layer intercepted the event.*/
+  public default boolean performDblClickActionAt(double atX, double atY)
+  {
+    return performDblClickActionAt((int) Math.floor(atX), (int) Math.floor(atY));
+  }
+
+  /** Notify a mouse dragging action between two points of the grid, in
+   *  cells. The default passes the cells to
+   *  performMouseMovedFromTo(int, int, int, int).
+   *  @param fromX The x coordinate of the starting point.
+   *  @param fromY The y coordinate of the starting point.
+   *  @param toX The x coordinate of the target point.
+   *  @param toY The y coordinate of the target point.
+   *  @return True if the layer intercepted the event.*/
+  public default boolean performMouseMovedFromTo(double fromX, double fromY, double toX, double toY)
+  {
+    return performMouseMovedFromTo((int) Math.floor(fromX), (int) Math.floor(fromY),
+                                   (int) Math.floor(toX), (int) Math.floor(toY));
+  }
+
+  /** Return the version of the content of the layer. It matters for the
+   *  layers marked as static on the LayeredSurfacePanel, which are painted
+   *  once into a cached image: the image is painted again only when the
+   *  version of one of them changes. The default is 0, i.e. the content
+   *  never changes.
+   *  @return The version.*/
+  public default long getVersion()
+  {
+    return 0;
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,46 @@
+package microsim.gui.space;
+
+/**
+ * A layer whose cells can be recorded by a GridRecorder, e.g. the grid
+ * layers LayerDblGridDrawer and LayerIntGridDrawer. The recorder reads the
+ * color indices of all the cells at every step and stores the ones which
+ * changed; the colors of the indices are stored once, when they first
+ * appear or change.
+ *
+ * <p>Title: JAS-mine</p>
+ * <p>Description: Java Agent-based Simulation library</p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+public interface IRecordableLayer extends ILayerDrawer
+{
+  /** Return the width of the grid.
+   *  @return The number of columns.*/
+  public int getGridWidth();
+
+  /** Return the height of the grid.
+   *  @return The number of rows.*/
+  public int getGridHeight();
+
+  /** Write the current color indices of all the cells, row by row, as
+   *  returned by the ColorMap of the layer, e.g. FixedColorMap.UNMAPPED_INDEX
+   *  for a value which is not mapped.
+   *  @param indices The array to be filled, of width * height length.*/
+  public void getCellColorIndices(int[] indices);
+
+  /** Return the color of a color index as a packed ARGB int. A color which
+   *  is not drawn, e.g. because of a trasparency color, has alpha 0.
+   *  @param index A color index written by getCellColorIndices().
+   *  @return The color.*/
+  public int getIndexColor(int index);
+}
@@ -0,0 +1,304 @@
+package microsim.gui.space;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Not of interest for users. The asynchronous renderer of a
+ * LayeredSurfacePanel. At each request the layers are updated and painted,
+ * each into its own buffer over the visible region, concurrently on the fork
+ * join pool of the space viewers; the buffers are then composited into the
+ * back image of a double buffer, which is swapped with the front one the
+ * Event Dispatch Thread blits. The requests are served by a single
+ * coordinator thread and coalesced: while a frame is rendered, any number of
+ * requests produce a single further frame, so the stale frames are dropped
+ * when the simulation updates faster than the frames are rendered. The
+ * buffers of the static layers cover the visible region with a margin, and
+ * they are painted again only when their version or the scale changes, or
+ * when the visible region leaves the margin.
+ */
+final class LayerCompositor
+{
+  private static final Logger log = Logger.getLogger(LayerCompositor.class);
+
+  /** The state of the panel a frame is rendered for. */
+  static final class Viewport
+  {
+    final Rectangle visible;
+    final int cellLen, zoomOutLevel;
+    final Rectangle cells;
+    final Rectangle staticRegion, staticCells;	//Covered by the buffers of the static layers
+
+    Viewport(Rectangle visible, int cellLen, int zoomOutLevel, Rectangle cells,
+             Rectangle staticRegion, Rectangle staticCells)
+    {
+      this.visible = visible;
+      this.cellLen = cellLen;
+      this.zoomOutLevel = zoomOutLevel;
+      this.cells = cells;
+      this.staticRegion = staticRegion;
+      this.staticCells = staticCells;
+    }
+
+    // The same scale, so a frame can be blitted even if the region has moved
+    boolean sameScale(Viewport v)
+    {
+      return v != null && cellLen == v.cellLen && zoomOutLevel == v.zoomOutLevel;
+    }
+
+    boolean sameAs(Viewport v)
+    {
+      return sameScale(v) && visible.equals(v.visible) && cells.equals(v.cells);
+    }
+  }
+
+  /** A composited frame. */
+  static final class Frame
+  {
+    final BufferedImage image;
+    final Viewport viewport;
+
+    Frame(BufferedImage image, Viewport viewport)
+    {
+      this.image = image;
+      this.viewport = viewport;
+    }
+  }
+
+  // The buffer of a layer, with the state it has been painted for and the
+  // region it covers. The layer is painted into the spare image, which is
+  // swapped with the image only if it is painted without errors.
+  private static final class LayerBuffer
+  {
+    BufferedImage image;
+    BufferedImage spare;
+    Rectangle region;
+    Viewport viewport;
+    long version;
+    long invalidations;
+  }
+
+  private final LayeredSurfacePanel panel;
+  private final ExecutorService coordinator;
+  private final AtomicBoolean requested = new AtomicBoolean();
+
+  //Used by the coordinator thread only
+  private final Map<ILayerDrawer, LayerBuffer> buffers = new IdentityHashMap<ILayerDrawer, LayerBuffer>();
+  private BufferedImage back;
+
+  private final Object frameLock = new Object();
+  private Frame front;	//Guarded by frameLock
+
+  LayerCompositor(LayeredSurfacePanel panel)
+  {
+    this.panel = panel;
+    coordinator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "LayerCompositor");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /** Ask for a new frame. It never blocks: if a frame is already waiting to
+   *  be rendered, the request is merged into it.*/
+  void requestFrame()
+  {
+    if (requested.getAndSet(true))
+      return;
+    try {
+      coordinator.execute(new Runnable() {
+        public void run()
+        {
+          // The requests made from now on need a further frame
+          requested.set(false);
+          render();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Shut down
+    }
+  }
+
+  /** Stop the coordinator. The frames being rendered are completed.*/
+  void shutdown()
+  {
+    coordinator.shutdown();
+  }
+
+  /** Blit the front frame at its position. It is called by the Event
+   *  Dispatch Thread.
+   *  @param g The graphic context of the panel.
+   *  @param viewport The current state of the panel.
+   *  @return True if the frame matches the viewport, false if a new frame
+   *          is needed.*/
+  boolean paint(Graphics g, Viewport viewport)
+  {
+    synchronized (frameLock)
+    {
+      if (front == null || !front.viewport.sameScale(viewport))
+        return false;
+      g.drawImage(front.image, front.viewport.visible.x, front.viewport.visible.y, null);
+      return front.viewport.sameAs(viewport);
+    }
+  }
+
+  private void render()
+  {
+    final Viewport v = panel.getViewport();
+    if (v == null || v.visible.isEmpty())
+      return;
+
+    List<ILayerDrawer> all;
+    try {
+      all = panel.getLayersSnapshot();
+    } catch (ConcurrentModificationException e) {
+      // A layer added meanwhile, try again
+      requestFrame();
+      return;
+    }
+    final List<ILayerDrawer> layers = new ArrayList<ILayerDrawer>();
+    final List<LayerBuffer> layerBuffers = new ArrayList<LayerBuffer>();
+    for (ILayerDrawer lay : all)
+    {
+      if (!lay.isDisplayed())
+        continue;
+      LayerBuffer b = buffers.get(lay);
+      if (b == null)
+      {
+        b = new LayerBuffer();
+        buffers.put(lay, b);
+      }
+      layers.add(lay);
+      layerBuffers.add(b);
+    }
+    buffers.keySet().retainAll(all);
+
+    final Set<ILayerDrawer> staticLayers = panel.getStaticLayers();
+    final long invalidations = panel.getStaticInvalidations();
+    final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+    for (int i = 0; i < layers.size(); i++)
+    {
+      final ILayerDrawer lay = layers.get(i);
+      final LayerBuffer b = layerBuffers.get(i);
+      tasks.add(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        protected void compute()
+        {
+          renderLayer(lay, b, v, staticLayers.contains(lay), invalidations);
+        }
+      });
+    }
+    RowBandRasterizer.getPool().invoke(new RecursiveAction() {
+      private static final long serialVersionUID = 1L;
+
+      protected void compute()
+      {
+        invokeAll(tasks);
+      }
+    });
+
+    if (back == null || back.getWidth() != v.visible.width || back.getHeight() != v.visible.height)
+      back = new BufferedImage(v.visible.width, v.visible.height, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g2 = back.createGraphics();
+    try {
+      g2.setComposite(AlphaComposite.Clear);
+      g2.fillRect(0, 0, v.visible.width, v.visible.height);
+      g2.setComposite(AlphaComposite.SrcOver);
+      for (LayerBuffer b : layerBuffers)
+        if (b.image != null && b.viewport.sameScale(v))
+        {
+          int x = v.visible.x - b.region.x, y = v.visible.y - b.region.y;
+          g2.drawImage(b.image, 0, 0, v.visible.width, v.visible.height,
+                       x, y, x + v.visible.width, y + v.visible.height, null);
+        }
+    } finally {
+      g2.dispose();
+    }
+
+    synchronized (frameLock)
+    {
+      Frame f = new Frame(back, v);
+      back = front == null ? null : front.image;
+      front = f;
+    }
+
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run()
+      {
+        panel.repaint(v.visible);
+      }
+    });
+  }
+
+  // It runs on a worker of the pool, which is the only thread using the layer
+  private static void renderLayer(ILayerDrawer lay, LayerBuffer b, Viewport v,
+                                  boolean isStatic, long invalidations)
+  {
+    if (isStatic && b.image != null && v.sameScale(b.viewport) && b.region.contains(v.visible)
+        && b.version == lay.getVersion() && b.invalidations == invalidations)
+      return;
+
+    Rectangle region = isStatic ? v.staticRegion : v.visible;
+    Rectangle cells = isStatic ? v.staticCells : v.cells;
+    try {
+      if (v.zoomOutLevel > 0)
+        lay.getAggregatedDirtyRegion(v.zoomOutLevel, cells);
+      else
+        lay.getDirtyRegion(v.cellLen, cells);
+
+      BufferedImage img = b.spare;
+      if (img == null || img.getWidth() != region.width || img.getHeight() != region.height)
+        img = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+      b.spare = img;
+      Graphics2D g2 = img.createGraphics();
+      try {
+        g2.setComposite(AlphaComposite.Clear);
+        g2.fillRect(0, 0, region.width, region.height);
+        g2.setComposite(AlphaComposite.SrcOver);
+        g2.translate(-region.x, -region.y);
+        g2.setClip(region);
+        if (v.zoomOutLevel > 0)
+          lay.paintAggregated(g2, v.zoomOutLevel, cells);
+        else
+          lay.paint(g2, v.cellLen, cells);
+      } finally {
+        g2.dispose();
+      }
+      b.spare = b.image;
+      b.image = img;
+      b.region = region;
+      b.viewport = v;
+      b.version = lay.getVersion();
+      b.invalidations = invalidations;
+    } catch (ConcurrentModificationException e) {
+      // The space modified by the simulation, the layer keeps its last buffer
+      log.debug("Layer " + lay.getDescription() + " modified while rendered: " + e);
+    } catch (RuntimeException e) {
+      // The frame is still rendered, the layer keeps its last buffer
+      log.error("Error rendering " + lay.getDescription() + ": " + e.getMessage(), e);
+    }
+  }
+}
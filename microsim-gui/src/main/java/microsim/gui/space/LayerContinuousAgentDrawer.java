@@ -0,0 +1,339 @@
+package microsim.gui.space;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+import microsim.gui.colormap.ColorMap;
+import microsim.gui.probe.ProbeFrame;
+
+import org.apache.log4j.Logger;
+
+/**
+ * It is able to draw agents with continuous coordinates on a
+ * LayeredSurfaceFrame. The coordinates are expressed in cells of the frame,
+ * so an agent at (2.5, 3.5) is drawn centered on the cell (2, 3).<br>
+ * An agent is represented by a circle, drawn with a given color or with the
+ * color a ColorMap gives to a value of the agent. The positions of the agents
+ * are stored into a spatial index every time the frame is updated, so that
+ * only the agents within the visible region are drawn and the agent under
+ * the mouse is found without scanning all of them. A double click on an
+ * agent opens a probe on it.
+ *
+ * <p>Title: JAS-mine</p>
+ * <p>Description: Java Agent-based Simulation library</p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+public class LayerContinuousAgentDrawer<T> implements ILayerDrawer
+{
+  private static final Logger log = Logger.getLogger(LayerContinuousAgentDrawer.class);
+
+  //The minimum distance, in pixels, within which an agent is picked by the mouse
+  private static final int PICK_PIXELS = 3;
+
+  private final Collection<? extends T> agents;
+  private final ToDoubleFunction<? super T> xCoordinate, yCoordinate;
+  private final double width, height;
+
+  private Color c;
+  private ColorMap colorMap;
+  private ToIntFunction<T> colorIndex;
+  private ColorPalette palette;
+
+  private double agentSize = 1.0;
+  private boolean isDisplayed = true;
+  private String description;
+
+  private volatile AgentGridIndex index;
+  private AgentGridIndex spare;	//The previous index, whose arrays are reused when it is not read
+  private int lastCellLen = 1;
+  private final CellBatch batch = new CellBatch();
+
+  private ILayerMouseListener mouseListener = null;
+
+  /** Create a new continuous agent drawer. It plots the agents using the
+   *  given color.
+   *  @param name The string describing the layer.
+   *  @param agents The agents to be drawn.
+   *  @param xCoordinate The function returning the x coordinate of an agent, in cells.
+   *  @param yCoordinate The function returning the y coordinate of an agent, in cells.
+   *  @param width The width of the space, in cells.
+   *  @param height The height of the space, in cells.
+   *  @param color The color used to plot agents.*/
+  public LayerContinuousAgentDrawer(String name, Collection<? extends T> agents,
+                                    ToDoubleFunction<? super T> xCoordinate, ToDoubleFunction<? super T> yCoordinate,
+                                    double width, double height, Color color)
+  {
+    if (agents == null || xCoordinate == null || yCoordinate == null)
+      throw new IllegalArgumentException("LayerContinuousAgentDrawer: null agents or coordinate function.");
+    description = name;
+    this.agents = agents;
+    this.xCoordinate = xCoordinate;
+    this.yCoordinate = yCoordinate;
+    this.width = width;
+    this.height = height;
+    c = color;
+  }
+
+  /** Create a new continuous agent drawer. It plots the agents using the
+   *  color the given ColorMap gives to a value of each agent.
+   *  @param name The string describing the layer.
+   *  @param agents The agents to be drawn.
+   *  @param xCoordinate The function returning the x coordinate of an agent, in cells.
+   *  @param yCoordinate The function returning the y coordinate of an agent, in cells.
+   *  @param width The width of the space, in cells.
+   *  @param height The height of the space, in cells.
+   *  @param value The function returning the value of an agent.
+   *  @param map The ColorMap used to map values to colors.*/
+  public LayerContinuousAgentDrawer(String name, Collection<? extends T> agents,
+                                    ToDoubleFunction<? super T> xCoordinate, ToDoubleFunction<? super T> yCoordinate,
+                                    double width, double height, final ToDoubleFunction<? super T> value, ColorMap map)
+  {
+    this(name, agents, xCoordinate, yCoordinate, width, height, null);
+    if (value == null || map == null)
+      throw new IllegalArgumentException("LayerContinuousAgentDrawer: null value function or color map.");
+    colorMap = map;
+    palette = new ColorPalette(map, null);
+    colorIndex = new ToIntFunction<T>() {
+      public int applyAsInt(T agent)
+      {
+        return colorMap.getColorIndex(value.applyAsDouble(agent));
+      }
+    };
+  }
+
+  /** Return the diameter of the circle of an agent.
+   *  @return The diameter in cells.*/
+  public double getAgentSize() { return agentSize; }
+
+  /** Set the diameter of the circle of an agent. The default is 1 cell.
+   *  @param size The diameter in cells.*/
+  public void setAgentSize(double size)
+  {
+    if (!(size > 0))
+      throw new IllegalArgumentException("LayerContinuousAgentDrawer: the agent size must be positive.");
+    agentSize = size;
+  }
+
+  /** Store the current positions of the agents into the spatial index. It is
+   *  called by getDirtyRegion(), i.e. every time the frame is updated.*/
+  public synchronized void rebuildIndex()
+  {
+    AgentGridIndex reuse = spare != null && spare.isFree() ? spare : null;
+    AgentGridIndex idx = AgentGridIndex.build(agents, xCoordinate, yCoordinate, colorIndex, width, height, reuse);
+    spare = index;
+    index = idx;
+  }
+
+  // The published index, registered as read until it is released. An index
+  // acquired after it has been replaced may be rebuilt already, so it is
+  // left and the new one is taken
+  private AgentGridIndex acquireIndex()
+  {
+    while (true)
+    {
+      AgentGridIndex idx = index;
+      if (idx == null)
+      {
+        rebuildIndex();
+        continue;
+      }
+      idx.acquire();
+      if (idx == index)
+        return idx;
+      idx.release();
+    }
+  }
+
+  //Implementing LayerDrawerInterface interface
+
+  /** Rebuild the spatial index with the positions of the agents.
+   *  @param cellLen The length of a cell in pixels.
+   *  @return Always null, the agents may have moved anywhere.*/
+  public Rectangle getDirtyRegion(int cellLen)
+  {
+    try {
+      rebuildIndex();
+    } catch (ConcurrentModificationException e) {
+      log.debug(e.getMessage());
+    }
+    return null;
+  }
+
+  /** Draw the layer using the given cell length.
+   *  @param g The graphic context passed by container.
+   *  @param cellLen The length of a cell in pixels.*/
+  public void paint(Graphics g, int cellLen)
+  {
+    paint(g, cellLen, new Rectangle(0, 0, (int) Math.ceil(width), (int) Math.ceil(height)));
+  }
+
+  /** Draw the agents within the given cells.
+   *  @param g The graphic context passed by container.
+   *  @param cellLen The length of a cell in pixels.
+   *  @param cells The cells to be drawn.*/
+  public void paint(final Graphics g, final int cellLen, Rectangle cells)
+  {
+    lastCellLen = cellLen;
+    final AgentGridIndex idx;
+    try {
+      idx = acquireIndex();
+    } catch (ConcurrentModificationException e) {
+      // The agents are being modified by the simulation, they are drawn at the next update
+      log.debug(e.getMessage());
+      return;
+    }
+    try {
+      paint(g, cellLen, cells, idx);
+    } finally {
+      idx.release();
+    }
+  }
+
+  private void paint(final Graphics g, final int cellLen, Rectangle cells, final AgentGridIndex idx)
+  {
+
+    final int diameter = Math.max(1, (int) Math.round(agentSize * cellLen));
+    final int offset = diameter / 2;
+    double r = agentSize / 2;
+    double x0 = cells.x - r, y0 = cells.y - r;
+    double x1 = cells.x + cells.width + r, y1 = cells.y + cells.height + r;
+
+    if (c != null)
+    {
+      final BufferedImage sprite = batch.getSprite(c.getRGB(), diameter);
+      idx.forEachIn(x0, y0, x1, y1, new AgentGridIndex.Visitor() {
+        public void visit(int i)
+        {
+          g.drawImage(sprite, (int) Math.round(idx.x(i) * cellLen) - offset,
+                              (int) Math.round(idx.y(i) * cellLen) - offset, null);
+        }
+      });
+      return;
+    }
+
+    // The agents are drawn grouped by color, see CellBatch
+    batch.clear();
+    idx.forEachIn(x0, y0, x1, y1, new AgentGridIndex.Visitor() {
+      public void visit(int i)
+      {
+        batch.add((int) Math.round(idx.x(i) * cellLen) - offset,
+                  (int) Math.round(idx.y(i) * cellLen) - offset, idx.tag(i));
+      }
+    });
+    batch.draw(g, 1, diameter, palette);
+  }
+
+  /** Return the agent nearest to a point, within the radius of its circle
+   *  or a few pixels from its center.
+   *  @param x The x coordinate of the point, in cells.
+   *  @param y The y coordinate of the point, in cells.
+   *  @return The agent, null if there is no agent at the point.*/
+  @SuppressWarnings("unchecked")
+  public T getAgentAt(double x, double y)
+  {
+    if (index == null)
+      return null;
+    AgentGridIndex idx = acquireIndex();
+    try {
+      double radius = Math.max(agentSize / 2, PICK_PIXELS / (double) lastCellLen);
+      int i = idx.nearest(x, y, radius);
+      return i < 0 ? null : (T) idx.agent(i);
+    } finally {
+      idx.release();
+    }
+  }
+
+  /** Return if the layer is currently displayed on the LayeredSurfaceFrame.
+   *  @return True if it is currently painted, false otherwise.*/
+  public boolean isDisplayed() { return isDisplayed; }
+  /** Decide if layer has to be painted or not.
+   *  @param display True if you want the layer to be painted, false otherwise.*/
+  public void setDisplay(boolean display) { isDisplayed = display; }
+  /** Return the name of the layer.
+   *  @return The name passed to the constructor.*/
+  public String getDescription() { return description; }
+
+  /** Set a manager for mouse events. If not defined, mouse events are
+   *  managed by the class itself.
+   *  @param listener A ILayerMouseListener object.*/
+  public void setMouseListener(ILayerMouseListener listener)
+  {
+    mouseListener = listener;
+  }
+
+  /** If a mouse listener has been defined the double-click event, it is passed
+   *  to it, otherwise a probe is opened on the agent at the center of the
+   *  clicked cell.
+   *  @param atX The x coordinate of the clicked cell.
+   *  @param atY The y coordinate of the clicked cell.
+   *  @return True if the event has been managed.*/
+  public boolean performDblClickActionAt(int atX, int atY)
+  {
+    return performDblClickActionAt(atX + 0.5, atY + 0.5);
+  }
+
+  /** If a mouse listener has been defined the double-click event, it is passed
+   *  to it, otherwise a probe is opened on the agent at the clicked point.
+   *  @param atX The x coordinate of the clicked point, in cells.
+   *  @param atY The y coordinate of the clicked point, in cells.
+   *  @return True if the event has been managed, false if there is no agent
+   *          at the point.*/
+  public boolean performDblClickActionAt(double atX, double atY)
+  {
+    if (mouseListener != null)
+      return mouseListener.performDblClickActionAt((int) Math.floor(atX), (int) Math.floor(atY));
+
+    T agent = getAgentAt(atX, atY);
+    if (agent == null)
+      return false;
+
+    ProbeFrame pf = new ProbeFrame(agent, agent.toString());
+    pf.setVisible(true);
+    return true;
+  }
+
+  /** If a mouse listener has been defined the right-click event, it is passed
+   *  to it, otherwise it is returned false.
+   *  @param atX The x coordinate of the clicked cell.
+   *  @param atY The y coordinate of the clicked cell.
+   *  @return always false if no mouse listener is defined.*/
+  public boolean performRightClickActionAt(int atX, int atY)
+  {
+    if (mouseListener != null)
+      return mouseListener.performRightClickActionAt(atX, atY);
+
+    return false;
+  }
+
+  /** If a mouse listener has been defined the mouse dragging event, it is passed
+   *  to it, otherwise it is returned false.
+   *  @param fromX The x coordinate of the starting cell.
+   *  @param fromY The y coordinate of the starting cell.
+   *  @param toX The x coordinate of the last dragged cell.
+   *  @param toY The y coordinate of the last dragged cell.
+   *  @return always false if no mouse listener is defined.*/
+  public boolean performMouseMovedFromTo(int fromX, int fromY, int toX, int toY)
+  {
+    if (mouseListener != null)
+      return mouseListener.performMouseMovedFromTo(fromX, fromY, toX, toY);
+
+    return false;
+  }
+}
@@ -2,9 +2,9 @@ package microsim.gui.space;
 
 import java.awt.Color;
 import java.awt.Graphics;
-import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
-import java.util.Arrays;
+import java.awt.Rectangle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import microsim.gui.colormap.ColorMap;
 import microsim.space.IntSpace;
@@ -13,11 +13,16 @@ import microsim.space.IntSpace;
  * It is able to draw an IntGrid on a LayeredSurfaceFrame using
  * a ColorMap to render the values contained by the cell with
  * a specific color.<br>
- * This class builds an image when created and every time is updated
+ * This class builds an image when first painted and every time is updated
  * it modifies the parts of the images that are changed.
  * It is very fast when images do not change to frequently.
  * In order to let the painter to go faster it is useful to
  * reduce the number of color gradients in the ColorMap.
+ * When the LayeredSurfacePanel is zoomed out, each pixel shows the
+ * aggregation of a block of cells, see setAggregation().<br>
+ * The values may also be read from an IGridSource, e.g. an off-heap buffer,
+ * a memory-mapped file or an array of shorts or bytes, see GridSources: the
+ * source is read in place a row at a time, so the grid is not copied.
  *
  * <p>Title: JAS</p>
  * <p>Description: Java Agent-based Simulation library</p>
@@ -38,64 +43,30 @@ import microsim.space.IntSpace;
  * @author Michele Sonnessa
  * <p>
  */
-public class LayerIntGridDrawer implements ILayerDrawer
+public class LayerIntGridDrawer implements IRecordableLayer
 {
-  private int[] m;
+  private int[] m;	//The values, if held by an array
+  private IGridSource source;	//The values otherwise
   private ColorMap color;
   int[] trasparencyColor;
   private int xSize, ySize;
-  private int cellSize = 4;
+  private int cellSize;	//The cell length of the last update
 
   private boolean isDisplayed = true;
   private String description;
 
-  private int[] stateBuffer;
-  private BufferedImage img;
+  private GridRaster raster;
+  private ColorPalette palette;
+  private boolean parallelRendering;
 
-  private ILayerMouseListener mouseListener = null;
-
-  private void buildBufferImage()
-  {
-    WritableRaster raster = img.getRaster();
-    stateBuffer = new int[xSize * ySize];
-
-    int colorDepth;
-    if (trasparencyColor == null)
-      colorDepth = 3;
-    else
-      colorDepth = 4;
-
-    int[] pixels = new int[colorDepth * cellSize * cellSize];
+  //Held while the layer is rasterized, the drawing of the raster does not take it
+  private final ReentrantLock rasterLock = new ReentrantLock();
 
-    int[] currColor = null;
-    int currIndex = -1;
-
-    int k = 0;
-    for (int j = 0; j < ySize; j++)
-      for (int i = 0; i < xSize; i++)
-      {
-        currIndex = color.getColorIndex(m[k]);
-        currColor = color.getColorComponents(currIndex);
-        stateBuffer[k] = currIndex;
-        int XX = i * cellSize;
-        int YY = j * cellSize;
-
-        for (int z = 0; z < pixels.length; z += colorDepth)
-        {
-          pixels[z]     = currColor[0];
-          pixels[z + 1] = currColor[1];
-          pixels[z + 2] = currColor[2];
-          if (colorDepth == 4)
-            if (Arrays.equals(currColor, trasparencyColor))
-              pixels[z + 3] = 0;
-            else
-              pixels[z + 3] = 255;
-        }
+  private GridAggregation aggregation = GridAggregation.MODE;
+  private volatile GridPyramid pyramid;	//Used when the layer is zoomed out
 
-        raster.setPixels(XX, YY, cellSize, cellSize, pixels);
-        k++;
-      }
-  }
+  private ILayerMouseListener mouseListener = null;
+  private final AtomicLong version = new AtomicLong();
 
   /** Create a double layer drawer using values taken from an array of
    *  integers and a given IColorMap.
@@ -114,8 +85,34 @@ public class LayerIntGridDrawer implements ILayerDrawer
     ySize = height;
     trasparencyColor = null;
 
-    img = new BufferedImage(xSize * cellSize, ySize * cellSize, BufferedImage.TYPE_INT_RGB);
-    buildBufferImage();
+    palette = new ColorPalette(color, trasparencyColor);
+    raster = new GridRaster(trasparencyColor != null);
+  }
+
+  /** Create an integer layer drawer using values read from a grid source,
+   *  e.g. an array of bytes or a memory-mapped file, and a given IColorMap.
+   *  The values of a source of a floating point type are rounded.
+   *  @param name The string describing the layer.
+   *  @param source The source of the values, see GridSources.
+   *  @param colorRange The IColorMap used to map values to colors.*/
+  public LayerIntGridDrawer(String name, IGridSource source, ColorMap colorRange)
+  {
+    this(name, (int[]) null, source.getWidth(), source.getHeight(), colorRange);
+    this.source = source;
+  }
+
+  /** Create an integer layer drawer using values read from a grid source,
+   *  e.g. an array of bytes or a memory-mapped file, and a given IColorMap.
+   *  It allows to define a trasparency color.
+   *  @param name The string describing the layer.
+   *  @param source The source of the values, see GridSources.
+   *  @param colorRange The IColorMap used to map values to colors.
+   *  @param trasparentColor A color */
+  public LayerIntGridDrawer(String name, IGridSource source, ColorMap colorRange,
+		  Color trasparentColor)
+  {
+    this(name, (int[]) null, source.getWidth(), source.getHeight(), colorRange, trasparentColor);
+    this.source = source;
   }
 
   /** Create a double layer drawer using values taken from an IntGrid matrix and
@@ -151,8 +148,8 @@ public class LayerIntGridDrawer implements ILayerDrawer
     trasparencyColor[1] = trasparentColor.getGreen();
     trasparencyColor[2] = trasparentColor.getBlue();
 
-    img = new BufferedImage(xSize * cellSize, ySize * cellSize, BufferedImage.TYPE_INT_ARGB);
-    buildBufferImage();
+    palette = new ColorPalette(color, trasparencyColor);
+    raster = new GridRaster(trasparencyColor != null);
   }
 
   /** Create a double layer drawer using values using values taken from an IntGrid
@@ -172,108 +169,297 @@ public class LayerIntGridDrawer implements ILayerDrawer
 
   //Implementing LayerDrawerInterface interface
 
-  /** Draw the layer using the given cell length.
+  /** Draw the layer using the given cell length. The image of the layer has
+   *  one pixel per cell and is scaled up with nearest neighbor interpolation
+   *  when it is drawn, so changing the cell length does not reallocate it.
+   *  Only the part of the image within the clip of the graphic context is
+   *  drawn.
    *  @param g The graphic context passed by container.
    *  @param cellLen The length of a cell in pixels.*/
   public void paint(Graphics g, int cellLen)
   {
-    if (trasparencyColor != null)
-      paintWithTrasparency(g, cellLen);
-    else
-      paintWithoutTrasparency(g, cellLen);
+    paint(g, cellLen, new Rectangle(0, 0, xSize, ySize));
   }
 
-  private void setCellLenght(int cellLength)
+  /** Draw the given cells of the layer. Only those cells are brought up to
+   *  date, so the cost of painting depends on the visible part of the grid.
+   *  If the layer is being rasterized by another thread, e.g. updated by the
+   *  simulation thread, the last image is drawn instead of waiting for it.
+   *  @param g The graphic context passed by container.
+   *  @param cellLen The length of a cell in pixels.
+   *  @param cells The cells to be drawn.*/
+  public void paint(Graphics g, int cellLen, Rectangle cells)
   {
-    cellSize = cellLength;
-    if (trasparencyColor == null)
-      img = new BufferedImage(xSize * cellSize, ySize * cellSize, BufferedImage.TYPE_INT_RGB);
-    else
-      img = new BufferedImage(xSize * cellSize, ySize * cellSize, BufferedImage.TYPE_INT_ARGB);
+    Rectangle c = cells.intersection(new Rectangle(0, 0, xSize, ySize));
+    if (!raster.isFresh(c) && rasterLock.tryLock())
+    {
+      try {
+        pyramid = null;
+        cellSize = cellLen;
+        rasterize(c);
+      } finally {
+        rasterLock.unlock();
+      }
+    }
+    raster.draw(g, c, cellLen);
+  }
 
-    buildBufferImage();
+  /** Update the image with the cells changed since the last update.
+   *  @param cellLen The length of a cell in pixels.
+   *  @return The bounds of the changed cells in pixels.*/
+  public Rectangle getDirtyRegion(int cellLen)
+  {
+    return getDirtyRegion(cellLen, new Rectangle(0, 0, xSize, ySize));
   }
 
-  private void paintWithoutTrasparency(Graphics g, int cellLen)
+  /** Update the image with the given cells changed since the last update.
+   *  The image is rasterized into a back buffer, which is then swapped with
+   *  the one drawn by paint().
+   *  @param cellLen The length of a cell in pixels.
+   *  @param cells The cells to be checked, usually the visible ones.
+   *  @return The bounds of the changed cells in pixels.*/
+  public Rectangle getDirtyRegion(int cellLen, Rectangle cells)
   {
-    WritableRaster raster = img.getRaster();
-    int[] pixels = new int[3 * cellLen * cellLen];
+    rasterLock.lock();
+    try {
+      pyramid = null;
+      boolean resized = cellSize != cellLen;
+      cellSize = cellLen;
+
+      int[] bounds = rasterize(cells);
+      if (resized)
+        return new Rectangle(0, 0, xSize * cellLen, ySize * cellLen);
+      return cellBounds(bounds[0], bounds[1], bounds[2], bounds[3], cellLen);
+    } finally {
+      rasterLock.unlock();
+    }
+  }
 
-    int[] currColor;
-    int currIndex;
+  /** Draw the given cells of the layer zoomed out, with one pixel for each
+   *  block of 2^level x 2^level cells, colored according to the aggregation
+   *  of the block. The full resolution image is released while the layer is
+   *  zoomed out. As paint(), it does not wait for a rasterization in
+   *  progress.
+   *  @param g The graphic context passed by container.
+   *  @param level The zoom out level, at least 1.
+   *  @param cells The cells to be drawn.*/
+  public void paintAggregated(Graphics g, int level, Rectangle cells)
+  {
+    GridPyramid p = pyramid;
+    if ((p == null || !p.isFresh(level, cells)) && rasterLock.tryLock())
+    {
+      try {
+        raster.release();
+        p = getPyramid();
+        p.update(level, cells);
+      } finally {
+        rasterLock.unlock();
+      }
+    }
+    if (p != null)
+      p.paint(g, level, cells);
+  }
+
+  /** Update the aggregation of the given cells changed since the last update.
+   *  @param level The zoom out level, at least 1.
+   *  @param cells The cells to be checked, usually the visible ones.
+   *  @return The bounds of the changed blocks in pixels.*/
+  public Rectangle getAggregatedDirtyRegion(int level, Rectangle cells)
+  {
+    rasterLock.lock();
+    try {
+      raster.release();
+      return getPyramid().update(level, cells);
+    } finally {
+      rasterLock.unlock();
+    }
+  }
 
-    if (cellSize != cellLen)
-      setCellLenght(cellLen);
+  /** Return the statistic drawn for a block of cells when zoomed out.
+   *  @return The aggregation.*/
+  public GridAggregation getAggregation() { return aggregation; }
 
-    int k = 0;
-    for (int j = 0; j < ySize; j++)
-      for (int i = 0; i < xSize; i++)
-      {
-        currIndex = color.getColorIndex(m[k]);
-        if (currIndex != stateBuffer[k])
+  /** Set the statistic drawn for a block of cells when the layer is zoomed
+   *  out. The default is MODE.
+   *  @param aggregation The aggregation.*/
+  public void setAggregation(GridAggregation aggregation)
+  {
+    if (aggregation == null)
+      throw new IllegalArgumentException("LayerIntGridDrawer: null aggregation.");
+    rasterLock.lock();
+    try {
+      this.aggregation = aggregation;
+      pyramid = null;
+    } finally {
+      rasterLock.unlock();
+    }
+  }
+
+  private GridPyramid getPyramid()
+  {
+    if (pyramid == null)
+      pyramid = new GridPyramid(xSize, ySize, aggregation, palette, trasparencyColor != null) {
+        double value(int k)
         {
-          currColor = color.getColorComponents(currIndex);
-          stateBuffer[k] = currIndex;
-          int XX = i * cellLen;
-          int YY = j * cellLen;
-
-          for (int z = 0; z < pixels.length; z += 3)
-          {
-            pixels[z]     = currColor[0];
-            pixels[z + 1] = currColor[1];
-            pixels[z + 2] = currColor[2];
-          }
-
-          raster.setPixels(XX, YY, cellLen, cellLen, pixels);
+          return LayerIntGridDrawer.this.value(k);
         }
-        k++;
-      }
 
-    g.drawImage(img, 0, 0, null);
+        int colorIndex(double value)
+        {
+          return color.getColorIndex((int) Math.round(value));
+        }
+      };
+    return pyramid;
   }
 
-  private void paintWithTrasparency(Graphics g, int cellLen)
+  // The bounds, in pixels, of the cells from (minX, minY) to (maxX, maxY)
+  private static Rectangle cellBounds(int minX, int minY, int maxX, int maxY, int cellLen)
   {
-    WritableRaster raster = img.getRaster();
-    int[] pixels = new int[4 * cellLen * cellLen];
-    int[] currColor;
-    int currIndex;
-    int alpha = 0;
+    if (maxX < minX)
+      return new Rectangle();
+    return new Rectangle(minX * cellLen, minY * cellLen,
+                         (maxX - minX + 1) * cellLen, (maxY - minY + 1) * cellLen);
+  }
+
+  /** Return if the grid is rasterized in parallel.
+   *  @return True if the parallel rendering is enabled.*/
+  public boolean isParallelRendering() { return parallelRendering; }
+
+  /** Enable the parallel rendering: the rows of the grid are split into
+   *  bands which are rasterized concurrently on the cores of the machine.
+   *  Small grids are always rasterized sequentially. The ColorMap must not
+   *  be modified while the layer is rendered.
+   *  @param parallel True to rasterize the grid in parallel.*/
+  public void setParallelRendering(boolean parallel) { parallelRendering = parallel; }
+
+  //Implementing IRecordableLayer interface
+
+  /** Return the width of the grid.
+   *  @return The number of columns.*/
+  public int getGridWidth() { return xSize; }
 
-    if (cellSize != cellLen)
-      setCellLenght(cellLen);
+  /** Return the height of the grid.
+   *  @return The number of rows.*/
+  public int getGridHeight() { return ySize; }
 
-    int k = 0;
-    for (int j = 0; j < ySize; j++)
+  /** Write the current color indices of all the cells, whether they are
+   *  visible or not. The cells are mapped in parallel if the parallel
+   *  rendering is enabled.
+   *  @param indices The array to be filled, of width * height length.*/
+  public void getCellColorIndices(final int[] indices)
+  {
+    if (parallelRendering)
+      RowBandRasterizer.rasterize(xSize, ySize, new RowBandRasterizer.Band() {
+        public void rasterize(int fromRow, int toRow, int[] bounds)
+        {
+          indexRows(fromRow, toRow, indices);
+        }
+      });
+    else
+      indexRows(0, ySize, indices);
+  }
+
+  /** Return the color of a color index, as it is drawn.
+   *  @param index The color index.
+   *  @return The packed ARGB color, with alpha 0 for the trasparency color.*/
+  public int getIndexColor(int index)
+  {
+    return palette.get(index);
+  }
+
+  private void indexRows(int fromRow, int toRow, int[] indices)
+  {
+    if (m != null)
+    {
+      for (int k = fromRow * xSize; k < toRow * xSize; k++)
+        indices[k] = color.getColorIndex(m[k]);
+      return;
+    }
+
+    int[] values = new int[xSize];
+    for (int j = fromRow; j < toRow; j++)
+    {
+      source.getValues(j * xSize, values, 0, xSize);
       for (int i = 0; i < xSize; i++)
+        indices[j * xSize + i] = color.getColorIndex(values[i]);
+    }
+  }
+
+  private int value(int k)
+  {
+    return m != null ? m[k] : (int) Math.round(source.getValue(k));
+  }
+
+  // Map consecutive cells to packed colors. The values of a source are read
+  // into the given buffer first, those of an array are mapped in place
+  private void mapCells(int k, int[] argb, int offset, int length, int[] values)
+  {
+    if (m != null)
+      palette.map(m, k, argb, offset, length);
+    else
+    {
+      source.getValues(k, values, 0, length);
+      palette.map(values, 0, argb, offset, length);
+    }
+  }
+
+  // Write the packed colors of the changed cells within the given ones into
+  // the back image, publish it and return the bounds of the cells written,
+  // {minX, minY, maxX, maxY}
+  private int[] rasterize(Rectangle cells)
+  {
+    final Rectangle c = cells.intersection(new Rectangle(0, 0, xSize, ySize));
+    if (c.isEmpty())
+      return RowBandRasterizer.emptyBounds();
+
+    final int[] data = raster.begin(c);
+    final Rectangle region = raster.getRegion();
+
+    int[] bounds;
+    if (parallelRendering)
+      bounds = RowBandRasterizer.rasterize(c.width, c.height, new RowBandRasterizer.Band() {
+        public void rasterize(int fromRow, int toRow, int[] bounds)
+        {
+          rasterizeRows(c.y + fromRow, c.y + toRow, c.x, c.x + c.width, data, region, bounds);
+        }
+      });
+    else
+    {
+      bounds = RowBandRasterizer.emptyBounds();
+      rasterizeRows(c.y, c.y + c.height, c.x, c.x + c.width, data, region, bounds);
+    }
+    raster.publish(c);
+    return bounds;
+  }
+
+  // The image has one pixel per cell over its region. The colors of a row are
+  // mapped in bulk and compared with the pixels drawn
+  private void rasterizeRows(int fromRow, int toRow, int fromColumn, int toColumn,
+                             int[] data, Rectangle region, int[] bounds)
+  {
+    int[] row = new int[toColumn - fromColumn];
+    int[] values = m == null ? new int[row.length] : null;
+
+    for (int j = fromRow; j < toRow; j++)
+    {
+      int k = j * xSize + fromColumn;
+      int pixel = (j - region.y) * region.width + fromColumn - region.x;
+      mapCells(k, row, 0, row.length, values);
+      for (int i = fromColumn; i < toColumn; i++)
       {
-        currIndex = color.getColorIndex(m[k]);
-        if (currIndex != stateBuffer[k])
+        int argb = row[i - fromColumn];
+        if (argb != data[pixel])
         {
-          currColor = color.getColorComponents(currIndex);
-          stateBuffer[k] = currIndex;
-          int XX = i * cellLen;
-          int YY = j * cellLen;
-
-          if (Arrays.equals(currColor, trasparencyColor))
-            alpha = 0;
-          else
-            alpha = 255;
-
-          for (int z = 0; z < pixels.length; z += 4)
-          {
-            pixels[z] = currColor[0];
-            pixels[z+1] = currColor[1];
-            pixels[z+2] = currColor[2];
-            pixels[z+3] = alpha;
-          }
-
-          raster.setPixels(XX, YY, cellLen, cellLen, pixels);
+          data[pixel] = argb;
+
+          if (i < bounds[0]) bounds[0] = i;
+          if (i > bounds[2]) bounds[2] = i;
+          if (j < bounds[1]) bounds[1] = j;
+          bounds[3] = j;
         }
-        k++;
+        pixel++;
       }
-
-    g.drawImage(img, 0, 0, null);
+    }
   }
 
   /** Return if the layer is currently displayed on the LayeredSurfaceFrame.
@@ -286,6 +472,20 @@ public class LayerIntGridDrawer implements ILayerDrawer
    *  @return The name passed to the constructor.*/
   public String getDescription() { return description; }
 
+  /** Return the version of the content of the layer, changed by
+   *  bumpVersion() and setVersion().
+   *  @return The version, 0 if it has never been changed.*/
+  public long getVersion() { return version.get(); }
+  /** Tell that the grid has changed. If the layer is static on the
+   *  LayeredSurfacePanel, e.g. a terrain modified now and then, its cached image
+   *  is painted again at the next refresh, while the other static layers
+   *  are not invalidated.*/
+  public void bumpVersion() { version.incrementAndGet(); }
+  /** Set the version of the content of the layer, e.g. the simulation step
+   *  at which the grid was last modified.
+   *  @param version The new version.*/
+  public void setVersion(long version) { this.version.set(version); }
+
   /** Set a manager for mouse events. If not defined, mouse events are
    *  managed by the class itself.
    *  @param listener A ILayerMouseListener object.*/
@@ -308,7 +508,7 @@ public class LayerIntGridDrawer implements ILayerDrawer
       return mouseListener.performDblClickActionAt(atX, atY);
 
     javax.swing.JOptionPane.showMessageDialog(null,
-                  "Value at(" + atX + ", " + atY + "): " + m[atY * xSize + atX],
+                  "Value at(" + atX + ", " + atY + "): " + value(atY * xSize + atX),
                   "Probing " + getDescription(),
                   javax.swing.JOptionPane.INFORMATION_MESSAGE);
     return true;
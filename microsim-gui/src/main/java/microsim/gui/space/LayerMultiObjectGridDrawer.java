@@ -2,7 +2,12 @@ package microsim.gui.space;
 
 import java.awt.Color;
 import java.awt.Graphics;
-import java.lang.reflect.Field;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
 
 import microsim.gui.colormap.ColorMap;
 import microsim.space.MultiObjectSpace;
@@ -42,11 +47,15 @@ public class LayerMultiObjectGridDrawer implements ILayerDrawer
   Color c;
 
   private ColorMap colorMap;
-  private String agentProperty;
+  private PropertyAccessor accessor;
+  private ColorPalette palette;
+  private final CellBatch batch = new CellBatch();
+  private AgentCoordinates<?> agents;
   private boolean isDisplayed = true;
   private String description;
 
   private ILayerMouseListener mouseListener = null;
+  private final AtomicLong version = new AtomicLong();
 
   /** Create a new object drawer based on a given MultiObjGrid object. It plots
    *  the objects using the given color.
@@ -68,9 +77,30 @@ public class LayerMultiObjectGridDrawer implements ILayerDrawer
   {
   	this(name, matrix, null);
   	this.colorMap = map;
-  	this.agentProperty = agentProperty;
+  	this.accessor = new PropertyAccessor(agentProperty, false);
+  	this.palette = new ColorPalette(map, null);
   }
   
+  /** Let the layer iterate over a collection of agents, instead of the cells
+   *  of its space, when it is painted. On a sparse space, where most of the
+   *  cells are empty, the cost of painting is then proportional to the
+   *  number of agents. The collection is read every time the layer is
+   *  painted, so it must contain the agents of the space; it should not be
+   *  modified while the layer is painted. When several agents share a cell,
+   *  the cell is drawn with the color of one of them.
+   *  @param agents The agents of the space, or null to iterate over the
+   *         cells of the space again.
+   *  @param xCoordinate The function returning the x coordinate of an agent.
+   *  @param yCoordinate The function returning the y coordinate of an agent.*/
+  public <T> void setAgents(Collection<? extends T> agents, ToIntFunction<? super T> xCoordinate,
+                            ToIntFunction<? super T> yCoordinate)
+  {
+    if (agents == null)
+      this.agents = null;
+    else
+      this.agents = new AgentCoordinates<T>(agents, xCoordinate, yCoordinate);
+  }
+
   /** Return if the layer is currently displayed on the LayeredSurfaceFrame.
    *  @return True if it is currently painted, false otherwise.*/
   public boolean isDisplayed() { return isDisplayed; }
@@ -81,81 +111,107 @@ public class LayerMultiObjectGridDrawer implements ILayerDrawer
    *  @return The name passed to the constructor.*/
   public String getDescription() { return description; }
 
+  /** Return the version of the content of the layer, changed by
+   *  bumpVersion() and setVersion().
+   *  @return The version, 0 if it has never been changed.*/
+  public long getVersion() { return version.get(); }
+  /** Tell that the space has changed. If the layer is static on the
+   *  LayeredSurfacePanel, e.g. buildings modified now and then, its cached image
+   *  is painted again at the next refresh, while the other static layers
+   *  are not invalidated.*/
+  public void bumpVersion() { version.incrementAndGet(); }
+  /** Set the version of the content of the layer, e.g. the simulation step
+   *  at which the space was last modified.
+   *  @param version The new version.*/
+  public void setVersion(long version) { this.version.set(version); }
+
   /** Draw the layer using the given cell length.
    *  @param g The graphic context passed by container.
    *  @param cellLen The length of a cell in pixels.*/
   public void paint(Graphics g, int cellLen)
   {
-	if (c != null)
-	  paintWithColor(g, cellLen);
-	else
-		try {
-			paintWithoutColor(g, cellLen);
-		} catch (SecurityException e) {
-			log.error(e.getMessage());
-		} catch (IllegalArgumentException e) {
-			log.error(e.getMessage());
-		} catch (NoSuchFieldException e) {
-			log.error(e.getMessage());
-		} catch (IllegalAccessException e) {
-			log.error(e.getMessage());
-		}
+    paint(g, cellLen, new Rectangle(0, 0, space.getXSize(), space.getYSize()));
+  }
+
+  /** Draw the objects within the given cells.
+   *  @param g The graphic context passed by container.
+   *  @param cellLen The length of a cell in pixels.
+   *  @param cells The cells to be drawn.*/
+  public void paint(Graphics g, int cellLen, Rectangle cells)
+  {
+	cells = cells.intersection(new Rectangle(0, 0, space.getXSize(), space.getYSize()));
+	if (cells.isEmpty())
+	  return;
+
+	try {
+		if (c != null)
+		  paintWithColor(g, cellLen, cells);
+		else
+		  paintWithoutColor(g, cellLen, cells);
+	} catch (IllegalArgumentException e) {
+		log.error(e.getMessage());
+	} catch (ConcurrentModificationException e) {
+		// The agents are being moved by the simulation, they are drawn at the next update
+		log.debug(e.getMessage());
+	}
   }
   
-  private void paintWithColor(Graphics g, int cellLen)
+  private void paintWithColor(final Graphics g, final int cellLen, Rectangle cells)
   {
-   
-    g.setColor(c);
+    final BufferedImage sprite = batch.getSprite(c.getRGB(), cellLen);
 
-    for (int i = 0; i < space.getXSize(); i++)
-      for (int j = 0; j < space.getYSize(); j++)
-        if (space.countObjectsAt(i, j) > 0)
+    if (agents != null)
+    {
+      agents.forEach(cells, new AgentCoordinates.Visitor() {
+        public void visit(Object agent, int x, int y)
         {
-          int XX = i * cellLen;
-          int YY = j * cellLen;
-          g.fillOval(XX, YY, cellLen, cellLen);
+          g.drawImage(sprite, x * cellLen, y * cellLen, null);
         }
+      });
+      return;
+    }
+
+    for (int i = cells.x; i < cells.x + cells.width; i++)
+      for (int j = cells.y; j < cells.y + cells.height; j++)
+        if (space.countObjectsAt(i, j) > 0)
+          g.drawImage(sprite, i * cellLen, j * cellLen, null);
   }
 
-  private Color getColor(Object agent) throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
-	  Class<?> clazz = agent.getClass();	  
-	  Field field = clazz.getField(agentProperty);
-	  field.setAccessible(true);
-	  int index;
-	  if (field.getType().equals(Double.class))
-		  index = colorMap.getColorIndex(field.getDouble(agent));
-	  else
-		  index = colorMap.getColorIndex(field.getInt(agent));
-	  
-	  int[] components = colorMap.getColorComponents(index);
-	  return new Color(components[0], components[1], components[2]); 
-	  
+  private int getColorIndex(Object agent)
+  {
+    double value = accessor.getDouble(agent);
+    if (accessor.isFloatingPoint(agent))
+      return colorMap.getColorIndex(value);
+    else
+      return colorMap.getColorIndex((int) value);
   }
-  
-  	private void paintWithoutColor(Graphics g, int cellLen) throws SecurityException, IllegalArgumentException, NoSuchFieldException, IllegalAccessException
-	{
-	  Object[] obj;
-	  Color cl, currentColor = null;
-	  
-	  for (int i = 0; i < space.getXSize(); i++)
-		for (int j = 0; j < space.getYSize(); j++)
-		  if ((obj = (Object[]) space.get(i, j)) != null)
-		  	for (int k = 0; k < obj.length; k++ )
-		  	  if (obj[k] != null)
-		  	  {
-		  	  	cl = getColor(obj[k]);
-				if (cl != currentColor)
-				{
-				  currentColor = cl;
-				  g.setColor(currentColor);
-				}
-				int XX = i * cellLen;
-				int YY = j * cellLen;
-				g.fillOval(XX, YY, cellLen, cellLen);
-				k = obj.length;		  	  		
-		  	  }
-	}
-	
+
+  private void paintWithoutColor(Graphics g, int cellLen, Rectangle cells)
+  {
+    Object[] obj;
+
+    // The first object of each cell gives its color, the cells are drawn grouped by color
+    batch.clear();
+    if (agents != null)
+      agents.forEach(cells, new AgentCoordinates.Visitor() {
+        public void visit(Object agent, int x, int y)
+        {
+          batch.add(x, y, getColorIndex(agent));
+        }
+      });
+    else
+      for (int i = cells.x; i < cells.x + cells.width; i++)
+        for (int j = cells.y; j < cells.y + cells.height; j++)
+          if ((obj = (Object[]) space.get(i, j)) != null)
+            for (int k = 0; k < obj.length; k++)
+              if (obj[k] != null)
+              {
+                batch.add(i, j, getColorIndex(obj[k]));
+                break;
+              }
+    batch.draw(g, cellLen, palette);
+  }
+
   /** Set a manager for mouse events. If not defined, mouse events are
    *  managed by the class itself.
    *  @param listener A ILayerMouseListener object.*/
@@ -2,13 +2,17 @@ package microsim.gui.space;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
 
 import microsim.gui.colormap.ColorMap;
 import microsim.gui.probe.ProbeFrame;
 import microsim.reflection.ReflectionUtils;
 import microsim.space.ObjectSpace;
-import microsim.statistics.reflectors.DoubleInvoker;
-import microsim.statistics.reflectors.IntegerInvoker;
 
 import org.apache.log4j.Logger;
 
@@ -57,10 +61,18 @@ public class LayerObjectGridDrawer implements ILayerDrawer {
 	private boolean isDisplayed = true;
 	private String description;
 
-	private Object invoker = null;
+	private PropertyAccessor accessor = null;
+
+	private ColorPalette palette = null;
+
+	private final CellBatch batch = new CellBatch();
+
+	private AgentCoordinates<?> agents = null;
 	
 	private ILayerMouseListener mouseListener = null;
 
+	private final AtomicLong version = new AtomicLong();
+
 	/**
 	 * Create a new object drawer based on a given Grid object. It plots the
 	 * objects using the given color. NOTICE that the matrix parameter accepts a
@@ -93,63 +105,80 @@ public class LayerObjectGridDrawer implements ILayerDrawer {
   {
     this(name, matrix, null);
   	this.colorMap = map;
-  	if (ReflectionUtils.isDoubleSource(targetClass, variableName, isMethod))
-  		invoker = new DoubleInvoker(targetClass, variableName, isMethod);
-  	else if (ReflectionUtils.isIntSource(targetClass, variableName, isMethod))
-  		invoker = new IntegerInvoker(targetClass, variableName, isMethod);
-  	else
+  	if (!ReflectionUtils.isDoubleSource(targetClass, variableName, isMethod) &&
+  			!ReflectionUtils.isIntSource(targetClass, variableName, isMethod))
   		throw new IllegalArgumentException("Supported field type: double, int");
+  	accessor = new PropertyAccessor(variableName, isMethod);
+  	palette = new ColorPalette(map, null);
   }
 
+	/**
+	 * Let the layer iterate over a collection of agents, instead of the cells
+	 * of its space, when it is painted. On a sparse space, where most of the
+	 * cells are empty, the cost of painting is then proportional to the
+	 * number of agents. The collection is read every time the layer is
+	 * painted, so it must contain the agents of the space; it should not be
+	 * modified while the layer is painted.
+	 * 
+	 * @param agents
+	 *            The agents of the space, or null to iterate over the cells
+	 *            of the space again.
+	 * @param xCoordinate
+	 *            The function returning the x coordinate of an agent.
+	 * @param yCoordinate
+	 *            The function returning the y coordinate of an agent.
+	 */
+	public <T> void setAgents(Collection<? extends T> agents,
+			ToIntFunction<? super T> xCoordinate,
+			ToIntFunction<? super T> yCoordinate) {
+		if (agents == null)
+			this.agents = null;
+		else
+			this.agents = new AgentCoordinates<T>(agents, xCoordinate, yCoordinate);
+	}
+
 	// Implementing LayerDrawerInterface interface
 
-	private void paintWithColor(Graphics g, int cellLen) {
-		g.setColor(c);
+	private void paintWithColor(final Graphics g, final int cellLen, Rectangle cells) {
+		final BufferedImage sprite = batch.getSprite(c.getRGB(), cellLen);
 
-		for (int i = 0; i < space.getXSize(); i++)
-			for (int j = 0; j < space.getYSize(); j++)
-				if (space.countObjectsAt(i, j) > 0) {
-					int XX = i * cellLen;
-					int YY = j * cellLen;
-					g.fillOval(XX, YY, cellLen, cellLen);
+		if (agents != null) {
+			agents.forEach(cells, new AgentCoordinates.Visitor() {
+				public void visit(Object agent, int x, int y) {
+					g.drawImage(sprite, x * cellLen, y * cellLen, null);
 				}
-	}
+			});
+			return;
+		}
 
-	private Color getColor(Object agent) throws SecurityException,
-			NoSuchFieldException, IllegalArgumentException,
-			IllegalAccessException {
-		
-		int level;
-		if (invoker instanceof DoubleInvoker)
-			level = (int) ((DoubleInvoker) invoker).getDouble(agent);
-		else
-			level = (int) ((IntegerInvoker) invoker).getInt(agent);
-		
-		int index = colorMap.getColorIndex(level);
-
-		int[] components = colorMap.getColorComponents(index);
-		return new Color(components[0], components[1], components[2]);
+		for (int i = cells.x; i < cells.x + cells.width; i++)
+			for (int j = cells.y; j < cells.y + cells.height; j++)
+				if (space.countObjectsAt(i, j) > 0)
+					g.drawImage(sprite, i * cellLen, j * cellLen, null);
+	}
 
+	private int getColorIndex(Object agent) {
+		int level = (int) accessor.getDouble(agent);
+		return colorMap.getColorIndex(level);
 	}
 
-	private void paintWithoutColor(Graphics g, int cellLen)
-			throws SecurityException, IllegalArgumentException,
-			NoSuchFieldException, IllegalAccessException {
+	private void paintWithoutColor(Graphics g, int cellLen, Rectangle cells) {
 		Object obj;
-		Color cl, currentColor = null;
-
-		for (int i = 0; i < space.getXSize(); i++)
-			for (int j = 0; j < space.getYSize(); j++)
-				if ((obj = space.get(i, j)) != null) {
-					cl = getColor(obj);
-					if (cl != currentColor) {
-						currentColor = cl;
-						g.setColor(currentColor);
-					}
-					int XX = i * cellLen;
-					int YY = j * cellLen;
-					g.fillOval(XX, YY, cellLen, cellLen);
+
+		// The cells are drawn grouped by color, see CellBatch
+		batch.clear();
+		if (agents != null)
+			agents.forEach(cells, new AgentCoordinates.Visitor() {
+				public void visit(Object agent, int x, int y) {
+					batch.add(x, y, getColorIndex(agent));
 				}
+			});
+		else
+			for (int i = cells.x; i < cells.x + cells.width; i++)
+				for (int j = cells.y; j < cells.y + cells.height; j++)
+					if ((obj = space.get(i, j)) != null)
+						batch.add(i, j, getColorIndex(obj));
+		batch.draw(g, cellLen, palette);
 	}
 
 	/**
@@ -161,20 +190,35 @@ public class LayerObjectGridDrawer implements ILayerDrawer {
 	 *            The length of a cell in pixels.
 	 */
 	public void paint(Graphics g, int cellLen) {
-		if (c != null)
-			paintWithColor(g, cellLen);
-		else
-			try {
-				paintWithoutColor(g, cellLen);
-			} catch (SecurityException e) {
-				log.error(e.getMessage());
-			} catch (IllegalArgumentException e) {
-				log.error(e.getMessage());
-			} catch (NoSuchFieldException e) {
-				log.error(e.getMessage());
-			} catch (IllegalAccessException e) {
-				log.error(e.getMessage());
-			}
+		paint(g, cellLen, new Rectangle(0, 0, space.getXSize(), space.getYSize()));
+	}
+
+	/**
+	 * Draw the objects within the given cells.
+	 * 
+	 * @param g
+	 *            The graphic context passed by container.
+	 * @param cellLen
+	 *            The length of a cell in pixels.
+	 * @param cells
+	 *            The cells to be drawn.
+	 */
+	public void paint(Graphics g, int cellLen, Rectangle cells) {
+		cells = cells.intersection(new Rectangle(0, 0, space.getXSize(), space.getYSize()));
+		if (cells.isEmpty())
+			return;
+
+		try {
+			if (c != null)
+				paintWithColor(g, cellLen, cells);
+			else
+				paintWithoutColor(g, cellLen, cells);
+		} catch (IllegalArgumentException e) {
+			log.error(e.getMessage());
+		} catch (ConcurrentModificationException e) {
+			// The agents are being moved by the simulation, they are drawn at the next update
+			log.debug(e.getMessage());
+		}
 	}
 
 	/**
@@ -205,6 +249,36 @@ public class LayerObjectGridDrawer implements ILayerDrawer {
 		return description;
 	}
 
+	/**
+	 * Return the version of the content of the layer, changed by bumpVersion()
+	 * and setVersion().
+	 * 
+	 * @return The version, 0 if it has never been changed.
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Tell that the objects of the space have changed. If the layer is static
+	 * on the LayeredSurfacePanel, its cached image is painted again at the
+	 * next refresh, while the other static layers are not invalidated.
+	 */
+	public void bumpVersion() {
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Set the version of the content of the layer, e.g. the simulation step at
+	 * which the space was last modified.
+	 * 
+	 * @param version
+	 *            The new version.
+	 */
+	public void setVersion(long version) {
+		this.version.set(version);
+	}
+
 	/**
 	 * Set a manager for mouse events. If not defined, mouse events are managed
 	 * by the class itself.
@@ -2,24 +2,43 @@ package microsim.gui.space;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
 import javax.swing.JInternalFrame;
 import javax.swing.JMenuItem;
+import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
+import javax.swing.JSlider;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
+import microsim.engine.SimulationEngine;
 import microsim.event.CommonEventType;
 import microsim.event.EventListener;
 import microsim.gui.shell.MicrosimShell;
 
+import org.apache.log4j.Logger;
+
 /**
  * It is the Space Viewer window. It draws grid layers using a list of
  * ILayerDrawer objects. See Layered<type>GridDrawer classes of this library.
  * They are wrapper classes for Grid objects of the jas.space.* library and are
  * able to plot their contents.
+ * <p>
+ * The grid layers can be recorded into a file at every update, see
+ * GridRecorder, and the recorded frames can be browsed with a timeline slider
+ * while the simulation goes on.
  * 
  * <p>
  * Title: JAS
@@ -54,6 +73,7 @@ public class LayeredSurfaceFrame extends JInternalFrame implements
 	 * Comment for <code>serialVersionUID</code>
 	 */
 	private static final long serialVersionUID = 1L;
+	private static final Logger log = Logger.getLogger(LayeredSurfaceFrame.class);
 	private final static int MIN_WIDTH = 10; // 200;
 	private final static int MIN_HEIGHT = 10; // 100;
 
@@ -62,6 +82,7 @@ public class LayeredSurfaceFrame extends JInternalFrame implements
 	private int xSize;
 	private int ySize;
 	private int cellLen;
+	private int zoomOutLevel;
 	private Dimension screenSize;
 
 	BorderLayout borderLayout1 = new BorderLayout();
@@ -69,6 +90,31 @@ public class LayeredSurfaceFrame extends JInternalFrame implements
 	LayeredSurfacePanel jLayeredPanel;
 
 	JPopupMenu popupMenu = new JPopupMenu();
+	JMenuItem startRecordingItem = new JMenuItem("Start recording...");
+	JMenuItem stopRecordingItem = new JMenuItem("Stop recording");
+	JMenuItem timelineItem = new JMenuItem("Timeline");
+
+	private final Object recordingLock = new Object();
+	private GridRecorder recorder;	//Guarded by recordingLock
+	private volatile File recordingFile;
+	private GridRecording recording;	//The recording browsed by the timeline, if shown
+	private String liveTitle;	//The title replaced while a recorded frame is shown
+	private JPanel timelinePanel;
+	private JSlider timelineSlider;
+
+	private Rectangle pendingRegion;	//The region to be repainted by repaintTask, guarded by repaintTask
+
+	private final Runnable repaintTask = new Runnable() {
+		public void run() {
+			Rectangle dirty;
+			synchronized (this) {
+				dirty = pendingRegion;
+				pendingRegion = null;
+			}
+			if (dirty != null)
+				jLayeredPanel.repaintRegion(dirty);
+		}
+	};
 
 	/**
 	 * @link dependency
@@ -169,7 +215,28 @@ public class LayeredSurfaceFrame extends JInternalFrame implements
 			}
 		});
 		popupMenu.add(props);
-		//popupMenu.addSeparator();
+		popupMenu.addSeparator();
+
+		startRecordingItem.addActionListener(new java.awt.event.ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				jBtnStartRecording_actionPerformed(e);
+			}
+		});
+		stopRecordingItem.addActionListener(new java.awt.event.ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				stopRecording();
+			}
+		});
+		timelineItem.addActionListener(new java.awt.event.ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				showTimeline();
+			}
+		});
+		stopRecordingItem.setEnabled(false);
+		timelineItem.setEnabled(false);
+		popupMenu.add(startRecordingItem);
+		popupMenu.add(stopRecordingItem);
+		popupMenu.add(timelineItem);
 
 		adjustSize();
 	}
@@ -189,6 +256,18 @@ public class LayeredSurfaceFrame extends JInternalFrame implements
 		jLayeredPanel.setCellLength(cellLength);
 	}
 
+	/**
+	 * Zoom the plot area out, so that each pixel shows a block of 2^level x
+	 * 2^level cells. See LayeredSurfacePanel.setZoomOutLevel().
+	 * 
+	 * @param level
+	 *            The zoom out level, 0 to draw each cell with the cell length.
+	 */
+	public void setZoomOutLevel(int level) {
+		jLayeredPanel.setZoomOutLevel(level);
+		zoomOutLevel = level;
+	}
+
 	/**
 	 * Add a ILayerDrawer to the layer list.
 	 * 
@@ -199,15 +278,278 @@ public class LayeredSurfaceFrame extends JInternalFrame implements
 		jLayeredPanel.addLayer(layer);
 	}
 
-	/** Repaint the plot area. */
+	/**
+	 * Mark a layer as static, e.g. terrain or roads, so that it is painted
+	 * into a cached image instead of at every refresh. See
+	 * LayeredSurfacePanel.setLayerStatic().
+	 * 
+	 * @param layer
+	 *            The layer.
+	 * @param isStatic
+	 *            True if the layer is static.
+	 */
+	public void setLayerStatic(ILayerDrawer layer, boolean isStatic) {
+		jLayeredPanel.setLayerStatic(layer, isStatic);
+	}
+
+	/**
+	 * Paint the static layers again at the next refresh. See
+	 * LayeredSurfacePanel.invalidateStaticLayers().
+	 */
+	public void invalidateStaticLayers() {
+		jLayeredPanel.invalidateStaticLayers();
+	}
+
+	/**
+	 * Render the layers off the Event Dispatch Thread, each into its own
+	 * buffer on a pool of threads, so that a long rendering does not block
+	 * panning and clicking. See LayeredSurfacePanel.setAsyncRendering().
+	 * 
+	 * @param async
+	 *            True to render the layers asynchronously.
+	 */
+	public void setAsyncRendering(boolean async) {
+		jLayeredPanel.setAsyncRendering(async);
+	}
+
+	/**
+	 * Repaint the regions of the plot area changed since the last update. The
+	 * layers are brought up to date, e.g. the grids rasterized, on the calling
+	 * thread, so that only the drawing of their images happens on the Event
+	 * Dispatch Thread; the regions of the updates made while a repaint is
+	 * still waiting are merged into it. With asynchronous rendering a new
+	 * frame is requested instead, and the layers are brought up to date by the
+	 * rendering threads.
+	 */
 	public void update() {
-		jLayeredPanel.repaint();
+		if (jLayeredPanel.isAsyncRendering()) {
+			recordFrame();
+			jLayeredPanel.requestFrame();
+			return;
+		}
+
+		Rectangle dirty = jLayeredPanel.updateLayers();
+		recordFrame();
+		if (dirty == null)
+			return;
+
+		if (SwingUtilities.isEventDispatchThread()) {
+			jLayeredPanel.repaintRegion(dirty);
+			return;
+		}
+
+		synchronized (repaintTask) {
+			boolean waiting = pendingRegion != null;
+			pendingRegion = waiting ? pendingRegion.union(dirty) : dirty;
+			if (waiting)
+				return;
+		}
+		SwingUtilities.invokeLater(repaintTask);
+	}
+
+	/**
+	 * Start recording the grid layers, i.e. the ones implementing
+	 * IRecordableLayer, at every update. The layers added afterwards are not
+	 * recorded. A recording already running is stopped.
+	 * 
+	 * @param file
+	 *            The file, which is overwritten.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 * @throw IllegalArgumentException if there is no grid layer.
+	 */
+	public void startRecording(File file) throws IOException {
+		List<IRecordableLayer> layers = new ArrayList<IRecordableLayer>();
+		for (ILayerDrawer layer : jLayeredPanel.getLayers())
+			if (layer instanceof IRecordableLayer)
+				layers.add((IRecordableLayer) layer);
+
+		stopRecording();
+		if (SwingUtilities.isEventDispatchThread())
+			hideTimeline();
+		else
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					hideTimeline();
+				}
+			});
+		synchronized (recordingLock) {
+			recorder = new GridRecorder(file, layers);
+			recordingFile = file;
+		}
+		updateRecordingItems();
+	}
+
+	/**
+	 * Stop recording. The frames recorded can still be browsed with the
+	 * timeline.
+	 */
+	public void stopRecording() {
+		synchronized (recordingLock) {
+			if (recorder == null)
+				return;
+			try {
+				recorder.close();
+			} catch (IOException e) {
+				log.error("Error closing the recording: " + e.getMessage());
+			}
+			recorder = null;
+		}
+		updateRecordingItems();
+	}
+
+	/**
+	 * Return if the grid layers are being recorded.
+	 * 
+	 * @return True if a recording is running.
+	 */
+	public boolean isRecording() {
+		synchronized (recordingLock) {
+			return recorder != null;
+		}
+	}
+
+	private void recordFrame() {
+		synchronized (recordingLock) {
+			if (recorder == null)
+				return;
+			try {
+				recorder.record(SimulationEngine.getInstance().getTime());
+			} catch (IOException e) {
+				log.error("Recording stopped: " + e.getMessage());
+				try {
+					recorder.close();
+				} catch (IOException ex) {
+					log.debug(ex.getMessage());
+				}
+				recorder = null;
+			}
+		}
+	}
+
+	private void updateRecordingItems() {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					updateRecordingItems();
+				}
+			});
+			return;
+		}
+		boolean running = isRecording();
+		stopRecordingItem.setEnabled(running);
+		timelineItem.setEnabled(recordingFile != null);
+	}
+
+	/**
+	 * Show the timeline slider of the last recording, which replaces the
+	 * current state of the layers with the recorded frame selected. The frames
+	 * recorded after the timeline has been shown are available when it is
+	 * shown again. It must be called on the Event Dispatch Thread.
+	 */
+	public void showTimeline() {
+		if (recordingFile == null)
+			return;
+		try {
+			synchronized (recordingLock) {
+				// The frames still held by the writer of the recorder
+				if (recorder != null)
+					recorder.flush();
+			}
+			if (recording == null)
+				recording = new GridRecording(recordingFile);
+			else
+				recording.refresh();
+		} catch (IOException e) {
+			log.error("Error opening the recording: " + e.getMessage());
+			return;
+		}
+		if (recording.getFrameCount() == 0)
+			return;
+
+		if (timelinePanel == null) {
+			timelineSlider = new JSlider();
+			timelineSlider.addChangeListener(new ChangeListener() {
+				public void stateChanged(ChangeEvent e) {
+					showRecordedFrame(timelineSlider.getValue());
+				}
+			});
+			JButton live = new JButton("Live");
+			live.addActionListener(new java.awt.event.ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					hideTimeline();
+				}
+			});
+			timelinePanel = new JPanel(new BorderLayout());
+			timelinePanel.add(timelineSlider, BorderLayout.CENTER);
+			timelinePanel.add(live, BorderLayout.EAST);
+		}
+
+		int last = recording.getFrameCount() - 1;
+		timelineSlider.setMaximum(last);
+		if (timelinePanel.getParent() == null) {
+			this.getContentPane().add(timelinePanel, BorderLayout.SOUTH);
+			revalidate();
+		}
+		timelineSlider.setValue(last);
+		showRecordedFrame(timelineSlider.getValue());
+	}
+
+	/**
+	 * Hide the timeline slider and show the current state of the layers again.
+	 * It must be called on the Event Dispatch Thread.
+	 */
+	public void hideTimeline() {
+		jLayeredPanel.setPlaybackImages(null);
+		if (timelinePanel != null && timelinePanel.getParent() != null) {
+			this.getContentPane().remove(timelinePanel);
+			revalidate();
+		}
+		if (recording != null) {
+			try {
+				recording.close();
+			} catch (IOException e) {
+				log.debug(e.getMessage());
+			}
+			recording = null;
+		}
+		if (liveTitle != null) {
+			this.setTitle(liveTitle);
+			liveTitle = null;
+		}
+	}
+
+	private void showRecordedFrame(int frame) {
+		if (recording == null)
+			return;
+		try {
+			jLayeredPanel.setPlaybackImages(recording.getFrame(frame));
+			if (liveTitle == null)
+				liveTitle = getTitle();
+			this.setTitle(liveTitle + " - time " + recording.getTime(frame));
+		} catch (IOException e) {
+			log.error("Error reading the recording: " + e.getMessage());
+		}
+	}
+
+	private void jBtnStartRecording_actionPerformed(ActionEvent e) {
+		JFileChooser chooser = new JFileChooser();
+		chooser.setSelectedFile(new File("space.rec"));
+		if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		try {
+			startRecording(chooser.getSelectedFile());
+		} catch (IOException ex) {
+			log.error("Error starting the recording: " + ex.getMessage());
+		} catch (IllegalArgumentException ex) {
+			log.error(ex.getMessage());
+		}
 	}
 
 	private void jBtnProperties_actionPerformed(ActionEvent e) {
 		LayeredSurfaceProperties dlg = new LayeredSurfaceProperties(
 				MicrosimShell.currentShell, "Space viewer properties", cellLen,
-				jLayeredPanel.getLayers());
+				zoomOutLevel, jLayeredPanel.getLayers());
 		dlg.setVisible(true);
 
 		if (!dlg.modified)
@@ -215,8 +557,10 @@ public class LayeredSurfaceFrame extends JInternalFrame implements
 
 		if (dlg.newCellSize > 0)
 			setCellLength(dlg.newCellSize);
+		setZoomOutLevel(dlg.newZoomOutLevel);
 
 		adjustSize();
+		jLayeredPanel.repaint();
 		this.setVisible(true);
 	}
 
@@ -230,8 +574,14 @@ public class LayeredSurfaceFrame extends JInternalFrame implements
 	 *            It is ignored. The height is computed automatically.
 	 */
 	public void setSize(int x, int y) {
-		int width = cellLen * xSize + 10;
-		int height = cellLen * ySize + 28; // BUTTON_PANEL_HEIGHT;
+		int width, height;
+		if (zoomOutLevel > 0) {
+			width = ((xSize - 1) >> zoomOutLevel) + 1 + 10;
+			height = ((ySize - 1) >> zoomOutLevel) + 1 + 28;
+		} else {
+			width = cellLen * xSize + 10;
+			height = cellLen * ySize + 28; // BUTTON_PANEL_HEIGHT;
+		}
 
 		if (width > screenSize.getWidth())
 			width = (int) screenSize.getWidth();
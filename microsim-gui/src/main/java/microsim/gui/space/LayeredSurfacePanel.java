@@ -2,15 +2,26 @@ package microsim.gui.space;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 
 import javax.swing.JPanel;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Not of interest for users. It is the panel drawing the
  * Layer<type>Drawer objects added to the LayeredSurfaceFrame.
  * It manages mouse events, too.
+ * The layers marked as static at the bottom of the list, e.g. terrain or
+ * roads, are painted once into an image of the visible region with a margin
+ * around it, which is reused while panning within the margin and until one
+ * of their versions or the zoom changes, so that only the layers above them
+ * are painted at each refresh.
  *
  * <p>Title: JAS</p>
  * <p>Description: Java Agent-based Simulation library</p>
@@ -41,13 +52,38 @@ public class LayeredSurfacePanel extends JPanel
 	private int xSize;
 	private int ySize;
 	private int cellLen;
+	private int zoomOutLevel;
 
   private int virtualWidth, virtualHeigth;
 
   private Color background;
 
+  //The cells visible when the panel was last painted, null for all of them
+  private volatile Rectangle visibleCells;
+
+  //The layers painted into the static image, and the image with its key and
+  //the region it covers
+  private final Set<ILayerDrawer> staticLayers =
+    Collections.newSetFromMap(new ConcurrentHashMap<ILayerDrawer, Boolean>());
+  private final AtomicLong staticInvalidations = new AtomicLong();
+  private BufferedImage staticImage;
+  private List<Object> staticKey;
+  private Rectangle staticRegion;
+
+  //The versions of the static layers last painted or seen by updateLayers()
+  private final Map<ILayerDrawer, Long> staticVersions = new ConcurrentHashMap<ILayerDrawer, Long>();
+
+  //The recorded frame shown instead of the layers, if any
+  private volatile BufferedImage[] playbackImages;
+
+  //The renderer of the layers off the EDT, and the state it renders. It is
+  //shut down while the panel is not displayable
+  private volatile boolean asyncRendering;
+  private volatile LayerCompositor compositor;
+  private volatile LayerCompositor.Viewport asyncViewport;
+
   //Used for dragging
-  private int lastX, lastY;
+  private double lastX, lastY;
 
   /** @link dependency
    * @stereotype use*/
@@ -110,13 +146,23 @@ public class LayeredSurfacePanel extends JPanel
   public void setBackgroundColor(Color color)
   {
     background = color;
+    repaint();
   }
 
   private void setVirtualDimensions()
   {
-    virtualWidth = xSize * cellLen;
-    virtualHeigth = ySize * cellLen;
+    if (zoomOutLevel > 0)
+    {
+      virtualWidth = xSize == 0 ? 0 : ((xSize - 1) >> zoomOutLevel) + 1;
+      virtualHeigth = ySize == 0 ? 0 : ((ySize - 1) >> zoomOutLevel) + 1;
+    }
+    else
+    {
+      virtualWidth = xSize * cellLen;
+      virtualHeigth = ySize * cellLen;
+    }
 
+    visibleCells = null;
     this.setSize(virtualWidth, virtualHeigth);
     this.setPreferredSize(new Dimension(virtualWidth, virtualHeigth));
   }
@@ -138,6 +184,124 @@ public class LayeredSurfacePanel extends JPanel
     m_layers.add(layer);
   }
 
+  /** Mark a layer as static, or dynamic again. The static layers below the
+   *  first displayed dynamic one are painted into a cached image, which
+   *  covers the visible region with a margin of half its size on each side.
+   *  It is painted again only when the version of one of them, the set of
+   *  layers displayed, the cell length or the zoom change, when the visible
+   *  region leaves the margin, or when invalidateStaticLayers() is called.
+   *  The static layers are not asked for their changed regions when the
+   *  panel is updated, but a new version of one of them makes the whole
+   *  panel dirty. The built-in drawers change their version with
+   *  bumpVersion().
+   *  @param layer The layer.
+   *  @param isStatic True if the layer is static.*/
+  public void setLayerStatic(ILayerDrawer layer, boolean isStatic)
+  {
+    if (isStatic)
+      staticLayers.add(layer);
+    else
+    {
+      staticLayers.remove(layer);
+      staticVersions.remove(layer);
+    }
+    repaint();
+  }
+
+  /** Return if a layer is static.
+   *  @param layer The layer.
+   *  @return True if the layer has been marked as static.*/
+  public boolean isLayerStatic(ILayerDrawer layer)
+  {
+    return staticLayers.contains(layer);
+  }
+
+  /** Paint the static layers again at the next refresh, e.g. after the
+   *  content of a layer which does not update its version has changed.*/
+  public void invalidateStaticLayers()
+  {
+    staticInvalidations.incrementAndGet();
+    repaint();
+  }
+
+  /** Render the layers off the Event Dispatch Thread. At each
+   *  requestFrame() the layers are updated and painted, each into its own
+   *  buffer of the size of the visible region, on a pool of threads; the
+   *  buffers are composited into a frame which the Event Dispatch Thread
+   *  only copies to the screen. Panning and clicking stay responsive while a
+   *  frame is rendered, and the requests made meanwhile are merged, so the
+   *  frames which would be stale are never rendered. While panning, the last
+   *  frame is shown at its place until the new one is ready.
+   *  <p>
+   *  The layers are painted by several threads at once, while the simulation
+   *  may change what they draw, so a frame may mix two steps of the
+   *  simulation. Each layer takes a buffer of the size of the visible region.
+   *  The thread coordinating the rendering is stopped when the panel is
+   *  removed from its frame, e.g. when the frame is closed, and started
+   *  again if it is added back.
+   *  @param async True to render asynchronously, false to paint the layers
+   *               on the Event Dispatch Thread.*/
+  public void setAsyncRendering(boolean async)
+  {
+    if (async == asyncRendering)
+      return;
+    asyncRendering = async;
+    if (async)
+      compositor = new LayerCompositor(this);
+    else
+      stopCompositor();
+    repaint();
+  }
+
+  /** Return if the layers are rendered off the Event Dispatch Thread.
+   *  @return True if the rendering is asynchronous.*/
+  public boolean isAsyncRendering() { return asyncRendering; }
+
+  private void stopCompositor()
+  {
+    LayerCompositor c = compositor;
+    compositor = null;
+    asyncViewport = null;
+    if (c != null)
+      c.shutdown();
+  }
+
+  /** Start the asynchronous rendering again, if it is enabled, when the
+   *  panel is added back to a displayed container.*/
+  public void addNotify()
+  {
+    super.addNotify();
+    if (asyncRendering && compositor == null)
+      compositor = new LayerCompositor(this);
+  }
+
+  /** Stop the thread of the asynchronous rendering when the panel is
+   *  removed from its container, e.g. when its frame is closed.*/
+  public void removeNotify()
+  {
+    stopCompositor();
+    super.removeNotify();
+  }
+
+  /** Ask for a new frame with asynchronous rendering. It returns at once
+   *  and it can be called by any thread. It does nothing if the rendering
+   *  is not asynchronous.*/
+  public void requestFrame()
+  {
+    LayerCompositor c = compositor;
+    if (c != null)
+      c.requestFrame();
+  }
+
+  // Used by the compositor
+  LayerCompositor.Viewport getViewport() { return asyncViewport; }
+
+  List<ILayerDrawer> getLayersSnapshot() { return new ArrayList<ILayerDrawer>(m_layers); }
+
+  Set<ILayerDrawer> getStaticLayers() { return staticLayers; }
+
+  long getStaticInvalidations() { return staticInvalidations.get(); }
+
   /** Return the list of current added layers.
    *  @return An ArrayList of ILayerDrawer objects.*/
   public List<ILayerDrawer> getLayers() { return m_layers; }
@@ -150,28 +314,307 @@ public class LayeredSurfacePanel extends JPanel
     setVirtualDimensions();
   }
 
-  /** Draw the panel.
+  /** Return the current zoom out level.
+   *  @return The zoom out level, 0 if the panel is not zoomed out.*/
+  public int getZoomOutLevel() { return zoomOutLevel; }
+
+  /** Zoom the panel out, so that each pixel shows a block of 2^level x 2^level
+   *  cells, which the grid layers draw aggregated. It allows to view a large
+   *  grid whole. While the panel is zoomed out the cell length is ignored.
+   *  @param level The zoom out level, 0 to draw each cell with the cell length.*/
+  public void setZoomOutLevel(int level)
+  {
+    if (level < 0 || level > 30)
+      throw new IllegalArgumentException("LayeredSurfacePanel: zoom out level out of range.");
+    zoomOutLevel = level;
+    setVirtualDimensions();
+  }
+
+  /** Return the images shown instead of the layers.
+   *  @return The images, null if the layers are shown.*/
+  public BufferedImage[] getPlaybackImages() { return playbackImages; }
+
+  /** Show a recorded frame instead of the layers, e.g. the one returned by
+   *  GridRecording.getFrame(). Each image has one pixel per cell and it is
+   *  painted scaled to the panel, over the previous ones. The layers keep
+   *  being updated, and they are shown again when the images are set to null.
+   *  @param images The images, null to show the layers.*/
+  public void setPlaybackImages(BufferedImage[] images)
+  {
+    playbackImages = images;
+    repaint();
+  }
+
+  /** Ask the displayed layers for the regions changed since the last update,
+   *  within the cells visible when the panel was last painted.
+   *  A layer returning a null region, or a static layer whose version has
+   *  changed, makes the whole panel dirty.
+   *  @return The union of the changed regions in pixels, null if nothing
+   *          changed.*/
+  public Rectangle updateLayers()
+  {
+    Rectangle dirty = null;
+    boolean all = false;
+
+    Rectangle cells = visibleCells;
+    if (cells == null)
+      cells = new Rectangle(0, 0, xSize, ySize);
+
+    ILayerDrawer lay;
+    for (int i = 0; i < m_layers.size(); i++)
+    {
+      lay = (ILayerDrawer) m_layers.get(i);
+      if (!lay.isDisplayed())
+        continue;
+      if (staticLayers.contains(lay))
+      {
+        //It is brought up to date when the static image is painted again
+        long version = lay.getVersion();
+        Long last = staticVersions.put(lay, version);
+        if (last != null && last.longValue() != version)
+          all = true;
+        continue;
+      }
+
+      //Every layer is asked, so that all of them are brought up to date
+      Rectangle r = zoomOutLevel > 0 ? lay.getAggregatedDirtyRegion(zoomOutLevel, cells)
+                                     : lay.getDirtyRegion(cellLen, cells);
+      if (r == null)
+        all = true;
+      else if (!r.isEmpty())
+        dirty = (dirty == null ? new Rectangle(r) : dirty.union(r));
+    }
+
+    if (all)
+      return new Rectangle(0, 0, virtualWidth, virtualHeigth);
+    return dirty;
+  }
+
+  /** Repaint a region of the panel, clipped to its visible part.
+   *  It must be called on the Event Dispatch Thread.
+   *  @param dirty The region in pixels.*/
+  public void repaintRegion(Rectangle dirty)
+  {
+    Rectangle r = dirty.intersection(getVisibleRect());
+    if (!r.isEmpty())
+      repaint(r);
+  }
+
+  /** Update the layers and repaint the union of the regions they changed,
+   *  clipped to the visible part of the panel.
+   *  It must be called on the Event Dispatch Thread.*/
+  public void repaintDirtyRegions()
+  {
+    Rectangle dirty = updateLayers();
+    if (dirty != null)
+      repaintRegion(dirty);
+  }
+
+  /** Return the cells covered by a region of the panel.
+   *  @param r The region in pixels.
+   *  @return The cells, within the grid bounds.*/
+  public Rectangle toCells(Rectangle r)
+  {
+    return toCells(r, cellLen, zoomOutLevel, xSize, ySize);
+  }
+
+  static Rectangle toCells(Rectangle r, int cellLen, int zoomOutLevel, int xSize, int ySize)
+  {
+    long x0, y0, x1, y1;
+    if (zoomOutLevel > 0)
+    {
+      x0 = (long) r.x << zoomOutLevel;
+      y0 = (long) r.y << zoomOutLevel;
+      x1 = (long) (r.x + r.width) << zoomOutLevel;
+      y1 = (long) (r.y + r.height) << zoomOutLevel;
+    }
+    else
+    {
+      x0 = r.x / cellLen;
+      y0 = r.y / cellLen;
+      x1 = (r.x + r.width + cellLen - 1) / cellLen;
+      y1 = (r.y + r.height + cellLen - 1) / cellLen;
+    }
+    x0 = Math.max(0, x0);
+    y0 = Math.max(0, y0);
+    x1 = Math.min(xSize, x1);
+    y1 = Math.min(ySize, y1);
+    return new Rectangle((int) x0, (int) y0, (int) Math.max(0, x1 - x0), (int) Math.max(0, y1 - y0));
+  }
+
+  // The grid coordinate of the center of a pixel, in cells
+  private double toGrid(int pixel)
+  {
+    return zoomOutLevel > 0 ? (pixel + 0.5) * (1 << zoomOutLevel) : (pixel + 0.5) / cellLen;
+  }
+
+  /** Draw the panel. Only the region within the clip is painted, and the
+   *  layers are asked to paint the cells within the clip only.
    *  @param g The graphic context passed by container.*/
   public void paintComponent(Graphics g)
   {
     super.paintComponent(g);
 
+    Rectangle clip = g.getClipBounds();
+    if (clip == null)
+      clip = new Rectangle(0, 0, virtualWidth, virtualHeigth);
+
     if (background != null)
     {
       g.setColor(background);
-      g.fillRect(0, 0, virtualWidth, virtualHeigth);
+      g.fillRect(clip.x, clip.y, clip.width, clip.height);
+    }
+
+    Rectangle visible = getVisibleRect();
+    if (!visible.isEmpty())
+      visibleCells = toCells(visible);
+
+    BufferedImage[] images = playbackImages;
+    if (images != null)
+    {
+      paintPlayback(g, images);
+      return;
+    }
+
+    LayerCompositor c = compositor;
+    if (c != null)
+    {
+      if (visible.isEmpty())
+        return;
+      LayerCompositor.Viewport v = asyncViewport;
+      if (v == null || v.cellLen != cellLen || v.zoomOutLevel != zoomOutLevel
+          || !v.visible.equals(visible) || !v.cells.equals(visibleCells))
+        {
+        Rectangle region = staticRegion(visible);
+        asyncViewport = v = new LayerCompositor.Viewport(visible, cellLen, zoomOutLevel, visibleCells,
+                                                         region, toCells(region));
+      }
+      if (!c.paint(g, v))
+        c.requestFrame();
+      return;
+    }
+
+    Rectangle cells = toCells(clip);
+    int first = 0;
+    if (!staticLayers.isEmpty() && !visible.isEmpty())
+    {
+      first = staticLayerCount();
+      if (first > 0)
+      {
+        BufferedImage img = getStaticImage(first, visible);
+        int x = visible.x - staticRegion.x, y = visible.y - staticRegion.y;
+        g.drawImage(img, visible.x, visible.y, visible.x + visible.width, visible.y + visible.height,
+                         x, y, x + visible.width, y + visible.height, null);
+      }
     }
 
     ILayerDrawer lay;
-    for (int i = 0; i < m_layers.size(); i++)
+    for (int i = first; i < m_layers.size(); i++)
     {
       lay = (ILayerDrawer) m_layers.get(i);
-      if (lay.isDisplayed())
-        lay.paint(g, cellLen);
+      if (!lay.isDisplayed())
+        continue;
+      paintLayer(g, lay, cells);
     }
 
   }
 
+  private void paintLayer(Graphics g, ILayerDrawer lay, Rectangle cells)
+  {
+    if (zoomOutLevel > 0)
+      lay.paintAggregated(g, zoomOutLevel, cells);
+    else
+      lay.paint(g, cellLen, cells);
+  }
+
+  // The number of layers at the bottom of the list which are static or hidden
+  private int staticLayerCount()
+  {
+    int n = 0;
+    while (n < m_layers.size() && (!m_layers.get(n).isDisplayed() || staticLayers.contains(m_layers.get(n))))
+      n++;
+    return n;
+  }
+
+  // The region covered by the static image for the given visible one: the
+  // visible region with a margin of half its size on each side, within the
+  // panel
+  Rectangle staticRegion(Rectangle visible)
+  {
+    Rectangle r = new Rectangle(visible.x - visible.width / 2, visible.y - visible.height / 2,
+                                visible.width * 2, visible.height * 2);
+    return r.intersection(visible.union(new Rectangle(0, 0, virtualWidth, virtualHeigth)));
+  }
+
+  // The image of the static layers below the given index over staticRegion,
+  // painted again if its key has changed or if it does not cover the visible
+  // region
+  private BufferedImage getStaticImage(int count, Rectangle visible)
+  {
+    List<Object> key = new ArrayList<Object>();
+    key.add(cellLen);
+    key.add(zoomOutLevel);
+    key.add(staticInvalidations.get());
+    for (int i = 0; i < count; i++)
+    {
+      ILayerDrawer lay = m_layers.get(i);
+      if (!lay.isDisplayed())
+        continue;
+      key.add(lay);
+      key.add(lay.getVersion());
+    }
+    if (staticImage != null && key.equals(staticKey) && staticRegion.contains(visible))
+      return staticImage;
+
+    Rectangle region = staticRegion(visible);
+    if (staticImage == null || staticImage.getWidth() != region.width || staticImage.getHeight() != region.height)
+      staticImage = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g2 = staticImage.createGraphics();
+    try {
+      g2.setComposite(AlphaComposite.Clear);
+      g2.fillRect(0, 0, region.width, region.height);
+      g2.setComposite(AlphaComposite.SrcOver);
+      g2.translate(-region.x, -region.y);
+      g2.setClip(region);
+      Rectangle cells = toCells(region);
+      for (int i = 0; i < count; i++)
+      {
+        ILayerDrawer lay = m_layers.get(i);
+        if (!lay.isDisplayed())
+          continue;
+        // The static layers are brought up to date only here
+        staticVersions.put(lay, lay.getVersion());
+        if (zoomOutLevel > 0)
+          lay.getAggregatedDirtyRegion(zoomOutLevel, cells);
+        else
+          lay.getDirtyRegion(cellLen, cells);
+        paintLayer(g2, lay, cells);
+      }
+    } finally {
+      g2.dispose();
+    }
+    staticKey = key;
+    staticRegion = region;
+    return staticImage;
+  }
+
+  private void paintPlayback(Graphics g, BufferedImage[] images)
+  {
+    Graphics2D g2 = (Graphics2D) g.create();
+    try {
+      g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+      for (int i = 0; i < images.length; i++)
+      {
+        BufferedImage img = images[i];
+        int w = zoomOutLevel > 0 ? ((img.getWidth() - 1) >> zoomOutLevel) + 1 : img.getWidth() * cellLen;
+        int h = zoomOutLevel > 0 ? ((img.getHeight() - 1) >> zoomOutLevel) + 1 : img.getHeight() * cellLen;
+        g2.drawImage(img, 0, 0, w, h, null);
+      }
+    } finally {
+      g2.dispose();
+    }
+  }
+
   private void this_mouseClicked(MouseEvent e)
   {
     ILayerDrawer lay;
@@ -179,8 +622,8 @@ public class LayeredSurfacePanel extends JPanel
     if (e.getClickCount() != 2)
       return;
 
-    int x = (int) (e.getX() / cellLen);
-    int y = (int) (e.getY() / cellLen);
+    double x = toGrid(e.getX());
+    double y = toGrid(e.getY());
 
     for (int i = m_layers.size() - 1; i >= 0 ; i--)
     {
@@ -194,8 +637,8 @@ public class LayeredSurfacePanel extends JPanel
 
   private void this_mousePressed(MouseEvent e)
   {
-    lastX = (int) (e.getX() / cellLen);
-    lastY = (int) (e.getY() / cellLen);
+    lastX = toGrid(e.getX());
+    lastY = toGrid(e.getY());
   }
 
   private void this_mouseDragged(MouseEvent e)
@@ -209,8 +652,8 @@ public class LayeredSurfacePanel extends JPanel
         lastY < 0 || lastY > virtualHeigth)
         return;
 
-    int x = (int) (e.getX() / cellLen);
-    int y = (int) (e.getY() / cellLen);
+    double x = toGrid(e.getX());
+    double y = toGrid(e.getY());
 
     for (int i = m_layers.size() - 1; i >= 0 ; i--)
     {
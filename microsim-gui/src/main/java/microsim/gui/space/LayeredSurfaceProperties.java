@@ -36,8 +36,10 @@ import javax.swing.border.*;
 	private static final long serialVersionUID = 1L;
 public boolean modified;
   public int newCellSize;
+  public int newZoomOutLevel;
 
   private static final int MAX_CELL_LENGTH = 8;
+  private static final int MAX_ZOOM_OUT_LEVEL = 6;
 
   private java.util.List<ILayerDrawer> displayLayers;
 
@@ -55,6 +57,11 @@ public boolean modified;
 
   public LayeredSurfaceProperties(Frame frame, String title,
       int cellSize, java.util.List<ILayerDrawer> layers) {
+    this(frame, title, cellSize, 0, layers);
+  }
+
+  public LayeredSurfaceProperties(Frame frame, String title,
+      int cellSize, int zoomOutLevel, java.util.List<ILayerDrawer> layers) {
     super(frame, title, true);
 
     displayLayers = layers;
@@ -67,9 +74,16 @@ public boolean modified;
       ex.printStackTrace();
     }
 
+    //The zoomed out sizes, a fraction of a pixel, come first
+    for (int i = MAX_ZOOM_OUT_LEVEL; i >= 1; i--)
+      jCmbSize.addItem("1/" + (1 << i));
     for (int i = 1; i <= MAX_CELL_LENGTH; i++)
       jCmbSize.addItem("" + i);
-    jCmbSize.setSelectedIndex(cellSize - 1);
+    if (zoomOutLevel > 0)
+      jCmbSize.setSelectedIndex(MAX_ZOOM_OUT_LEVEL - Math.min(zoomOutLevel, MAX_ZOOM_OUT_LEVEL));
+    else
+      jCmbSize.setSelectedIndex(MAX_ZOOM_OUT_LEVEL + cellSize - 1);
+    newCellSize = cellSize;
 
     java.util.Iterator<ILayerDrawer> it = displayLayers.iterator();
     while (it.hasNext())
@@ -140,7 +154,14 @@ public boolean modified;
     }
 
     modified = true;
-    newCellSize = jCmbSize.getSelectedIndex() + 1;
+    int index = jCmbSize.getSelectedIndex();
+    if (index < MAX_ZOOM_OUT_LEVEL)
+      newZoomOutLevel = MAX_ZOOM_OUT_LEVEL - index;
+    else
+    {
+      newZoomOutLevel = 0;
+      newCellSize = index - MAX_ZOOM_OUT_LEVEL + 1;
+    }
     dispose();
   }
 
@@ -0,0 +1,132 @@
+package microsim.gui.space;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Not of interest for users. It reads a numeric field, or the value returned
+ * by a method without parameters, of the agents drawn by the object layers.
+ * The field or method is looked up once per agent class and turned into a
+ * method handle returning a double, which is cached for the class, so that no
+ * reflective lookup is made while painting.
+ */
+final class PropertyAccessor
+{
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+  private static final MethodType GETTER_TYPE = MethodType.methodType(double.class, Object.class);
+
+  private final String property;
+  private final boolean isMethod;
+
+  private final ClassValue<Getter> getters = new ClassValue<Getter>() {
+    protected Getter computeValue(Class<?> type)
+    {
+      return findGetter(type);
+    }
+  };
+
+  private static final class Getter
+  {
+    final MethodHandle handle;
+    final boolean floatingPoint;
+
+    Getter(MethodHandle handle, boolean floatingPoint)
+    {
+      this.handle = handle;
+      this.floatingPoint = floatingPoint;
+    }
+  }
+
+  /** Create an accessor.
+   *  @param property The name of the field or of the method.
+   *  @param isMethod True if the property is a method.*/
+  PropertyAccessor(String property, boolean isMethod)
+  {
+    if (property == null)
+      throw new IllegalArgumentException("PropertyAccessor: null property name.");
+    this.property = property;
+    this.isMethod = isMethod;
+  }
+
+  /** Return the value of the property of an agent.
+   *  @param agent The agent.
+   *  @return The value, widened to a double.
+   *  @throws IllegalArgumentException If the class of the agent has no such
+   *          numeric property.*/
+  double getDouble(Object agent)
+  {
+    try {
+      return (double) getters.get(agent.getClass()).handle.invokeExact(agent);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalArgumentException("PropertyAccessor: cannot read " + property + ": " + e.getMessage(), e);
+    }
+  }
+
+  /** Return if the property of the agent has a floating point type.
+   *  @param agent The agent.
+   *  @return True for double and float properties, false for integer ones.*/
+  boolean isFloatingPoint(Object agent)
+  {
+    return getters.get(agent.getClass()).floatingPoint;
+  }
+
+  private Getter findGetter(Class<?> type)
+  {
+    try {
+      MethodHandle handle;
+      Class<?> valueType;
+      if (isMethod)
+      {
+        Method method = findMethod(type);
+        method.setAccessible(true);
+        handle = LOOKUP.unreflect(method);
+        valueType = method.getReturnType();
+      }
+      else
+      {
+        Field field = findField(type);
+        field.setAccessible(true);
+        handle = LOOKUP.unreflectGetter(field);
+        valueType = field.getType();
+      }
+
+      boolean floatingPoint = valueType == double.class || valueType == float.class ||
+                              valueType == Double.class || valueType == Float.class;
+      return new Getter(handle.asType(GETTER_TYPE), floatingPoint);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalArgumentException("PropertyAccessor: " + type.getName() + " has no property " + property + ".", e);
+    } catch (RuntimeException e) {
+      //E.g. a non numeric property, which cannot be converted to double
+      throw new IllegalArgumentException("PropertyAccessor: cannot read " + property + " of " + type.getName() + ": " + e.getMessage(), e);
+    }
+  }
+
+  private Field findField(Class<?> type) throws NoSuchFieldException
+  {
+    for (Class<?> c = type; c != null; c = c.getSuperclass())
+      try {
+        return c.getDeclaredField(property);
+      } catch (NoSuchFieldException e) {
+        //Look in the super class
+      }
+    throw new NoSuchFieldException(property);
+  }
+
+  private Method findMethod(Class<?> type) throws NoSuchMethodException
+  {
+    for (Class<?> c = type; c != null; c = c.getSuperclass())
+      try {
+        return c.getDeclaredMethod(property);
+      } catch (NoSuchMethodException e) {
+        //Look in the super class
+      }
+    return type.getMethod(property);
+  }
+}
@@ -0,0 +1,105 @@
+package microsim.gui.space;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Not of interest for users. It splits the rows of a grid into bands which
+ * are rasterized concurrently by the grid drawers on a fork/join pool
+ * dedicated to the space viewers, so that the rasterization of a large grid
+ * uses all the cores and does not compete with the tasks of the common pool.
+ * Each band collects the bounds of the cells it changed, which are merged
+ * when the bands are joined.
+ */
+final class RowBandRasterizer
+{
+  /** Grids with fewer cells are rasterized by the calling thread only. */
+  static final int PARALLEL_THRESHOLD = 1 << 15;
+
+  private static ForkJoinPool pool;
+
+  /** Rasterizes the rows of a band. */
+  interface Band
+  {
+    /** Rasterize the rows from fromRow (inclusive) to toRow (exclusive).
+     *  @param bounds The bounds of the changed cells, {minX, minY, maxX, maxY},
+     *         to be extended with the cells changed by the band.*/
+    void rasterize(int fromRow, int toRow, int[] bounds);
+  }
+
+  private RowBandRasterizer()
+  {
+  }
+
+  static synchronized ForkJoinPool getPool()
+  {
+    if (pool == null)
+      pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    return pool;
+  }
+
+  /** Return bounds containing no cell. */
+  static int[] emptyBounds()
+  {
+    return new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, -1, -1 };
+  }
+
+  /** Rasterize a grid, in parallel if the grid is large enough and there
+   *  are several cores.
+   *  @param columns The number of columns of the grid.
+   *  @param rows The number of rows of the grid.
+   *  @param band The rasterizer of a band.
+   *  @return The bounds of the changed cells, {minX, minY, maxX, maxY}.*/
+  static int[] rasterize(int columns, int rows, Band band)
+  {
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    if ((long) columns * rows < PARALLEL_THRESHOLD || parallelism < 2 || rows < 2)
+    {
+      int[] bounds = emptyBounds();
+      band.rasterize(0, rows, bounds);
+      return bounds;
+    }
+
+    // A few bands per core to balance the load
+    int bandRows = Math.max(1, rows / (4 * parallelism));
+    return getPool().invoke(new BandTask(band, 0, rows, bandRows));
+  }
+
+  private static class BandTask extends RecursiveTask<int[]>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final Band band;
+    private final int fromRow, toRow, bandRows;
+
+    BandTask(Band band, int fromRow, int toRow, int bandRows)
+    {
+      this.band = band;
+      this.fromRow = fromRow;
+      this.toRow = toRow;
+      this.bandRows = bandRows;
+    }
+
+    protected int[] compute()
+    {
+      if (toRow - fromRow <= bandRows)
+      {
+        int[] bounds = emptyBounds();
+        band.rasterize(fromRow, toRow, bounds);
+        return bounds;
+      }
+
+      int mid = (fromRow + toRow) >>> 1;
+      BandTask top = new BandTask(band, fromRow, mid, bandRows);
+      BandTask bottom = new BandTask(band, mid, toRow, bandRows);
+      top.fork();
+      int[] bounds = bottom.compute();
+      int[] other = top.join();
+      bounds[0] = Math.min(bounds[0], other[0]);
+      bounds[1] = Math.min(bounds[1], other[1]);
+      bounds[2] = Math.max(bounds[2], other[2]);
+      bounds[3] = Math.max(bounds[3], other[3]);
+      return bounds;
+    }
+  }
+}
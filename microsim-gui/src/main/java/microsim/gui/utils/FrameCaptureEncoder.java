@@ -0,0 +1,446 @@
+package microsim.gui.utils;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+
+import org.apache.log4j.Logger;
+import org.jfree.chart.JFreeChart;
+
+/**
+ * Captures frames of a component, e.g. the LayeredSurfacePanel of a space
+ * viewer, or of a chart and encodes them on background threads, so that a
+ * movie of a run can be made while the simulation goes on. The calling thread
+ * only draws the frame into an image taken from a pool; the image is handed
+ * through a bounded queue to the encoder threads, which return it to the pool
+ * once written. When the encoders cannot keep up the queue fills and the
+ * capture policy decides whether the simulation waits or frames are dropped.
+ * <p>
+ * A PNG sequence is written by several encoder threads, one file per frame
+ * named after the capture number, e.g. "frame_000042.png": dropped frames
+ * leave gaps in the numbering, so that the files keep matching the steps. An
+ * animated GIF is written by a single encoder thread, to keep the frames in
+ * order.
+ * <p>
+ * A component is drawn on the Event Dispatch Thread, unless in a headless
+ * environment, so that it is not painted concurrently by Swing. Charts are
+ * drawn the same way.
+ *
+ * <p>Title: JAS-mine</p>
+ * <p>Description: Java Agent-based Simulation library</p>
+ *
+ * This library is free software; you can redistribute it and/or modify it under the terms
+ * of the GNU Lesser General Public License as published by the Free Software Foundation;
+ * either version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with this
+ * library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+public class FrameCaptureEncoder implements Closeable
+{
+  private static final Logger log = Logger.getLogger(FrameCaptureEncoder.class);
+
+  /** The formats the frames can be encoded to. */
+  public enum Format
+  {
+    /** A PNG file per frame, in a directory. */
+    PNG_SEQUENCE,
+    /** A single animated GIF file, looping forever. */
+    ANIMATED_GIF
+  }
+
+  /** What a capture does when the queue of the encoders is full. */
+  public enum Policy
+  {
+    /** Wait for the encoders, slowing the simulation down. No frame is lost. */
+    BLOCK,
+    /** Drop the new frame, before drawing it. */
+    DROP_NEWEST,
+    /** Drop the oldest frame waiting in the queue to make room for the new one. */
+    DROP_OLDEST
+  }
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+  // A frame waiting to be encoded
+  private static final class Frame
+  {
+    final BufferedImage image;
+    final int number;
+
+    Frame(BufferedImage image, int number)
+    {
+      this.image = image;
+      this.number = number;
+    }
+  }
+
+  private static final Frame END = new Frame(null, -1);
+
+  private final File target;
+  private final Format format;
+  private final Policy policy;
+  private final int delay;
+
+  private final BlockingQueue<Frame> queue;
+  private final BlockingQueue<BufferedImage> pool;
+  private final Thread[] encoders;
+
+  private final AtomicInteger captured = new AtomicInteger();
+  private final AtomicInteger dropped = new AtomicInteger();
+  private final AtomicInteger encoded = new AtomicInteger();
+  private volatile IOException failure;
+  private volatile boolean closed;
+
+  private ImageWriter gifWriter;
+  private ImageOutputStream gifOutput;
+
+  /** Create an encoder dropping the oldest frames when it cannot keep up.
+   *  @param target The directory of a PNG sequence, created if needed, or
+   *         the file of an animated GIF.
+   *  @param format The format.
+   *  @param delayMillis The time between two frames of an animated GIF.*/
+  public FrameCaptureEncoder(File target, Format format, int delayMillis)
+  {
+    this(target, format, Policy.DROP_OLDEST, DEFAULT_QUEUE_CAPACITY, delayMillis);
+  }
+
+  /** Create an encoder.
+   *  @param target The directory of a PNG sequence, created if needed, or
+   *         the file of an animated GIF.
+   *  @param format The format.
+   *  @param policy What a capture does when the encoders cannot keep up.
+   *  @param queueCapacity The number of frames which can wait to be encoded.
+   *  @param delayMillis The time between two frames of an animated GIF.*/
+  public FrameCaptureEncoder(File target, Format format, Policy policy, int queueCapacity, int delayMillis)
+  {
+    if (target == null || format == null || policy == null)
+      throw new IllegalArgumentException("FrameCaptureEncoder: null target, format or policy.");
+    if (queueCapacity < 1)
+      throw new IllegalArgumentException("FrameCaptureEncoder: the queue capacity must be positive.");
+    if (delayMillis < 0)
+      throw new IllegalArgumentException("FrameCaptureEncoder: the delay must be non negative.");
+
+    this.target = target;
+    this.format = format;
+    this.policy = policy;
+    this.delay = delayMillis;
+
+    int threads = format == Format.ANIMATED_GIF ? 1 :
+                  Math.max(1, Math.min(queueCapacity, Runtime.getRuntime().availableProcessors() - 1));
+    queue = new ArrayBlockingQueue<Frame>(queueCapacity);
+    // An image for every frame queued, being encoded or being drawn
+    pool = new ArrayBlockingQueue<BufferedImage>(queueCapacity + threads + 1);
+
+    encoders = new Thread[threads];
+    for (int i = 0; i < threads; i++)
+    {
+      encoders[i] = new Thread(new Runnable() {
+        public void run()
+        {
+          encode();
+        }
+      }, "FrameCaptureEncoder-" + i);
+      encoders[i].setDaemon(true);
+      encoders[i].start();
+    }
+  }
+
+  public File getTarget() { return target; }
+
+  public Format getFormat() { return format; }
+
+  public Policy getPolicy() { return policy; }
+
+  /** Return the number of captures requested, including the dropped ones. */
+  public int getCapturedCount() { return captured.get(); }
+
+  /** Return the number of frames dropped because the encoders could not keep up. */
+  public int getDroppedCount() { return dropped.get(); }
+
+  /** Return the number of frames written. */
+  public int getEncodedCount() { return encoded.get(); }
+
+  /** Capture a component, e.g. a LayeredSurfacePanel, at its current size.
+   *  @param component The component.
+   *  @return True if the frame has been queued, false if it has been dropped.
+   *  @throws IOException If the encoders failed.*/
+  public boolean capture(final JComponent component) throws IOException
+  {
+    Dimension d = component.getSize();
+    return capture(d.width, d.height, new Painter() {
+      public void paint(Graphics2D g2, int width, int height)
+      {
+        component.paint(g2);
+      }
+    });
+  }
+
+  /** Capture a chart, e.g. the one returned by the getChart() method of a
+   *  plotter.
+   *  @param chart The chart.
+   *  @param width The width of the frame in pixels.
+   *  @param height The height of the frame in pixels.
+   *  @return True if the frame has been queued, false if it has been dropped.
+   *  @throws IOException If the encoders failed.*/
+  public boolean capture(final JFreeChart chart, int width, int height) throws IOException
+  {
+    return capture(width, height, new Painter() {
+      public void paint(Graphics2D g2, int width, int height)
+      {
+        chart.draw(g2, new Rectangle2D.Double(0, 0, width, height));
+      }
+    });
+  }
+
+  // Draws a frame
+  private interface Painter
+  {
+    void paint(Graphics2D g2, int width, int height);
+  }
+
+  private boolean capture(final int width, final int height, final Painter painter) throws IOException
+  {
+    if (closed)
+      throw new IllegalStateException("FrameCaptureEncoder: the encoder is closed.");
+    if (failure != null)
+      throw failure;
+    if (width < 1 || height < 1)
+      throw new IllegalArgumentException("FrameCaptureEncoder: the frame size must be positive.");
+
+    int number = captured.getAndIncrement();
+    // The frame is dropped before it is drawn, so that it costs nothing
+    if (policy == Policy.DROP_NEWEST && queue.remainingCapacity() == 0)
+    {
+      dropped.incrementAndGet();
+      return false;
+    }
+
+    final BufferedImage image = takeImage(width, height);
+    Runnable draw = new Runnable() {
+      public void run()
+      {
+        Graphics2D g2 = image.createGraphics();
+        try {
+          g2.setColor(Color.white);
+          g2.fillRect(0, 0, width, height);
+          painter.paint(g2, width, height);
+        } finally {
+          g2.dispose();
+        }
+      }
+    };
+    if (GraphicsEnvironment.isHeadless() || SwingUtilities.isEventDispatchThread())
+      draw.run();
+    else
+      try {
+        SwingUtilities.invokeAndWait(draw);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        pool.offer(image);
+        dropped.incrementAndGet();
+        return false;
+      } catch (InvocationTargetException e) {
+        pool.offer(image);
+        throw new RuntimeException(e.getCause());
+      }
+
+    return enqueue(new Frame(image, number));
+  }
+
+  private BufferedImage takeImage(int width, int height)
+  {
+    BufferedImage image;
+    while ((image = pool.poll()) != null)
+      if (image.getWidth() == width && image.getHeight() == height)
+        return image;
+    // The images of a different size are left to the garbage collector
+    return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+  }
+
+  private boolean enqueue(Frame frame)
+  {
+    switch (policy)
+    {
+      case BLOCK:
+        try {
+          queue.put(frame);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          pool.offer(frame.image);
+          dropped.incrementAndGet();
+          return false;
+        }
+        return true;
+
+      case DROP_OLDEST:
+        while (!queue.offer(frame))
+        {
+          Frame oldest = queue.poll();
+          if (oldest != null)
+          {
+            pool.offer(oldest.image);
+            dropped.incrementAndGet();
+          }
+        }
+        return true;
+
+      default:
+        if (queue.offer(frame))
+          return true;
+        pool.offer(frame.image);
+        dropped.incrementAndGet();
+        return false;
+    }
+  }
+
+  // The loop of an encoder thread, until it takes END
+  private void encode()
+  {
+    while (true)
+    {
+      Frame frame;
+      try {
+        frame = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (frame == END)
+        return;
+
+      try {
+        if (failure == null)
+        {
+          if (format == Format.ANIMATED_GIF)
+            writeGIF(frame.image);
+          else
+            writePNG(frame);
+          encoded.incrementAndGet();
+        }
+      } catch (IOException e) {
+        log.error("Error encoding frame " + frame.number + ": " + e.getMessage());
+        failure = e;
+      } finally {
+        pool.offer(frame.image);
+      }
+    }
+  }
+
+  private void writePNG(Frame frame) throws IOException
+  {
+    if (!target.isDirectory() && !target.mkdirs() && !target.isDirectory())
+      throw new IOException("FrameCaptureEncoder: cannot create the directory " + target);
+    File file = new File(target, String.format("frame_%06d.png", frame.number));
+    if (!ImageIO.write(frame.image, "png", file))
+      throw new IOException("FrameCaptureEncoder: no PNG writer available.");
+  }
+
+  private void writeGIF(BufferedImage image) throws IOException
+  {
+    if (gifWriter == null)
+    {
+      Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+      if (!writers.hasNext())
+        throw new IOException("FrameCaptureEncoder: no GIF writer available.");
+      gifWriter = writers.next();
+      gifOutput = ImageIO.createImageOutputStream(target);
+      if (gifOutput == null)
+        throw new IOException("FrameCaptureEncoder: cannot write " + target);
+      gifWriter.setOutput(gifOutput);
+      gifWriter.prepareWriteSequence(null);
+    }
+
+    IIOMetadata metadata = gifWriter.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+    String name = metadata.getNativeMetadataFormatName();
+    IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(name);
+
+    IIOMetadataNode control = child(root, "GraphicControlExtension");
+    control.setAttribute("disposalMethod", "none");
+    control.setAttribute("userInputFlag", "FALSE");
+    control.setAttribute("transparentColorFlag", "FALSE");
+    control.setAttribute("delayTime", Integer.toString(delay / 10));
+    control.setAttribute("transparentColorIndex", "0");
+
+    if (encoded.get() == 0)
+    {
+      // The Netscape extension making the animation loop forever
+      IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+      loop.setAttribute("applicationID", "NETSCAPE");
+      loop.setAttribute("authenticationCode", "2.0");
+      loop.setUserObject(new byte[] { 1, 0, 0 });
+      child(root, "ApplicationExtensions").appendChild(loop);
+    }
+    metadata.setFromTree(name, root);
+
+    gifWriter.writeToSequence(new IIOImage(image, null, metadata), null);
+  }
+
+  private static IIOMetadataNode child(IIOMetadataNode root, String name)
+  {
+    for (int i = 0; i < root.getLength(); i++)
+      if (root.item(i).getNodeName().equalsIgnoreCase(name))
+        return (IIOMetadataNode) root.item(i);
+    IIOMetadataNode node = new IIOMetadataNode(name);
+    root.appendChild(node);
+    return node;
+  }
+
+  /** Encode the frames still queued, wait for the encoders to finish and
+   *  close the files. A capture must not be running.
+   *  @throws IOException If the encoders failed.*/
+  public void close() throws IOException
+  {
+    if (closed)
+      return;
+    closed = true;
+
+    try {
+      for (int i = 0; i < encoders.length; i++)
+        queue.put(END);
+      for (int i = 0; i < encoders.length; i++)
+        encoders[i].join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (gifWriter != null)
+    {
+      try {
+        gifWriter.endWriteSequence();
+        gifOutput.close();
+      } finally {
+        gifWriter.dispose();
+      }
+    }
+    pool.clear();
+
+    if (failure != null)
+      throw failure;
+  }
+}
@@ -0,0 +1,176 @@
+package microsim.gui.colormap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.awt.Color;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the compiled lookups of FixedColorMap, the dense table and the open
+ * addressing one, against the mappings added, and the unmapped fallback.
+ */
+public class FixedColorMapTest
+{
+  private final Random random = new Random(5);
+
+  // Add the given values with random colors and return their expected indices
+  private Map<Integer, Integer> addColors(FixedColorMap map, int[] values)
+  {
+    Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+    for (int value : values)
+    {
+      expected.put(value, expected.size());
+      map.addColor(value, new Color(random.nextInt(0x1000000)));
+    }
+    return expected;
+  }
+
+  private static void checkLookup(FixedColorMap map, Map<Integer, Integer> expected, int[] probes)
+  {
+    for (int value : probes)
+    {
+      Integer index = expected.get(value);
+      int i = index == null ? FixedColorMap.UNMAPPED_INDEX : index;
+      assertEquals("index of " + value, i, map.getColorIndex(value));
+      assertEquals("index of " + value + ".0", i, map.getColorIndex((double) value));
+      assertSame("color of " + value, index == null ? map.getUnmappedColor() : map.toArray()[i],
+                 map.getMappedColor(value));
+    }
+  }
+
+  // The mapped values and their neighbours, which may not be mapped
+  private static int[] probes(int[] values)
+  {
+    int[] probes = new int[3 * values.length + 4];
+    for (int i = 0; i < values.length; i++)
+    {
+      probes[3 * i] = values[i];
+      probes[3 * i + 1] = values[i] + 1;
+      probes[3 * i + 2] = values[i] - 1;
+    }
+    probes[3 * values.length] = -1;
+    probes[3 * values.length + 1] = Integer.MIN_VALUE;
+    probes[3 * values.length + 2] = Integer.MAX_VALUE;
+    probes[3 * values.length + 3] = 0;
+    return probes;
+  }
+
+  @Test
+  public void testDenseLookup()
+  {
+    FixedColorMap map = new FixedColorMap();
+    int[] values = new int[50];
+    for (int i = 0; i < values.length; i++)
+      values[i] = 3 * i + 7;
+    Map<Integer, Integer> expected = addColors(map, values);
+    checkLookup(map, expected, probes(values));
+  }
+
+  @Test
+  public void testSparseLookup()
+  {
+    FixedColorMap map = new FixedColorMap(4);
+    int[] values = new int[300];
+    for (int i = 0; i < values.length; i++)
+      values[i] = i * 1000003 % 2000000000;
+    Map<Integer, Integer> expected = addColors(map, values);
+    checkLookup(map, expected, probes(values));
+  }
+
+  @Test
+  public void testRandomLookup()
+  {
+    FixedColorMap map = new FixedColorMap();
+    int[] values = new int[1000];
+    Map<Integer, Integer> added = new HashMap<Integer, Integer>();
+    for (int i = 0; i < values.length; i++)
+    {
+      do
+        values[i] = random.nextInt(Integer.MAX_VALUE);
+      while (added.put(values[i], i) != null);
+    }
+    Map<Integer, Integer> expected = addColors(map, values);
+    checkLookup(map, expected, probes(values));
+  }
+
+  @Test
+  public void testColorsAddedAfterLookup()
+  {
+    FixedColorMap map = new FixedColorMap();
+    Map<Integer, Integer> expected = addColors(map, new int[] { 1, 2, 3 });
+    checkLookup(map, expected, new int[] { 1, 2, 3, 4, 5000000 });
+
+    // The lookup is compiled again, switching from the dense table to the open addressing one
+    map.addColor(5000000, Color.yellow);
+    expected.put(5000000, 3);
+    checkLookup(map, expected, new int[] { 1, 2, 3, 4, 5000000, 5000001 });
+  }
+
+  @Test
+  public void testUnmappedColor()
+  {
+    FixedColorMap map = new FixedColorMap();
+    map.addColor(0, Color.red);
+    assertSame(Color.black, map.getMappedColor(1));
+
+    map.setUnmappedColor(Color.magenta);
+    assertSame(Color.magenta, map.getMappedColor(1));
+    assertSame(Color.magenta, map.getMappedColor(-1));
+    assertSame(Color.magenta, map.getColor(FixedColorMap.UNMAPPED_INDEX));
+    assertEquals(ColorMap.pack(new int[] { 255, 0, 255 }),
+                 ColorMap.pack(map.getColorComponents(map.getColorIndex(1))));
+  }
+
+  @Test
+  public void testBulkColors()
+  {
+    for (int sparse = 0; sparse < 2; sparse++)
+    {
+      FixedColorMap map = new FixedColorMap();
+      map.setUnmappedColor(Color.gray);
+      int[] values = new int[40];
+      for (int i = 0; i < values.length; i++)
+        values[i] = sparse == 0 ? 2 * i : i * 7919 * 1009;
+      addColors(map, values);
+
+      int[] probes = probes(values);
+      double[] doubles = new double[probes.length];
+      for (int i = 0; i < probes.length; i++)
+        doubles[i] = probes[i];
+      int[] argb = new int[probes.length + 2];
+      int[] argbDoubles = new int[probes.length + 2];
+      map.getColors(probes, 0, argb, 2, probes.length);
+      map.getColors(doubles, 0, argbDoubles, 2, probes.length);
+      for (int i = 0; i < probes.length; i++)
+      {
+        int expected = ColorMap.pack(map.getColorComponents(map.getColorIndex(probes[i])));
+        assertEquals("color of " + probes[i], expected, argb[i + 2]);
+        assertEquals("color of " + probes[i] + ".0", expected, argbDoubles[i + 2]);
+      }
+    }
+  }
+
+  @Test
+  public void testOverriddenLookup()
+  {
+    // getColors() goes through the lookup of the subclass
+    FixedColorMap map = new FixedColorMap() {
+      public int getColorIndex(int value)
+      {
+        return super.getColorIndex(value / 10);
+      }
+    };
+    map.addColor(0, Color.red);
+    map.addColor(1, Color.green);
+    int[] argb = new int[3];
+    map.getColors(new int[] { 5, 15, 25 }, 0, argb, 0, 3);
+    assertEquals(Color.red.getRGB(), argb[0]);
+    assertEquals(Color.green.getRGB(), argb[1]);
+    assertEquals(Color.black.getRGB(), argb[2]);
+  }
+}
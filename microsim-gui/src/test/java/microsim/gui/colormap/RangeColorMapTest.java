@@ -0,0 +1,81 @@
+package microsim.gui.colormap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the bulk getColors() of the range maps gives the colors of
+ * getColorIndex(), including when a subclass overrides it.
+ */
+public class RangeColorMapTest
+{
+  private final Random random = new Random(3);
+
+  private void checkDoubles(ColorMap map)
+  {
+    double[] values = new double[200];
+    for (int i = 0; i < values.length; i++)
+      values[i] = random.nextDouble() * 140 - 20;
+    int[] argb = new int[values.length];
+    map.getColors(values, 0, argb, 0, values.length);
+    for (int i = 0; i < values.length; i++)
+      assertEquals("color of " + values[i], ColorMap.pack(map.getColorComponents(map.getColorIndex(values[i]))), argb[i]);
+  }
+
+  private void checkInts(ColorMap map)
+  {
+    int[] values = new int[200];
+    for (int i = 0; i < values.length; i++)
+      values[i] = random.nextInt(140) - 20;
+    int[] argb = new int[values.length];
+    map.getColors(values, 0, argb, 0, values.length);
+    for (int i = 0; i < values.length; i++)
+      assertEquals("color of " + values[i], ColorMap.pack(map.getColorComponents(map.getColorIndex(values[i]))), argb[i]);
+  }
+
+  @Test
+  public void testLinearColors()
+  {
+    RangeColorMap range = new RangeColorMap(50, 0, 100, Color.black, Color.orange);
+    checkDoubles(range);
+    checkInts(range);
+    checkDoubles(new DoubleRangeColorMap(50, Color.blue, Color.red, 0, 100));
+    checkDoubles(new TripleRangeColorMap(50, Color.blue, Color.white, Color.red, 0, 50, 100));
+  }
+
+  @Test
+  public void testOverriddenColorIndex()
+  {
+    // Reversed ranges, which the linear mapping of the superclasses would not give
+    RangeColorMap range = new RangeColorMap(50, 0, 100, Color.black, Color.orange) {
+      public int getColorIndex(double value)
+      {
+        return colorList.length - 1 - super.getColorIndex(value);
+      }
+
+      public int getColorIndex(int value)
+      {
+        return colorList.length - 1 - super.getColorIndex(value);
+      }
+    };
+    checkDoubles(range);
+    checkInts(range);
+
+    checkDoubles(new DoubleRangeColorMap(50, Color.blue, Color.red, 0, 100) {
+      public int getColorIndex(double value)
+      {
+        return colorList.length - 1 - super.getColorIndex(value);
+      }
+    });
+    checkDoubles(new TripleRangeColorMap(50, Color.blue, Color.white, Color.red, 0, 50, 100) {
+      public int getColorIndex(double value)
+      {
+        return colorList.length - 1 - super.getColorIndex(value);
+      }
+    });
+  }
+}
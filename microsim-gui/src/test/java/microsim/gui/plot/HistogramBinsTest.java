@@ -0,0 +1,87 @@
+package microsim.gui.plot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.jfree.data.statistics.HistogramDataset;
+import org.junit.Test;
+
+/**
+ * Checks the bins of every array type against the ones of JFreeChart's
+ * HistogramDataset, with the range of the values and with given bounds.
+ */
+public class HistogramBinsTest {
+
+	private final Random random = new Random(11);
+
+	private static void assertSameBins(HistogramDataset expected, HistogramBins actual, String type) {
+		assertEquals(type, expected.getItemCount(0), actual.binCount);
+		int total = 0;
+		for (int bin = 0; bin < actual.binCount; bin++) {
+			assertEquals(type + " count of bin " + bin, expected.getY(0, bin).intValue(), actual.getCount(bin));
+			assertEquals(type + " start of bin " + bin, expected.getStartXValue(0, bin), actual.getStartX(bin), 1e-9);
+			assertEquals(type + " end of bin " + bin, expected.getEndXValue(0, bin), actual.getEndX(bin), 1e-9);
+			total += actual.getCount(bin);
+		}
+		assertEquals(type, actual.total, total);
+	}
+
+	private void check(int binCount, Double minimum, Double maximum) {
+		int n = 500;
+		int[] ints = new int[n];
+		long[] longs = new long[n];
+		float[] floats = new float[n];
+		double[] doubles = new double[n];
+		for (int i = 0; i < n; i++) {
+			// Integers, so that the values fall on the boundaries of the bins
+			ints[i] = random.nextInt(60) - 10;
+			longs[i] = ints[i];
+			floats[i] = ints[i];
+			doubles[i] = ints[i];
+		}
+
+		HistogramDataset expected = new HistogramDataset();
+		if (minimum == null || maximum == null)
+			expected.addSeries("s", doubles, binCount);
+		else
+			expected.addSeries("s", doubles, binCount, minimum, maximum);
+
+		HistogramBins bins = new HistogramBins();
+		bins.bin("s", ints, binCount, minimum, maximum);
+		assertSameBins(expected, bins, "int");
+		bins.bin("s", longs, binCount, minimum, maximum);
+		assertSameBins(expected, bins, "long");
+		bins.bin("s", floats, binCount, minimum, maximum);
+		assertSameBins(expected, bins, "float");
+		bins.bin("s", doubles, binCount, minimum, maximum);
+		assertSameBins(expected, bins, "double");
+
+		if (minimum != null && maximum != null) {
+			// A NaN goes to the last bin, as in HistogramDataset
+			doubles[0] = Double.NaN;
+			HistogramDataset expectedNaN = new HistogramDataset();
+			expectedNaN.addSeries("s", doubles, binCount, minimum, maximum);
+			bins.bin("s", doubles, binCount, minimum, maximum);
+			assertSameBins(expectedNaN, bins, "double with NaN");
+		}
+	}
+
+	@Test
+	public void testRangeOfValues() {
+		for (int binCount = 1; binCount <= 25; binCount += 3)
+			check(binCount, null, null);
+	}
+
+	@Test
+	public void testGivenBounds() {
+		check(10, 0.0, 40.0);
+		check(7, -5.0, 30.0);
+		check(12, 20.0, 21.5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyValuesWithoutBounds() {
+		new HistogramBins().bin("s", new int[0], 10, null, null);
+	}
+}
@@ -0,0 +1,105 @@
+package microsim.gui.plot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jfree.data.Range;
+import org.jfree.data.general.SeriesChangeEvent;
+import org.junit.Test;
+
+/**
+ * Checks the eviction of a bounded RingBufferXYDataset and the incremental
+ * decimation of DecimatedXYDataset once the ring has wrapped around.
+ */
+public class RingBufferXYDatasetTest {
+
+	// Counts the x values read, to tell a fold from a rebuild of the columns
+	private static class CountingDataset extends RingBufferXYDataset {
+
+		private static final long serialVersionUID = 1L;
+
+		long reads;
+
+		public double getXValue(int seriesIndex, int item) {
+			reads++;
+			return super.getXValue(seriesIndex, item);
+		}
+	}
+
+	@Test
+	public void testEvictedCount() {
+		RingBufferXYDataset dataset = new RingBufferXYDataset();
+		dataset.addSeries("s", 10);
+		for (int i = 0; i < 100; i++)
+			dataset.add(0, i, -i);
+
+		assertEquals(10, dataset.getItemCount(0));
+		assertEquals(90, dataset.getEvictedCount(0));
+		assertEquals(90, dataset.getXValue(0, 0), 0);
+		assertEquals(-99, dataset.getYValue(0, 9), 0);
+		assertEquals(-99, dataset.getRangeLowerBound(false), 0);
+		assertEquals(-90, dataset.getRangeUpperBound(false), 0);
+
+		dataset.setMaximumItemCount(0, 4);
+		assertEquals(96, dataset.getEvictedCount(0));
+		assertEquals(96, dataset.getXValue(0, 0), 0);
+
+		dataset.clear();
+		assertEquals(0, dataset.getEvictedCount(0));
+	}
+
+	@Test
+	public void testUnboundedSeriesEvictsNothing() {
+		RingBufferXYDataset dataset = new RingBufferXYDataset();
+		dataset.addSeries("s", 0);
+		for (int i = 0; i < 1000; i++)
+			dataset.add(0, i, i);
+
+		assertEquals(1000, dataset.getItemCount(0));
+		assertEquals(0, dataset.getEvictedCount(0));
+	}
+
+	private static void assertSameItems(DecimatedXYDataset expected, DecimatedXYDataset actual) {
+		assertEquals(expected.getItemCount(0), actual.getItemCount(0));
+		for (int i = 0; i < expected.getItemCount(0); i++) {
+			assertEquals("x of item " + i, expected.getXValue(0, i), actual.getXValue(0, i), 0);
+			assertEquals("y of item " + i, expected.getYValue(0, i), actual.getYValue(0, i), 0);
+		}
+	}
+
+	@Test
+	public void testFoldAfterWrapAround() {
+		CountingDataset dataset = new CountingDataset();
+		dataset.addSeries("s", 1000);
+		DecimatedXYDataset view = new DecimatedXYDataset(dataset);
+		view.setColumns(50);
+		Range window = new Range(2000, 4000);
+		view.setDomainWindow(window);
+
+		// The ring wraps around before the window is reached
+		for (int i = 0; i < 2000; i++)
+			dataset.add(0, i, Math.sin(i / 10.0));
+		dataset.seriesChanged(new SeriesChangeEvent(dataset));
+		view.getItemCount(0);
+
+		// The samples dropped from now on are all before the window, so the
+		// new samples are folded into the columns already computed
+		for (int i = 2000; i < 2990; i += 10) {
+			for (int j = i; j < i + 10; j++)
+				dataset.add(0, j, Math.sin(j / 10.0) * j);
+			dataset.seriesChanged(new SeriesChangeEvent(dataset));
+
+			dataset.reads = 0;
+			view.getItemCount(0);
+			if (i >= 2300)
+				assertTrue("x values read at " + i + ": " + dataset.reads, dataset.reads < 50);
+
+			DecimatedXYDataset fresh = new DecimatedXYDataset(dataset);
+			fresh.setColumns(50);
+			fresh.setDomainWindow(window);
+			assertSameItems(fresh, view);
+			dataset.removeChangeListener(fresh);
+		}
+		assertEquals(1990, dataset.getEvictedCount(0));
+	}
+}
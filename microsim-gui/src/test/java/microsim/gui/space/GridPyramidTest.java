@@ -0,0 +1,236 @@
+package microsim.gui.space;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import microsim.gui.colormap.ColorMap;
+
+import org.junit.Test;
+
+/**
+ * Checks the blocks of the aggregation pyramid against the statistics
+ * computed from the cells, after the first update and after incremental
+ * ones.
+ */
+public class GridPyramidTest
+{
+  private static final int X_SIZE = 37, Y_SIZE = 29;
+  private static final int MAX_LEVEL = 4;
+  private static final int SCALE = 1024;	//Color index of a value, exact for the means tested
+
+  // The color of an index is the index itself, so the pixels give the indices back
+  private static final class IndexColorMap implements ColorMap
+  {
+    public int[] getColorComponents(int index)
+    {
+      return new int[] { (index >> 16) & 0xFF, (index >> 8) & 0xFF, index & 0xFF };
+    }
+
+    public int getColorIndex(int value)
+    {
+      return value * SCALE;
+    }
+
+    public int getColorIndex(double value)
+    {
+      return (int) Math.round(value * SCALE);
+    }
+  }
+
+  private final Random random = new Random(17);
+  private final double[] cells = new double[X_SIZE * Y_SIZE];
+  private final ColorMap map = new IndexColorMap();
+
+  private GridPyramid createPyramid(GridAggregation aggregation)
+  {
+    for (int k = 0; k < cells.length; k++)
+      cells[k] = random.nextInt(8);
+    return new GridPyramid(X_SIZE, Y_SIZE, aggregation, new ColorPalette(map, null), false) {
+      double value(int k)
+      {
+        return cells[k];
+      }
+
+      int colorIndex(double value)
+      {
+        return map.getColorIndex(value);
+      }
+    };
+  }
+
+  private void change(int count)
+  {
+    for (int i = 0; i < count; i++)
+      cells[random.nextInt(cells.length)] = random.nextInt(8);
+  }
+
+  private static int blocks(int cells, int level)
+  {
+    return ((cells - 1) >> level) + 1;
+  }
+
+  // The color indices of the blocks of a level, as drawn by the pyramid
+  private static int[][] draw(GridPyramid pyramid, int level)
+  {
+    BufferedImage img = new BufferedImage(blocks(X_SIZE, level), blocks(Y_SIZE, level), BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = img.createGraphics();
+    pyramid.paint(g, level, new Rectangle(0, 0, X_SIZE, Y_SIZE));
+    g.dispose();
+
+    int[][] indices = new int[img.getHeight()][img.getWidth()];
+    for (int y = 0; y < img.getHeight(); y++)
+      for (int x = 0; x < img.getWidth(); x++)
+        indices[y][x] = img.getRGB(x, y) & 0xFFFFFF;
+    return indices;
+  }
+
+  private double mean(int level, int bx, int by)
+  {
+    double sum = 0;
+    int n = 0;
+    for (int y = by << level; y < Math.min(Y_SIZE, (by + 1) << level); y++)
+      for (int x = bx << level; x < Math.min(X_SIZE, (bx + 1) << level); x++)
+      {
+        sum += cells[y * X_SIZE + x];
+        n++;
+      }
+    return sum / n;
+  }
+
+  private double max(int level, int bx, int by)
+  {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int y = by << level; y < Math.min(Y_SIZE, (by + 1) << level); y++)
+      for (int x = bx << level; x < Math.min(X_SIZE, (bx + 1) << level); x++)
+        max = Math.max(max, cells[y * X_SIZE + x]);
+    return max;
+  }
+
+  // The first of the most frequent values of the (up to) four blocks
+  // beneath, in row order, which is the mode of the cells at level 1
+  private double mode(int level, int bx, int by)
+  {
+    if (level == 0)
+      return cells[by * X_SIZE + bx];
+
+    int w = blocks(X_SIZE, level - 1), h = blocks(Y_SIZE, level - 1);
+    double[] v = new double[4];
+    int n = 0;
+    for (int y = 2 * by; y < Math.min(h, 2 * by + 2); y++)
+      for (int x = 2 * bx; x < Math.min(w, 2 * bx + 2); x++)
+        v[n++] = mode(level - 1, x, y);
+
+    double mode = v[0];
+    int best = 0;
+    for (int i = 0; i < n; i++)
+    {
+      int count = 0;
+      for (int j = 0; j < n; j++)
+        if (v[j] == v[i])
+          count++;
+      if (count > best)
+      {
+        best = count;
+        mode = v[i];
+      }
+    }
+    return mode;
+  }
+
+  private void check(GridPyramid pyramid, GridAggregation aggregation, int level)
+  {
+    int[][] drawn = draw(pyramid, level);
+    for (int by = 0; by < drawn.length; by++)
+      for (int bx = 0; bx < drawn[by].length; bx++)
+      {
+        double expected;
+        switch (aggregation)
+        {
+          case MAX:
+            expected = max(level, bx, by);
+            break;
+          case MODE:
+            expected = mode(level, bx, by);
+            break;
+          default:
+            expected = mean(level, bx, by);
+        }
+        assertEquals(aggregation + " level " + level + " block (" + bx + ", " + by + ")",
+                     map.getColorIndex(expected), drawn[by][bx]);
+      }
+  }
+
+  private void checkLevels(GridAggregation aggregation)
+  {
+    Rectangle grid = new Rectangle(0, 0, X_SIZE, Y_SIZE);
+    for (int level = 1; level <= MAX_LEVEL; level++)
+    {
+      GridPyramid pyramid = createPyramid(aggregation);
+      pyramid.update(level, grid);
+      check(pyramid, aggregation, level);
+
+      for (int step = 0; step < 5; step++)
+      {
+        change(40);
+        pyramid.update(level, grid);
+        check(pyramid, aggregation, level);
+      }
+    }
+  }
+
+  private void checkLevelChanges(GridAggregation aggregation)
+  {
+    Rectangle grid = new Rectangle(0, 0, X_SIZE, Y_SIZE);
+    GridPyramid pyramid = createPyramid(aggregation);
+    int[] levels = { 4, 2, 3, 1, 4, 4, 2 };
+    for (int level : levels)
+    {
+      // The cells outside a partial update are brought up to date later
+      change(60);
+      pyramid.update(level, new Rectangle(8, 4, 16, 16));
+      change(60);
+      pyramid.update(level, grid);
+      check(pyramid, aggregation, level);
+    }
+  }
+
+  @Test
+  public void testMean()
+  {
+    checkLevels(GridAggregation.MEAN);
+  }
+
+  @Test
+  public void testMax()
+  {
+    checkLevels(GridAggregation.MAX);
+  }
+
+  @Test
+  public void testMode()
+  {
+    checkLevels(GridAggregation.MODE);
+  }
+
+  @Test
+  public void testMeanAcrossLevels()
+  {
+    checkLevelChanges(GridAggregation.MEAN);
+  }
+
+  @Test
+  public void testMaxAcrossLevels()
+  {
+    checkLevelChanges(GridAggregation.MAX);
+  }
+
+  @Test
+  public void testModeAcrossLevels()
+  {
+    checkLevelChanges(GridAggregation.MODE);
+  }
+}
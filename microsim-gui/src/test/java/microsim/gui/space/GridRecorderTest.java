@@ -0,0 +1,237 @@
+package microsim.gui.space;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import microsim.gui.colormap.ColorMap;
+import microsim.gui.colormap.FixedColorMap;
+import microsim.gui.colormap.RangeColorMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Records grid layers with a GridRecorder and checks that GridRecording
+ * reconstructs the colors of every frame, across keyframes and deltas.
+ */
+public class GridRecorderTest
+{
+  private static final int X_SIZE = 97, Y_SIZE = 61;
+
+  private final Random random = new Random(9);
+  private File file;
+
+  // A layer whose colors can change, with color indices set by the test
+  private static final class IndexLayer implements IRecordableLayer
+  {
+    final int[] indices = new int[X_SIZE * Y_SIZE];
+    int shift;
+
+    public String getDescription() { return "Indices"; }
+    public boolean isDisplayed() { return true; }
+    public void setDisplay(boolean display) {}
+    public void paint(Graphics g, int cellLen) {}
+    public boolean performDblClickActionAt(int atX, int atY) { return false; }
+    public boolean performRightClickActionAt(int atX, int atY) { return false; }
+    public boolean performMouseMovedFromTo(int fromX, int fromY, int toX, int toY) { return false; }
+    public int getGridWidth() { return X_SIZE; }
+    public int getGridHeight() { return Y_SIZE; }
+
+    public void getCellColorIndices(int[] indices)
+    {
+      System.arraycopy(this.indices, 0, indices, 0, indices.length);
+    }
+
+    public int getIndexColor(int index)
+    {
+      return 0xFF000000 | (index + 2) * 1000 + shift;
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException
+  {
+    file = File.createTempFile("GridRecorderTest", ".rec");
+  }
+
+  @After
+  public void tearDown()
+  {
+    file.delete();
+  }
+
+  // The color a cell is drawn with, computed from the color map
+  private static int color(ColorMap map, int index, Color trasparency)
+  {
+    int argb = ColorMap.pack(map.getColorComponents(index));
+    if (trasparency != null && (argb & 0xFFFFFF) == (trasparency.getRGB() & 0xFFFFFF))
+      argb &= 0xFFFFFF;
+    return argb;
+  }
+
+  private static int[] pixels(BufferedImage img)
+  {
+    return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+  }
+
+  private static void checkFrame(GridRecording recording, int frame, int[][] expected) throws IOException
+  {
+    BufferedImage[] images = recording.getFrame(frame);
+    assertEquals(expected.length, images.length);
+    for (int l = 0; l < images.length; l++)
+      assertArrayEquals("frame " + frame + " layer " + l, expected[l], pixels(images[l]));
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException
+  {
+    double[] doubles = new double[X_SIZE * Y_SIZE];
+    int[] ints = new int[X_SIZE * Y_SIZE];
+    RangeColorMap range = new RangeColorMap(300, 0, 100, Color.black, Color.green);
+    FixedColorMap fixed = new FixedColorMap();
+    fixed.addColor(0, Color.red);
+    fixed.addColor(1, Color.green);
+    fixed.addColor(2, Color.blue);
+    fixed.addColor(3, Color.white);
+    LayerDblGridDrawer dblLayer = new LayerDblGridDrawer("Doubles", doubles, X_SIZE, Y_SIZE, range);
+    LayerIntGridDrawer intLayer = new LayerIntGridDrawer("Ints", ints, X_SIZE, Y_SIZE, fixed, Color.white);
+    intLayer.setParallelRendering(true);
+
+    List<int[][]> expected = new ArrayList<int[][]>();
+    GridRecorder recorder = new GridRecorder(file, Arrays.asList(dblLayer, intLayer), 7);
+    try {
+      for (int step = 0; step < 60; step++)
+      {
+        // A few cells change at most steps, all of them at some, and the
+        // number of colors used grows
+        int changes = step % 13 == 5 ? X_SIZE * Y_SIZE : 50;
+        for (int i = 0; i < changes; i++)
+        {
+          int k = random.nextInt(X_SIZE * Y_SIZE);
+          doubles[k] = random.nextDouble() * (step < 20 ? 10 : 100);
+          ints[k] = random.nextInt(step < 30 ? 4 : 7);
+        }
+        if (step == 40)
+          fixed.addColor(5, Color.yellow);
+        recorder.record(step * 0.5);
+
+        int[][] colors = new int[2][X_SIZE * Y_SIZE];
+        for (int k = 0; k < X_SIZE * Y_SIZE; k++)
+        {
+          colors[0][k] = color(range, range.getColorIndex(doubles[k]), null);
+          colors[1][k] = color(fixed, fixed.getColorIndex(ints[k]), Color.white);
+        }
+        expected.add(colors);
+      }
+      assertEquals(60, recorder.getFrameCount());
+    } finally {
+      recorder.close();
+    }
+
+    GridRecording recording = new GridRecording(file);
+    try {
+      assertEquals(60, recording.getFrameCount());
+      assertEquals(2, recording.getLayerCount());
+      assertEquals(X_SIZE, recording.getGridWidth(1));
+      assertEquals(Y_SIZE, recording.getGridHeight(1));
+      for (int frame = 0; frame < 60; frame++)
+      {
+        assertEquals(frame * 0.5, recording.getTime(frame), 0);
+        checkFrame(recording, frame, expected.get(frame));
+      }
+      // Random access, backwards and across keyframes
+      for (int i = 0; i < 60; i++)
+      {
+        int frame = random.nextInt(60);
+        checkFrame(recording, frame, expected.get(frame));
+      }
+    } finally {
+      recording.close();
+    }
+  }
+
+  @Test
+  public void testReadWhileRecording() throws IOException
+  {
+    IndexLayer layer = new IndexLayer();
+    List<int[][]> expected = new ArrayList<int[][]>();
+    GridRecorder recorder = new GridRecorder(file, Collections.singletonList(layer), 4);
+    GridRecording recording = null;
+    try {
+      for (int step = 0; step < 30; step++)
+      {
+        for (int i = 0; i < 20; i++)
+          layer.indices[random.nextInt(layer.indices.length)] = random.nextInt(10);
+        recorder.record(step);
+        int[] colors = new int[layer.indices.length];
+        for (int k = 0; k < colors.length; k++)
+          colors[k] = layer.getIndexColor(layer.indices[k]);
+        expected.add(new int[][] { colors });
+
+        if (step == 12)
+        {
+          recorder.flush();
+          recording = new GridRecording(file);
+          assertEquals(13, recording.getFrameCount());
+          checkFrame(recording, 12, expected.get(12));
+        }
+      }
+      recorder.flush();
+      recording.refresh();
+      assertEquals(30, recording.getFrameCount());
+      for (int frame = 0; frame < 30; frame++)
+        checkFrame(recording, frame, expected.get(frame));
+    } finally {
+      recorder.close();
+      if (recording != null)
+        recording.close();
+    }
+  }
+
+  @Test
+  public void testColorChanges() throws IOException
+  {
+    IndexLayer layer = new IndexLayer();
+    List<int[][]> expected = new ArrayList<int[][]>();
+    GridRecorder recorder = new GridRecorder(file, Collections.singletonList(layer), 1000);
+    try {
+      for (int step = 0; step < 20; step++)
+      {
+        // The unmapped index, then enough indices to need wider codes
+        for (int i = 0; i < 30; i++)
+          layer.indices[random.nextInt(layer.indices.length)] = random.nextInt(step < 10 ? 5 : 70000) - 1;
+        // The colors already recorded change, the frames before must keep theirs
+        if (step == 8 || step == 15)
+          layer.shift += 7;
+        recorder.record(step);
+        int[] colors = new int[layer.indices.length];
+        for (int k = 0; k < colors.length; k++)
+          colors[k] = layer.getIndexColor(layer.indices[k]);
+        expected.add(new int[][] { colors });
+      }
+    } finally {
+      recorder.close();
+    }
+
+    GridRecording recording = new GridRecording(file);
+    try {
+      for (int frame = 0; frame < 20; frame++)
+        checkFrame(recording, frame, expected.get(frame));
+    } finally {
+      recording.close();
+    }
+  }
+}